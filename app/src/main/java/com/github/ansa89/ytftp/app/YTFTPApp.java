@@ -27,6 +27,8 @@ import com.github.ansa89.ytftp.core.YTFTPServer;
 import com.github.ansa89.ytftp.core.enums.YTFTPLogLevel;
 import com.github.ansa89.ytftp.core.enums.YTFTPServerType;
 import com.github.ansa89.ytftp.core.log.YTFTPLogger;
+import com.github.ansa89.ytftp.core.storage.YTFTPArchiveStorage;
+import com.github.ansa89.ytftp.core.storage.YTFTPStorage;
 import org.apache.commons.cli.*;
 
 import java.io.IOException;
@@ -37,29 +39,38 @@ import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.stream.Collectors;
 
 public class YTFTPApp {
     private static final String OPT_HELP = "help";
     private static final String OPT_READ_DIR = "read-dir";
+    private static final String OPT_READ_ARCHIVE = "read-archive";
     private static final String OPT_WRITE_DIR = "write-dir";
     private static final String OPT_TYPE = "type";
     private static final String OPT_PORT = "port";
     private static final String OPT_ADDR = "listen-address";
     private static final String OPT_IFACE = "listen-interface";
     private static final String OPT_LOG = "log-level";
+    private static final String OPT_ASYNC_LOG = "async-log";
+    private static final String OPT_MULTICAST = "multicast";
+    private static final String OPT_LISTEN_THREADS = "listen-threads";
     private static final Options CMD_OPTIONS = new Options();
 
     public static void main(String[] args) {
         HelpFormatter formatter = new HelpFormatter();
         CommandLine line = null;
         Path readDir;
+        YTFTPStorage readStorage;
         Path writeDir;
         YTFTPServerType type;
         int port;
-        InetAddress addr;
+        List<InetAddress> addrs = new ArrayList<>();
         NetworkInterface iface;
+        InetAddress multicast;
+        int listenThreads;
 
         createCmdOptions();
 
@@ -76,14 +87,30 @@ public class YTFTPApp {
                 YTFTPLogger.setLevel(YTFTPLogLevel.valueOf(line.getOptionValue(OPT_LOG)));
             }
 
+            if (line.hasOption(OPT_ASYNC_LOG)) {
+                YTFTPLogger.setAsyncBufferSize(Integer.parseInt(line.getOptionValue(OPT_ASYNC_LOG)));
+            }
+
             readDir = line.hasOption(OPT_READ_DIR) ? Paths.get(line.getOptionValue(OPT_READ_DIR)) : Paths.get("");
+            readStorage = line.hasOption(OPT_READ_ARCHIVE) ? new YTFTPArchiveStorage(Paths.get(line.getOptionValue(OPT_READ_ARCHIVE))) : null;
             writeDir = line.hasOption(OPT_WRITE_DIR) ? Paths.get(line.getOptionValue(OPT_WRITE_DIR)) : Paths.get("");
             type = line.hasOption(OPT_TYPE) ? YTFTPServerType.valueOf(line.getOptionValue(OPT_TYPE)) : YTFTPServer.DEFAULT_TYPE;
             port = line.hasOption(OPT_PORT) ? Integer.parseInt(line.getOptionValue(OPT_PORT)) : YTFTPServer.DEFAULT_PORT;
-            addr = line.hasOption(OPT_ADDR) ? InetAddress.getByName(line.getOptionValue(OPT_ADDR)) : null;
+
+            if (line.hasOption(OPT_ADDR)) {
+                for (String addr : line.getOptionValues(OPT_ADDR)) {
+                    addrs.add(InetAddress.getByName(addr));
+                }
+            }
+
             iface = line.hasOption(OPT_IFACE) ? NetworkInterface.getByName(line.getOptionValue(OPT_IFACE)) : null;
+            multicast = line.hasOption(OPT_MULTICAST) ? InetAddress.getByName(line.getOptionValue(OPT_MULTICAST)) : null;
+            listenThreads = line.hasOption(OPT_LISTEN_THREADS) ? Integer.parseInt(line.getOptionValue(OPT_LISTEN_THREADS)) : 1;
+
+            startServer(readDir, readStorage, writeDir, type, port, addrs, iface, multicast, listenThreads);
 
-            startServer(readDir, writeDir, type, port, addr, iface);
+            // write pending log messages
+            YTFTPLogger.setAsyncBufferSize(null);
         } catch (ParseException e) {
             formatter.printHelp("YTFTP Server", CMD_OPTIONS);
 
@@ -94,14 +121,19 @@ public class YTFTPApp {
             throw new RuntimeException("Unknown address", e);
         } catch (SocketException e) {
             throw new RuntimeException("Unknown interface", e);
+        } catch (IOException e) {
+            throw new RuntimeException("Error opening archive", e);
         }
     }
 
-    private static void startServer(Path readDir, Path writeDir, YTFTPServerType type, int port, InetAddress addr, NetworkInterface iface) {
+    private static void startServer(Path readDir, YTFTPStorage readStorage, Path writeDir, YTFTPServerType type, int port, List<InetAddress> addrs, NetworkInterface iface, InetAddress multicast, int listenThreads) {
         try (
                 InputStreamReader in = new InputStreamReader(System.in);
-                YTFTPServer srv = addr != null ? new YTFTPServer(readDir, writeDir, type, port, addr) : new YTFTPServer(readDir, writeDir, type, port, iface)
+                YTFTPServer srv = !addrs.isEmpty() ? new YTFTPServer(readDir, writeDir, type, port, addrs) : new YTFTPServer(readDir, writeDir, type, port, iface)
         ) {
+            srv.setReadStorage(readStorage);
+            srv.setMulticastAddress(multicast);
+            srv.setListenThreads(listenThreads);
             srv.start();
             System.out.println("Enter 'q' to quit");
 
@@ -136,6 +168,14 @@ public class YTFTPApp {
                 .required(false)
                 .build()
         );
+        CMD_OPTIONS.addOption(Option.builder("z")
+                .longOpt(OPT_READ_ARCHIVE)
+                .argName("ARCHIVE")
+                .hasArg(true)
+                .desc("ZIP/JAR archive used to serve files (instead of READ_DIR)")
+                .required(false)
+                .build()
+        );
         CMD_OPTIONS.addOption(Option.builder("w")
                 .longOpt(OPT_WRITE_DIR)
                 .argName("WRITE_DIR")
@@ -166,7 +206,7 @@ public class YTFTPApp {
                 .longOpt(OPT_ADDR)
                 .argName("IP")
                 .hasArg(true)
-                .desc("IP to listen on")
+                .desc("IP to listen on (can be repeated)")
                 .required(false)
                 .build()
         );
@@ -186,5 +226,31 @@ public class YTFTPApp {
                 .required(false)
                 .build()
         );
+        CMD_OPTIONS.addOption(Option.builder("a")
+                .longOpt(OPT_ASYNC_LOG)
+                .argName("BUFFER_SIZE")
+                .hasArg(true)
+                .desc("Write log from a background thread, buffering at most BUFFER_SIZE messages")
+                .required(false)
+                .type(Integer.class)
+                .build()
+        );
+        CMD_OPTIONS.addOption(Option.builder("m")
+                .longOpt(OPT_MULTICAST)
+                .argName("GROUP_IP")
+                .hasArg(true)
+                .desc("First multicast group used for multicast transfers (RFC 2090)")
+                .required(false)
+                .build()
+        );
+        CMD_OPTIONS.addOption(Option.builder()
+                .longOpt(OPT_LISTEN_THREADS)
+                .argName("THREADS")
+                .hasArg(true)
+                .desc("Threads receiving requests on each address (SO_REUSEPORT)")
+                .required(false)
+                .type(Integer.class)
+                .build()
+        );
     }
 }
@@ -0,0 +1,90 @@
+package com.github.ansa89.ytftp.benchmarks;
+
+/*
+ * YTFTPAllocationBenchmark.java - Allocations done while sending a block of a GET transfer.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.enums.YTFTPEngineType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An operation is a block: run with "-prof gc", gc.alloc.rate.norm is the number of bytes allocated per block (by
+ * server and client, which reuses its buffers).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class YTFTPAllocationBenchmark {
+    private static final String FILE_NAME = "blocks.bin";
+    private static final int BLOCKS = 4096;
+
+    @Param({"THREADED", "NIO"})
+    public YTFTPEngineType engine;
+    @Param({"octet", "netascii"})
+    public String mode;
+    @Param({"512", "1428"})
+    public int blockSize;
+    @Param({"1", "16"})
+    public int windowSize;
+
+    private YTFTPBenchmarkServer server;
+    private YTFTPBenchmarkClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new YTFTPBenchmarkServer(engine);
+        // the last block is not full (random data rarely contains line ends, so netascii adds few bytes)
+        server.createFile(FILE_NAME, (BLOCKS - 1) * blockSize + blockSize / 2);
+        client = server.newClient();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCKS)
+    public long getBlocks() throws IOException {
+        return client.get(FILE_NAME, mode, blockSize, windowSize);
+    }
+}
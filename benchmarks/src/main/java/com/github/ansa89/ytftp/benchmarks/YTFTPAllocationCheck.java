@@ -0,0 +1,133 @@
+package com.github.ansa89.ytftp.benchmarks;
+
+/*
+ * YTFTPAllocationCheck.java - Check that sending a block of a GET transfer allocates nothing once the transfer runs.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.enums.YTFTPEngineType;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts the bytes allocated by all threads (server and client, which reuses its buffers) during GET transfers of
+ * SMALL_BLOCKS and LARGE_BLOCKS blocks: the difference divided by the difference of blocks is the allocation of a
+ * block in steady state, without the cost of starting a transfer.
+ * Exits with status 1 if a block allocates more than MAX_BYTES_PER_BLOCK (which only absorbs measurement noise, e.g.
+ * JIT compiler threads) with any engine, mode or window size.
+ * <p>
+ * Run with {@code java -cp benchmarks/target/ytftp-benchmarks-<VERSION>.jar
+ * com.github.ansa89.ytftp.benchmarks.YTFTPAllocationCheck}.
+ */
+public final class YTFTPAllocationCheck {
+    public static final double MAX_BYTES_PER_BLOCK = 8;
+    private static final int SMALL_BLOCKS = 1024;
+    private static final int LARGE_BLOCKS = 16384;
+    private static final int BLOCK_SIZE = 512;
+    private static final int WARMUP_TRANSFERS = 20;
+    private static final int MEASURED_TRANSFERS = 5;
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private YTFTPAllocationCheck() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (!THREADS.isThreadAllocatedMemorySupported()) {
+            System.err.println("Thread allocation counters not supported by this JVM");
+            System.exit(2);
+        }
+
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+        boolean passed = true;
+
+        for (YTFTPEngineType engine : YTFTPEngineType.values()) {
+            try (YTFTPBenchmarkServer server = new YTFTPBenchmarkServer(engine); YTFTPBenchmarkClient client = server.newClient()) {
+                // the last block is not full
+                server.createFile("small.bin", (SMALL_BLOCKS - 1) * BLOCK_SIZE + BLOCK_SIZE / 2);
+                server.createFile("large.bin", (LARGE_BLOCKS - 1) * BLOCK_SIZE + BLOCK_SIZE / 2);
+
+                for (String mode : new String[]{"octet", "netascii"}) {
+                    for (int windowSize : new int[]{1, 16}) {
+                        double perBlock = measure(client, mode, windowSize);
+                        boolean ok = perBlock <= MAX_BYTES_PER_BLOCK;
+                        passed &= ok;
+                        System.out.printf("%-8s %-8s window %2d: %8.2f bytes/block %s%n", engine, mode, windowSize, perBlock, ok ? "OK" : "FAILED");
+                    }
+                }
+            }
+        }
+
+        if (!passed) {
+            System.err.println("Steady-state allocation exceeds " + MAX_BYTES_PER_BLOCK + " bytes per block");
+            System.exit(1);
+        }
+    }
+
+    // bytes allocated by a block, from the lowest allocation measured for each file (the least disturbed run)
+    private static double measure(YTFTPBenchmarkClient client, String mode, int windowSize) throws IOException {
+        for (int i = 0; i < WARMUP_TRANSFERS; i++) {
+            client.get("small.bin", mode, BLOCK_SIZE, windowSize);
+            client.get("large.bin", mode, BLOCK_SIZE, windowSize);
+        }
+
+        long small = Long.MAX_VALUE;
+        long large = Long.MAX_VALUE;
+
+        for (int i = 0; i < MEASURED_TRANSFERS; i++) {
+            small = Math.min(small, allocatedBy(client, "small.bin", mode, windowSize));
+            large = Math.min(large, allocatedBy(client, "large.bin", mode, windowSize));
+        }
+
+        return Math.max(0, large - small) / (double) (LARGE_BLOCKS - SMALL_BLOCKS);
+    }
+
+    private static long allocatedBy(YTFTPBenchmarkClient client, String file, String mode, int windowSize) throws IOException {
+        Map<Long, Long> before = getAllocatedBytes();
+        client.get(file, mode, BLOCK_SIZE, windowSize);
+        Map<Long, Long> after = getAllocatedBytes();
+        long allocated = 0;
+
+        // threads started during the transfer count from 0, threads ended during the transfer are lost
+        for (Map.Entry<Long, Long> thread : after.entrySet()) {
+            allocated += thread.getValue() - before.getOrDefault(thread.getKey(), 0L);
+        }
+
+        return allocated;
+    }
+
+    private static Map<Long, Long> getAllocatedBytes() {
+        long[] ids = THREADS.getAllThreadIds();
+        long[] bytes = THREADS.getThreadAllocatedBytes(ids);
+        Map<Long, Long> allocated = new HashMap<>(ids.length * 2);
+
+        for (int i = 0; i < ids.length; i++) {
+            // -1 for threads ended in the meantime
+            if (bytes[i] >= 0) {
+                allocated.put(ids[i], bytes[i]);
+            }
+        }
+
+        return allocated;
+    }
+}
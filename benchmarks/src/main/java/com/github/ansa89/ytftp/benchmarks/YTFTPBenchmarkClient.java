@@ -0,0 +1,296 @@
+package com.github.ansa89.ytftp.benchmarks;
+
+/*
+ * YTFTPBenchmarkClient.java - Minimal TFTP client used by benchmarks, supporting blksize and windowsize options
+ *                             and reusing its buffers between transfers.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class YTFTPBenchmarkClient implements AutoCloseable {
+    private static final int READ_REQUEST = 1;
+    private static final int WRITE_REQUEST = 2;
+    private static final int DATA = 3;
+    private static final int ACKNOWLEDGEMENT = 4;
+    private static final int ERROR = 5;
+    private static final int OPTION_ACKNOWLEDGEMENT = 6;
+    private static final int MAX_RETRIES = 5;
+
+    private final DatagramSocket socket;
+    private final InetAddress address;
+    private final int port;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(65536 + 4);
+    private final DatagramPacket receivePacket = new DatagramPacket(receiveBuffer.array(), receiveBuffer.capacity());
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(65536 + 4);
+    private final DatagramPacket sendPacket = new DatagramPacket(sendBuffer.array(), 0);
+    private InetAddress serverAddress;
+    private int serverPort;
+
+    /**
+     * Create a client.
+     *
+     * @param address   server address
+     * @param port      server port
+     * @param timeoutMs retransmission timeout
+     * @throws IOException if the socket cannot be opened
+     */
+    public YTFTPBenchmarkClient(InetAddress address, int port, int timeoutMs) throws IOException {
+        this.address = address;
+        this.port = port;
+        this.socket = new DatagramSocket(0, address);
+        this.socket.setSoTimeout(timeoutMs);
+        this.socket.setReceiveBufferSize(4 * 1024 * 1024);
+    }
+
+    /**
+     * Download a file.
+     *
+     * @param filename   remote file name
+     * @param mode       transfer mode (octet or netascii)
+     * @param blockSize  block size (options are sent only if different from the default ones)
+     * @param windowSize window size
+     * @return bytes received
+     * @throws IOException if the transfer fails
+     */
+    public long get(String filename, String mode, int blockSize, int windowSize) throws IOException {
+        sendRequest(READ_REQUEST, filename, mode, blockSize, windowSize);
+        serverAddress = null;
+
+        long received = 0;
+        int lastBlock = 0;
+        int inWindow = 0;
+        int retries = 0;
+        boolean gapReported = false;
+
+        while (true) {
+            if (!receive()) {
+                if (++retries > MAX_RETRIES) {
+                    throw new IOException("Timeout receiving " + filename);
+                }
+
+                if (serverAddress == null) {
+                    sendRequest(READ_REQUEST, filename, mode, blockSize, windowSize);
+                } else {
+                    sendAck(lastBlock);
+                }
+
+                continue;
+            }
+
+            int opcode = receiveBuffer.getShort(0);
+
+            if (opcode == OPTION_ACKNOWLEDGEMENT) {
+                sendAck(0);
+                continue;
+            }
+
+            if (opcode != DATA) {
+                throw new IOException(describeError(opcode));
+            }
+
+            int block = receiveBuffer.getShort(2) & 0xffff;
+            int length = receivePacket.getLength() - 4;
+
+            if (block != ((lastBlock + 1) & 0xffff)) {
+                // lost block, make the server restart from the last one received (once, following blocks of the
+                // window are lost too)
+                if (!gapReported) {
+                    gapReported = true;
+                    inWindow = 0;
+                    sendAck(lastBlock);
+                }
+
+                continue;
+            }
+
+            gapReported = false;
+            retries = 0;
+            received += length;
+            lastBlock = block;
+
+            if (length < blockSize) {
+                sendAck(lastBlock);
+                return received;
+            }
+
+            if (++inWindow >= windowSize) {
+                inWindow = 0;
+                sendAck(lastBlock);
+            }
+        }
+    }
+
+    /**
+     * Upload a file.
+     *
+     * @param filename   remote file name
+     * @param content    file content
+     * @param blockSize  block size (options are sent only if different from the default ones)
+     * @param windowSize window size
+     * @throws IOException if the transfer fails
+     */
+    public void put(String filename, byte[] content, int blockSize, int windowSize) throws IOException {
+        sendRequest(WRITE_REQUEST, filename, "octet", blockSize, windowSize);
+        serverAddress = null;
+
+        // the last block is the first one shorter than the block size (eventually empty)
+        final long lastBlock = content.length / blockSize + 1;
+        long acked = -1;
+        int retries = 0;
+
+        while (acked < lastBlock) {
+            if (acked >= 0) {
+                for (long block = acked + 1; block <= Math.min(acked + windowSize, lastBlock); block++) {
+                    sendData(block, content, blockSize);
+                }
+            }
+
+            if (!receive()) {
+                if (++retries > MAX_RETRIES) {
+                    throw new IOException("Timeout sending " + filename);
+                }
+
+                if (acked < 0) {
+                    sendRequest(WRITE_REQUEST, filename, "octet", blockSize, windowSize);
+                }
+
+                continue;
+            }
+
+            int opcode = receiveBuffer.getShort(0);
+
+            if (opcode == OPTION_ACKNOWLEDGEMENT && acked < 0) {
+                acked = 0;
+            } else if (opcode == ACKNOWLEDGEMENT) {
+                int block = receiveBuffer.getShort(2) & 0xffff;
+                // distance from the last acknowledged block, taking care of block number wrap
+                int distance = (block - (int) (Math.max(acked, 0) & 0xffff)) & 0xffff;
+
+                if (acked < 0) {
+                    acked = 0;
+                } else if (distance <= windowSize) {
+                    acked += distance;
+                }
+            } else if (opcode != OPTION_ACKNOWLEDGEMENT) {
+                throw new IOException(describeError(opcode));
+            }
+
+            retries = 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+
+    private void sendRequest(int opcode, String filename, String mode, int blockSize, int windowSize) throws IOException {
+        sendBuffer.clear();
+        sendBuffer.putShort((short) opcode);
+        putString(filename);
+        putString(mode);
+
+        if (blockSize != 512) {
+            putString("blksize");
+            putString(Integer.toString(blockSize));
+        }
+
+        if (windowSize != 1) {
+            putString("windowsize");
+            putString(Integer.toString(windowSize));
+        }
+
+        send(address, port);
+    }
+
+    private void sendAck(int block) throws IOException {
+        sendBuffer.clear();
+        sendBuffer.putShort((short) ACKNOWLEDGEMENT);
+        sendBuffer.putShort((short) block);
+        send(serverAddress, serverPort);
+    }
+
+    private void sendData(long block, byte[] content, int blockSize) throws IOException {
+        int offset = (int) ((block - 1) * blockSize);
+
+        sendBuffer.clear();
+        sendBuffer.putShort((short) DATA);
+        sendBuffer.putShort((short) block);
+        sendBuffer.put(content, offset, Math.min(blockSize, content.length - offset));
+        send(serverAddress, serverPort);
+    }
+
+    private void putString(String value) {
+        sendBuffer.put(value.getBytes(StandardCharsets.US_ASCII));
+        sendBuffer.put((byte) 0);
+    }
+
+    private void send(InetAddress address, int port) throws IOException {
+        sendPacket.setData(sendBuffer.array(), 0, sendBuffer.position());
+        sendPacket.setAddress(address);
+        sendPacket.setPort(port);
+        socket.send(sendPacket);
+    }
+
+    // return false on timeout; the first answer fixes the transfer port of the server
+    private boolean receive() throws IOException {
+        while (true) {
+            receivePacket.setData(receiveBuffer.array(), 0, receiveBuffer.capacity());
+
+            try {
+                socket.receive(receivePacket);
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+
+            if (serverAddress == null) {
+                serverAddress = receivePacket.getAddress();
+                serverPort = receivePacket.getPort();
+                return true;
+            }
+
+            if (receivePacket.getPort() == serverPort && receivePacket.getAddress().equals(serverAddress)) {
+                return true;
+            }
+        }
+    }
+
+    private String describeError(int opcode) {
+        if (opcode != ERROR) {
+            return "Unexpected packet (opcode " + opcode + ")";
+        }
+
+        int end = 4;
+
+        while (end < receivePacket.getLength() && receiveBuffer.get(end) != 0) {
+            end++;
+        }
+
+        return "Error " + receiveBuffer.getShort(2) + ": " + new String(receiveBuffer.array(), 4, end - 4, StandardCharsets.US_ASCII);
+    }
+}
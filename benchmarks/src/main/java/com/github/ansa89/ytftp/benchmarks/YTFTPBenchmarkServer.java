@@ -0,0 +1,144 @@
+package com.github.ansa89.ytftp.benchmarks;
+
+/*
+ * YTFTPBenchmarkServer.java - TFTP server listening on loopback, serving generated files from temporary
+ *                             directories.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.YTFTPServer;
+import com.github.ansa89.ytftp.core.enums.YTFTPEngineType;
+import com.github.ansa89.ytftp.core.enums.YTFTPLogLevel;
+import com.github.ansa89.ytftp.core.enums.YTFTPServerType;
+import com.github.ansa89.ytftp.core.log.YTFTPLogger;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+public class YTFTPBenchmarkServer implements AutoCloseable {
+    public static final int CLIENT_TIMEOUT_MS = 1000;
+
+    @Getter
+    private final InetAddress address = InetAddress.getLoopbackAddress();
+    @Getter
+    private final int port;
+    @Getter
+    private final Path readDirectory;
+    @Getter
+    private final Path writeDirectory;
+    @Getter
+    private final YTFTPServer server;
+
+    /**
+     * Start a server (only errors are logged).
+     *
+     * @param engine engine handling transfers
+     * @throws IOException if temporary directories cannot be created
+     */
+    public YTFTPBenchmarkServer(YTFTPEngineType engine) throws IOException {
+        YTFTPLogger.setLevel(YTFTPLogLevel.ERROR);
+
+        this.port = getFreePort(address);
+        this.readDirectory = Files.createTempDirectory("ytftp-read");
+        this.writeDirectory = Files.createTempDirectory("ytftp-write");
+        this.server = new YTFTPServer(readDirectory, writeDirectory, YTFTPServerType.GET_AND_PUT, port, address);
+        this.server.setEngineType(engine);
+        this.server.setJmxEnabled(false);
+        this.server.start();
+    }
+
+    /**
+     * Create a file with random content in the read directory.
+     *
+     * @param name file name
+     * @param size file size
+     * @return file content
+     * @throws IOException if the file cannot be written
+     */
+    public byte[] createFile(String name, int size) throws IOException {
+        byte[] content = randomContent(size);
+        Files.write(readDirectory.resolve(name), content);
+        return content;
+    }
+
+    /**
+     * Create a client connected to this server.
+     *
+     * @return new client
+     * @throws IOException if the client socket cannot be opened
+     */
+    public YTFTPBenchmarkClient newClient() throws IOException {
+        return new YTFTPBenchmarkClient(address, port, CLIENT_TIMEOUT_MS);
+    }
+
+    /**
+     * Delete uploaded files.
+     *
+     * @throws IOException if a file cannot be deleted
+     */
+    public void cleanWriteDirectory() throws IOException {
+        try (Stream<Path> files = Files.list(writeDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        delete(readDirectory);
+        delete(writeDirectory);
+    }
+
+    /**
+     * Generate reproducible random content.
+     *
+     * @param size content size
+     * @return content
+     */
+    public static byte[] randomContent(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    private static int getFreePort(InetAddress address) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0, address)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.github.ansa89.ytftp.benchmarks;
+
+/*
+ * YTFTPGetBenchmark.java - Throughput and latency of GET transfers over loopback.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.enums.YTFTPEngineType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each operation downloads a whole file: throughput in bytes is the score multiplied by the file size.
+ * Concurrent variants run one client per thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class YTFTPGetBenchmark {
+    private static final String FILE_NAME = "get.bin";
+
+    @Param({"1024", "1048576", "16777216"})
+    public int fileSize;
+    @Param({"THREADED", "NIO"})
+    public YTFTPEngineType engine;
+    @Param({"512", "1428"})
+    public int blockSize;
+    @Param({"1", "16"})
+    public int windowSize;
+
+    private YTFTPBenchmarkServer server;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new YTFTPBenchmarkServer(engine);
+        server.createFile(FILE_NAME, fileSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long get(Client client) throws IOException {
+        return client.client.get(FILE_NAME, "octet", blockSize, windowSize);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long get4Clients(Client client) throws IOException {
+        return client.client.get(FILE_NAME, "octet", blockSize, windowSize);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long get16Clients(Client client) throws IOException {
+        return client.client.get(FILE_NAME, "octet", blockSize, windowSize);
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private YTFTPBenchmarkClient client;
+
+        @Setup(Level.Trial)
+        public void setUp(YTFTPGetBenchmark benchmark) throws IOException {
+            client = benchmark.server.newClient();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.github.ansa89.ytftp.benchmarks;
+
+/*
+ * YTFTPNetASCIIBenchmark.java - Cost of NETASCII conversion of files sent and received.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.io.YTFTPNetASCIIDecoder;
+import com.github.ansa89.ytftp.core.io.YTFTPNetASCIIEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each operation converts 1 MiB of content, as done by the netascii cache (whole file), by streamed GET transfers
+ * (block by block) and by PUT transfers (block by block).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class YTFTPNetASCIIBenchmark {
+    private static final int CONTENT_SIZE = 1024 * 1024;
+
+    // unix: text with LF line ends, dos: text with CRLF line ends, binary: random bytes
+    @Param({"unix", "dos", "binary"})
+    public String content;
+    @Param({"512", "1428"})
+    public int blockSize;
+
+    private ByteBuffer plain;
+    private ByteBuffer encoded;
+    private ByteBuffer block;
+    private ByteBuffer decoded;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        plain = ByteBuffer.wrap(createContent(content));
+        encoded = YTFTPNetASCIIEncoder.encode(plain);
+        block = ByteBuffer.allocate(blockSize);
+        decoded = ByteBuffer.allocate(YTFTPNetASCIIDecoder.getMaxDecodedLength(blockSize));
+    }
+
+    @Benchmark
+    public ByteBuffer encodeFile() {
+        return YTFTPNetASCIIEncoder.encode(plain);
+    }
+
+    @Benchmark
+    public int encodeBlocks() {
+        YTFTPNetASCIIEncoder encoder = new YTFTPNetASCIIEncoder();
+        ByteBuffer src = plain.duplicate();
+        int length = 0;
+
+        do {
+            block.clear();
+            encoder.encode(src, block, true);
+            length += block.position();
+        } while (!encoder.isDone(src));
+
+        return length;
+    }
+
+    @Benchmark
+    public int decodeBlocks() {
+        YTFTPNetASCIIDecoder decoder = new YTFTPNetASCIIDecoder();
+        ByteBuffer src = encoded.duplicate();
+        int length = 0;
+
+        while (src.hasRemaining()) {
+            ByteBuffer packet = src.slice();
+            packet.limit(Math.min(blockSize, packet.remaining()));
+            src.position(src.position() + packet.remaining());
+
+            decoded.clear();
+            decoder.decode(packet, decoded);
+            length += decoded.position();
+        }
+
+        decoded.clear();
+        decoder.finish(decoded);
+        return length + decoded.position();
+    }
+
+    private static byte[] createContent(String type) {
+        if ("binary".equals(type)) {
+            return YTFTPBenchmarkServer.randomContent(CONTENT_SIZE);
+        }
+
+        String lineEnd = "dos".equals(type) ? "\r\n" : "\n";
+        StringBuilder text = new StringBuilder(CONTENT_SIZE + 80);
+
+        for (int line = 0; text.length() < CONTENT_SIZE; line++) {
+            text.append("line ").append(line).append(": the quick brown fox jumps over the lazy dog").append(lineEnd);
+        }
+
+        text.setLength(CONTENT_SIZE);
+        return text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.ansa89.ytftp.benchmarks;
+
+/*
+ * YTFTPPutBenchmark.java - Throughput of PUT transfers over loopback.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.enums.YTFTPEngineType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Each operation uploads a whole file (with a new name, uploaded files are deleted after each iteration).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class YTFTPPutBenchmark {
+    @Param({"1048576", "16777216"})
+    public int fileSize;
+    @Param({"THREADED", "NIO"})
+    public YTFTPEngineType engine;
+    @Param({"512", "1428"})
+    public int blockSize;
+    @Param({"1", "16"})
+    public int windowSize;
+
+    private final AtomicLong uploads = new AtomicLong();
+    private YTFTPBenchmarkServer server;
+    private byte[] content;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new YTFTPBenchmarkServer(engine);
+        content = YTFTPBenchmarkServer.randomContent(fileSize);
+    }
+
+    @TearDown(Level.Iteration)
+    public void cleanUp() throws IOException {
+        server.cleanWriteDirectory();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void put(Client client) throws IOException {
+        client.client.put("put-" + uploads.incrementAndGet() + ".bin", content, blockSize, windowSize);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void put4Clients(Client client) throws IOException {
+        client.client.put("put-" + uploads.incrementAndGet() + ".bin", content, blockSize, windowSize);
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private YTFTPBenchmarkClient client;
+
+        @Setup(Level.Trial)
+        public void setUp(YTFTPPutBenchmark benchmark) throws IOException {
+            client = benchmark.server.newClient();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            client.close();
+        }
+    }
+}
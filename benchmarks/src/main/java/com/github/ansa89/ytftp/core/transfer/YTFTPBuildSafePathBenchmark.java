@@ -0,0 +1,105 @@
+package com.github.ansa89.ytftp.core.transfer;
+
+/*
+ * YTFTPBuildSafePathBenchmark.java - Cost of resolving requested file names inside server directories
+ *                                    (in the transfer package, to access buildSafePath).
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.cache.YTFTPPathCache;
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class YTFTPBuildSafePathBenchmark {
+    // first two names exist, the third one is missing, the last one is outside the server directory and is rejected
+    @Param({"pxelinux.0", "boot/x86_64/images/vmlinuz", "pxelinux.cfg/01-00-11-22-33-44-55", "../../etc/passwd"})
+    public String fileName;
+
+    private Path serverDirectory;
+    private YTFTPPathCache pathCache;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        serverDirectory = Files.createTempDirectory("ytftp");
+        Files.createDirectories(serverDirectory.resolve("boot/x86_64/images"));
+        Files.createFile(serverDirectory.resolve("pxelinux.0"));
+        Files.createFile(serverDirectory.resolve("boot/x86_64/images/vmlinuz"));
+        pathCache = new YTFTPPathCache(serverDirectory, 1000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pathCache.close();
+    }
+
+    @Benchmark
+    public Object buildSafePath() {
+        try {
+            return YTFTPTransfer.buildSafePath(serverDirectory, fileName, false);
+        } catch (YTFTPError e) {
+            return e;
+        }
+    }
+
+    // what a request without path cache does: resolve the name and read the file attributes
+    @Benchmark
+    public Object buildSafePathAndReadAttributes() throws IOException {
+        try {
+            return Files.readAttributes(YTFTPTransfer.buildSafePath(serverDirectory, fileName, false), BasicFileAttributes.class);
+        } catch (YTFTPError | NoSuchFileException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Object pathCache() throws IOException {
+        try {
+            return pathCache.resolve(fileName);
+        } catch (YTFTPError e) {
+            return e;
+        }
+    }
+}
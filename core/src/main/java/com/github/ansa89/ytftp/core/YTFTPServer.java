@@ -24,33 +24,111 @@ package com.github.ansa89.ytftp.core;
  */
 
 
+import com.github.ansa89.ytftp.core.cache.YTFTPDecompressionCache;
+import com.github.ansa89.ytftp.core.cache.YTFTPFileCache;
+import com.github.ansa89.ytftp.core.cache.YTFTPPathCache;
+import com.github.ansa89.ytftp.core.cache.YTFTPRenderCache;
+import com.github.ansa89.ytftp.core.enums.YTFTPEngineType;
+import com.github.ansa89.ytftp.core.enums.YTFTPExecutorType;
+import com.github.ansa89.ytftp.core.enums.YTFTPRetransmitMode;
 import com.github.ansa89.ytftp.core.enums.YTFTPServerType;
+import com.github.ansa89.ytftp.core.enums.YTFTPSyncMode;
 import com.github.ansa89.ytftp.core.error.YTFTPError;
+import com.github.ansa89.ytftp.core.io.YTFTPFileWriter;
+import com.github.ansa89.ytftp.core.io.YTFTPDecompressor;
+import com.github.ansa89.ytftp.core.io.YTFTPGzipDecompressor;
 import com.github.ansa89.ytftp.core.log.YTFTPLogger;
+import com.github.ansa89.ytftp.core.metrics.YTFTPMetrics;
+import com.github.ansa89.ytftp.core.metrics.YTFTPServerMetrics;
+import com.github.ansa89.ytftp.core.metrics.YTFTPServerMetricsMXBean;
+import com.github.ansa89.ytftp.core.multicast.YTFTPMulticastEngine;
+import com.github.ansa89.ytftp.core.nio.YTFTPNioEngine;
+import com.github.ansa89.ytftp.core.protocol.YTFTPOptions;
+import com.github.ansa89.ytftp.core.protocol.YTFTPPackets;
+import com.github.ansa89.ytftp.core.protocol.YTFTPReusePortSocketFactory;
+import com.github.ansa89.ytftp.core.protocol.YTFTPSocket;
+import com.github.ansa89.ytftp.core.ratelimit.YTFTPRateLimit;
+import com.github.ansa89.ytftp.core.ratelimit.YTFTPRequestLimiter;
+import com.github.ansa89.ytftp.core.ratelimit.YTFTPTokenBucket;
+import com.github.ansa89.ytftp.core.storage.YTFTPContentProvider;
+import com.github.ansa89.ytftp.core.storage.YTFTPFileSystemStorage;
+import com.github.ansa89.ytftp.core.storage.YTFTPStorage;
+import com.github.ansa89.ytftp.core.timer.YTFTPTimerWheel;
 import lombok.Getter;
 import lombok.NonNull;
 import org.apache.commons.net.tftp.TFTP;
+import org.apache.commons.net.tftp.TFTPErrorPacket;
 import org.apache.commons.net.tftp.TFTPPacket;
+import org.apache.commons.net.tftp.TFTPPacketException;
+import org.apache.commons.net.tftp.TFTPRequestPacket;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 public class YTFTPServer implements Runnable, AutoCloseable {
     public static final YTFTPServerType DEFAULT_TYPE = YTFTPServerType.GET_ONLY;
     public static final int DEFAULT_PORT = 69;
+    public static final int DEFAULT_MAX_WINDOW_SIZE = 64;
+    public static final YTFTPExecutorType DEFAULT_EXECUTOR_TYPE = YTFTPExecutorType.PLATFORM_POOL;
+    public static final int DEFAULT_MAX_CONCURRENT_TRANSFERS = 512;
+    public static final int DEFAULT_WORKER_THREADS = 64;
+    public static final YTFTPEngineType DEFAULT_ENGINE_TYPE = YTFTPEngineType.THREADED;
+    public static final long DEFAULT_NETASCII_CACHE_SIZE = 16L * 1024 * 1024;
+    public static final long DEFAULT_RENDER_CACHE_SIZE = 16L * 1024 * 1024;
+    public static final long DEFAULT_RENDER_CACHE_TTL_MS = 60000;
+    public static final long DEFAULT_RENDER_TIMEOUT_MS = 5000;
+    public static final YTFTPRetransmitMode DEFAULT_RETRANSMIT_MODE = YTFTPRetransmitMode.FIXED;
+    public static final int DEFAULT_MIN_RETRANSMIT_TIMEOUT_MS = 100;
+    public static final int DEFAULT_MAX_RETRANSMIT_TIMEOUT_MS = 60000;
+    public static final YTFTPSyncMode DEFAULT_UPLOAD_SYNC_MODE = YTFTPFileSystemStorage.DEFAULT_SYNC_MODE;
+    public static final long DEFAULT_UPLOAD_SYNC_BYTES = YTFTPFileSystemStorage.DEFAULT_SYNC_BYTES;
+    public static final int DEFAULT_UPLOAD_BUFFER_SIZE = YTFTPFileSystemStorage.DEFAULT_BUFFER_SIZE;
+    public static final int DEFAULT_MULTICAST_PORT = 1758;
+    public static final int DEFAULT_MAX_MULTICAST_GROUPS = 16;
+    public static final int DEFAULT_MULTICAST_TTL = 1;
 
-    private static final Map<String, YTFTPWorker> workers = new HashMap<>();
     private volatile boolean running = false;
     private Throwable runningException;
-    private TFTP master;
-    private Thread masterThread;
+    // sockets receiving requests (listen threads for each address), each with its own thread
+    private final List<YTFTPSocket> listeners = new ArrayList<>();
+    private final List<Thread> listenerThreads = new ArrayList<>();
+    private ExecutorService executor;
+    private YTFTPNioEngine engine;
+    private YTFTPMulticastEngine multicast;
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    // requests whose transfer is running, to ignore retransmitted requests and to monitor transfers
+    private final YTFTPSessionRegistry sessions = new YTFTPSessionRegistry();
+    // storages used by transfers (those specified, or the directories)
+    private YTFTPStorage activeReadStorage;
+    private YTFTPStorage activeWriteStorage;
+    // generated files (null without content provider)
+    private YTFTPRenderCache dynamicContent;
+    // compressed files served in place of missing files of the read directory (null if disabled)
+    private YTFTPDecompressionCache decompressionCache;
+    // caches of resolved file names of the directories (shared if read and write directory are the same)
+    private final List<YTFTPPathCache> pathCaches = new ArrayList<>();
 
     @NonNull
     private final Path readDirectory;
@@ -60,13 +138,119 @@ public class YTFTPServer implements Runnable, AutoCloseable {
     private final YTFTPServerType type;
     @NonNull
     private final Integer port;
-    private InetAddress inetAddress;
+    private final List<InetAddress> inetAddresses = new ArrayList<>();
     @NonNull
     @Getter
     private Integer maxRetries = 3;
     @NonNull
     @Getter
     private Integer socketTimeoutMs = TFTP.DEFAULT_TIMEOUT;
+    @NonNull
+    @Getter
+    private Integer maxBlockSize = YTFTPOptions.MAX_BLOCK_SIZE;
+    @Getter
+    private Integer interfaceBlockSize;
+    @NonNull
+    @Getter
+    private Integer maxWindowSize = DEFAULT_MAX_WINDOW_SIZE;
+    @Getter
+    private Long maxUploadSize;
+    @NonNull
+    @Getter
+    private YTFTPSyncMode uploadSyncMode = DEFAULT_UPLOAD_SYNC_MODE;
+    @NonNull
+    @Getter
+    private Long uploadSyncBytes = DEFAULT_UPLOAD_SYNC_BYTES;
+    @NonNull
+    @Getter
+    private Integer uploadBufferSize = DEFAULT_UPLOAD_BUFFER_SIZE;
+    @NonNull
+    @Getter
+    private YTFTPExecutorType executorType = DEFAULT_EXECUTOR_TYPE;
+    private ExecutorService customExecutor;
+    @NonNull
+    @Getter
+    private Integer maxConcurrentTransfers = DEFAULT_MAX_CONCURRENT_TRANSFERS;
+    @NonNull
+    @Getter
+    private Integer workerThreads = DEFAULT_WORKER_THREADS;
+    @NonNull
+    @Getter
+    private YTFTPEngineType engineType = DEFAULT_ENGINE_TYPE;
+    @NonNull
+    @Getter
+    private Integer nioThreads = Runtime.getRuntime().availableProcessors();
+    @NonNull
+    @Getter
+    private Integer timerTickMs = YTFTPTimerWheel.DEFAULT_TICK_MS;
+    @NonNull
+    @Getter
+    private Integer listenThreads = 1;
+    @Getter
+    private YTFTPFileCache fileCache;
+    @Getter
+    private YTFTPFileCache netAsciiCache = new YTFTPFileCache(DEFAULT_NETASCII_CACHE_SIZE, true);
+    @Getter
+    private Integer pathCacheSize;
+    @Getter
+    private Long decompressionCacheSize;
+    @NonNull
+    @Getter
+    private List<YTFTPDecompressor> decompressors = Collections.singletonList(new YTFTPGzipDecompressor());
+    @Getter
+    private YTFTPStorage readStorage;
+    @Getter
+    private YTFTPStorage writeStorage;
+    @Getter
+    private YTFTPContentProvider contentProvider;
+    @NonNull
+    @Getter
+    private Long renderCacheSize = DEFAULT_RENDER_CACHE_SIZE;
+    @NonNull
+    @Getter
+    private Long renderCacheTtlMs = DEFAULT_RENDER_CACHE_TTL_MS;
+    @NonNull
+    @Getter
+    private Long renderTimeoutMs = DEFAULT_RENDER_TIMEOUT_MS;
+    @NonNull
+    @Getter
+    private YTFTPRetransmitMode retransmitMode = DEFAULT_RETRANSMIT_MODE;
+    @NonNull
+    @Getter
+    private Integer minRetransmitTimeoutMs = DEFAULT_MIN_RETRANSMIT_TIMEOUT_MS;
+    @NonNull
+    @Getter
+    private Integer maxRetransmitTimeoutMs = DEFAULT_MAX_RETRANSMIT_TIMEOUT_MS;
+    @Getter
+    private YTFTPRateLimit clientRequestLimit;
+    @Getter
+    private YTFTPRateLimit subnetRequestLimit;
+    @Getter
+    private YTFTPRateLimit serverRequestLimit;
+    @Getter
+    private int ipv4SubnetPrefixLength = YTFTPRequestLimiter.DEFAULT_IPV4_PREFIX_LENGTH;
+    @Getter
+    private int ipv6SubnetPrefixLength = YTFTPRequestLimiter.DEFAULT_IPV6_PREFIX_LENGTH;
+    @Getter
+    private YTFTPRateLimit sessionBandwidthLimit;
+    @Getter
+    private YTFTPRateLimit serverBandwidthLimit;
+    private YTFTPRequestLimiter requestLimiter;
+    private YTFTPTokenBucket serverBandwidth;
+    @NonNull
+    @Getter
+    private YTFTPMetrics metrics = new YTFTPServerMetrics();
+    @Getter
+    private boolean jmxEnabled = true;
+    @Getter
+    private InetAddress multicastAddress;
+    @Getter
+    private int multicastPort = DEFAULT_MULTICAST_PORT;
+    @Getter
+    private int maxMulticastGroups = DEFAULT_MAX_MULTICAST_GROUPS;
+    @Getter
+    private int multicastTtl = DEFAULT_MULTICAST_TTL;
+    private ObjectName jmxName;
 
 
     /**
@@ -79,11 +263,33 @@ public class YTFTPServer implements Runnable, AutoCloseable {
      * @param inetAddress          local address to bind to
      */
     public YTFTPServer(Path serverReadDirectory, Path serverWriteDirectory, YTFTPServerType type, int port, InetAddress inetAddress) {
+        this(serverReadDirectory, serverWriteDirectory, type, port, inetAddress != null ? Collections.singletonList(inetAddress) : Collections.<InetAddress>emptyList());
+    }
+
+    /**
+     * Create a TFTP server listening on several addresses (e.g. an IPv4 and an IPv6 address).
+     *
+     * @param serverReadDirectory  directory for GET requests
+     * @param serverWriteDirectory directory for PUT requests
+     * @param type                 server type
+     * @param port                 local port to bind to
+     * @param inetAddresses        local addresses to bind to (empty list for wildcard address), the smallest MTU of
+     *                             their interfaces will be used to compute the default block size limit
+     */
+    public YTFTPServer(Path serverReadDirectory, Path serverWriteDirectory, YTFTPServerType type, int port, @NonNull List<InetAddress> inetAddresses) {
         this.readDirectory = serverReadDirectory;
         this.writeDirectory = serverWriteDirectory;
         this.type = type;
         this.port = port;
-        this.inetAddress = inetAddress;
+
+        for (InetAddress inetAddress : inetAddresses) {
+            try {
+                addAddress(NetworkInterface.getByInetAddress(inetAddress), inetAddress);
+            } catch (SocketException e) {
+                YTFTPLogger.warn("Cannot find network interface of {}", inetAddress.getHostAddress(), e);
+                addAddress(null, inetAddress);
+            }
+        }
     }
 
     /**
@@ -93,7 +299,8 @@ public class YTFTPServer implements Runnable, AutoCloseable {
      * @param serverWriteDirectory directory for PUT requests
      * @param type                 server type
      * @param port                 local port to bind to
-     * @param iface                local network interface to bind to (interface's first address will be used)
+     * @param iface                local network interface to bind to (all interface's addresses, IPv4 and IPv6, will be
+     *                             used, and its MTU will be used to compute the default block size limit)
      */
     public YTFTPServer(Path serverReadDirectory, Path serverWriteDirectory, YTFTPServerType type, int port, NetworkInterface iface) {
         this.readDirectory = serverReadDirectory;
@@ -103,8 +310,7 @@ public class YTFTPServer implements Runnable, AutoCloseable {
 
         if (iface != null) {
             for (InterfaceAddress interfaceAddress : iface.getInterfaceAddresses()) {
-                inetAddress = interfaceAddress.getAddress();
-                break;
+                addAddress(iface, interfaceAddress.getAddress());
             }
         }
     }
@@ -159,6 +365,7 @@ public class YTFTPServer implements Runnable, AutoCloseable {
 
     /**
      * Set the socket timeout in milliseconds used in transfers.
+     * Clients can override it for a single transfer with the timeout option (RFC 2349).
      * Default TFTP.DEFAULT_TIMEOUT.
      *
      * @param socketTimeoutMs timeout in milliseconds, must be greater or equal than 10
@@ -173,135 +380,1109 @@ public class YTFTPServer implements Runnable, AutoCloseable {
     }
 
     /**
-     * Check if the server thread is still running.
+     * Set how the retransmission timeout is computed.
+     * FIXED always waits the socket timeout, ADAPTIVE estimates the round-trip time of each transfer (RFC 6298),
+     * starting from the socket timeout and doubling the timeout after each retransmission, within the minimum and
+     * maximum retransmission timeouts.
+     * Clients can still request a fixed timeout for a single transfer with the timeout option (RFC 2349).
+     * Default FIXED.
      *
-     * @return true if running, false otherwise
-     * @throws YTFTPError if the server has been stopped by an exception
+     * @param retransmitMode retransmission mode
      */
-    public boolean isRunning() {
-        if (!running && runningException != null) {
-            throw new YTFTPError("TFTP server stopped unexpectedly", runningException);
+    public void setRetransmitMode(@NonNull YTFTPRetransmitMode retransmitMode) {
+        this.retransmitMode = retransmitMode;
+    }
+
+    /**
+     * Set the lower bound of the adaptive retransmission timeout.
+     * Default 100ms.
+     *
+     * @param minRetransmitTimeoutMs timeout in milliseconds, must be greater or equal than 10
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setMinRetransmitTimeoutMs(@NonNull Integer minRetransmitTimeoutMs) {
+        if (minRetransmitTimeoutMs < 10 || minRetransmitTimeoutMs > maxRetransmitTimeoutMs) {
+            throw new YTFTPError("Specify a timeout value between 10ms and maximum retransmission timeout");
         }
 
-        return running;
+        this.minRetransmitTimeoutMs = minRetransmitTimeoutMs;
     }
 
     /**
-     * Start the TFTP server.
+     * Set the upper bound of the adaptive retransmission timeout (also limiting exponential backoff).
+     * Default 60000ms.
      *
-     * @throws YTFTPError if any error occurs during start
+     * @param maxRetransmitTimeoutMs timeout in milliseconds, must be greater or equal than minimum retransmission
+     *                               timeout
+     * @throws YTFTPError if an invalid values is specified
      */
-    public void start() {
-        if (type == YTFTPServerType.GET_AND_PUT || type == YTFTPServerType.GET_ONLY) {
-            if (!Files.exists(readDirectory) || !Files.isDirectory(readDirectory)) {
-                throw new YTFTPError("Read directory " + readDirectory.toString() + " does not exist");
-            }
+    public void setMaxRetransmitTimeoutMs(@NonNull Integer maxRetransmitTimeoutMs) {
+        if (maxRetransmitTimeoutMs < minRetransmitTimeoutMs) {
+            throw new YTFTPError("Specify a timeout value greater or equal than minimum retransmission timeout");
+        }
 
-            if (!Files.isReadable(readDirectory)) {
-                throw new YTFTPError("Cannot read directory " + readDirectory.toString());
-            }
+        this.maxRetransmitTimeoutMs = maxRetransmitTimeoutMs;
+    }
+
+    /**
+     * Set the maximum block size accepted in blksize negotiation (RFC 2348).
+     * Default 65464.
+     *
+     * @param maxBlockSize block size, must be between 8 and 65464
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setMaxBlockSize(@NonNull Integer maxBlockSize) {
+        if (maxBlockSize < YTFTPOptions.MIN_BLOCK_SIZE || maxBlockSize > YTFTPOptions.MAX_BLOCK_SIZE) {
+            throw new YTFTPError("Specify a block size between " + YTFTPOptions.MIN_BLOCK_SIZE + " and " + YTFTPOptions.MAX_BLOCK_SIZE);
         }
 
-        if (type == YTFTPServerType.GET_AND_PUT || type == YTFTPServerType.PUT_ONLY) {
-            if (!Files.exists(writeDirectory) || !Files.isDirectory(writeDirectory)) {
-                throw new YTFTPError("Write directory " + writeDirectory.toString() + " does not exist");
-            }
+        this.maxBlockSize = maxBlockSize;
+    }
 
-            if (!Files.isWritable(writeDirectory)) {
-                throw new YTFTPError("Cannot write to directory " + writeDirectory.toString());
-            }
+    /**
+     * Set the default block size limit of the listening interface, used to avoid IP fragmentation.
+     * Default is computed from the interface MTU when the server is bound to a specific address or interface,
+     * otherwise only the maximum block size applies.
+     *
+     * @param interfaceBlockSize block size, must be between 8 and 65464 (null to disable)
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setInterfaceBlockSize(Integer interfaceBlockSize) {
+        if (interfaceBlockSize != null && (interfaceBlockSize < YTFTPOptions.MIN_BLOCK_SIZE || interfaceBlockSize > YTFTPOptions.MAX_BLOCK_SIZE)) {
+            throw new YTFTPError("Specify a block size between " + YTFTPOptions.MIN_BLOCK_SIZE + " and " + YTFTPOptions.MAX_BLOCK_SIZE);
         }
 
-        String msg = "Starting TFTP server:\n" +
-                "\t- type: " + type.name() + "\n" +
-                "\t- address: " + (inetAddress != null ? inetAddress.getHostAddress() : "0.0.0.0") + "\n" +
-                "\t- port: " + port + "\n" +
-                "\t- read dir: " + readDirectory.toString() + "\n" +
-                "\t- write dir: " + writeDirectory.toString();
-        YTFTPLogger.info(msg);
+        this.interfaceBlockSize = interfaceBlockSize;
+    }
 
-        master = new TFTP();
-        socketTimeoutMs = master.getDefaultTimeout();
-        master.setDefaultTimeout(0);
+    /**
+     * Set the maximum window size accepted in windowsize negotiation (RFC 7440).
+     * Windows are also limited to YTFTPOptions.MAX_WINDOW_BYTES of data, whatever the negotiated block size.
+     * Default 64.
+     *
+     * @param maxWindowSize window size, must be between 1 and 65535 (1 disables sliding window)
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setMaxWindowSize(@NonNull Integer maxWindowSize) {
+        if (maxWindowSize < 1 || maxWindowSize > YTFTPOptions.MAX_WINDOW_SIZE) {
+            throw new YTFTPError("Specify a window size between 1 and " + YTFTPOptions.MAX_WINDOW_SIZE);
+        }
 
-        try {
-            if (inetAddress != null) {
-                master.open(port, inetAddress);
-            } else {
-                master.open(port);
-            }
-        } catch (SocketException e) {
-            throw new YTFTPError("Error starting TFTP server", e);
+        this.maxWindowSize = maxWindowSize;
+    }
+
+    /**
+     * Set the maximum size of uploaded files.
+     * Uploads announcing a bigger size (tsize option) are rejected before any data is transferred, the others are
+     * aborted as soon as they exceed the limit.
+     * Default no limit (only free space of write directory is checked).
+     *
+     * @param maxUploadSize size in bytes, must be greater than 0 (null to disable)
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setMaxUploadSize(Long maxUploadSize) {
+        if (maxUploadSize != null && maxUploadSize <= 0) {
+            throw new YTFTPError("Specify an upload size greater than 0");
         }
 
-        masterThread = new Thread(this, "YTFTP-Master");
-        masterThread.setDaemon(true);
-        masterThread.start();
+        this.maxUploadSize = maxUploadSize;
     }
 
     /**
-     * Stop the TFTP server.
+     * Set when uploaded data is synced to disk.
+     * NEVER leaves it to the operating system, ON_CLOSE syncs each file before acknowledging its last block,
+     * EVERY_N_BYTES also syncs while the file is written (see setUploadSyncBytes), limiting the amount of dirty data.
+     * Default NEVER.
+     *
+     * @param uploadSyncMode sync mode
      */
-    public synchronized void shutdown() {
-        running = false;
+    public void setUploadSyncMode(@NonNull YTFTPSyncMode uploadSyncMode) {
+        this.uploadSyncMode = uploadSyncMode;
+    }
 
-        if (master != null) {
-            master.close();
+    /**
+     * Set the amount of data written between syncs with EVERY_N_BYTES sync mode.
+     * Default 8 MiB.
+     *
+     * @param uploadSyncBytes size in bytes, must be greater than 0
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setUploadSyncBytes(@NonNull Long uploadSyncBytes) {
+        if (uploadSyncBytes <= 0) {
+            throw new YTFTPError("Specify a size greater than 0");
         }
 
-        synchronized (workers) {
-            for (Map.Entry<String, YTFTPWorker> workerEntry : workers.entrySet()) {
-                workerEntry.getValue().close();
-            }
+        this.uploadSyncBytes = uploadSyncBytes;
+    }
 
-            workers.clear();
+    /**
+     * Set the amount of data of each upload buffered in memory waiting to be written.
+     * Blocks are acknowledged as soon as they are buffered, while disk threads write them behind in big chunks; when
+     * the buffer is full, acknowledgements wait for the disk. Uploaded data is written to a temporary file, which
+     * replaces the destination only when the upload completes.
+     * Default 1 MiB.
+     *
+     * @param uploadBufferSize size in bytes, must be greater or equal than 65536
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setUploadBufferSize(@NonNull Integer uploadBufferSize) {
+        if (uploadBufferSize < YTFTPFileWriter.CHUNK_SIZE) {
+            throw new YTFTPError("Specify a size greater or equal than " + YTFTPFileWriter.CHUNK_SIZE);
         }
 
-        if (masterThread != null) {
-            try {
-                masterThread.join(10000);
-            } catch (InterruptedException e) {
-                throw new YTFTPError("Error while trying to join master thread", e);
-            }
+        this.uploadBufferSize = uploadBufferSize;
+    }
+
+    /**
+     * Set the strategy used to run workers.
+     * PLATFORM_POOL uses a bounded pool of platform threads (see setWorkerThreads), VIRTUAL_THREADS uses a virtual
+     * thread for each transfer (requires Java 21 or later at runtime), CUSTOM uses the executor specified with
+     * setExecutorService.
+     * Default PLATFORM_POOL.
+     *
+     * @param executorType executor type
+     * @throws YTFTPError if CUSTOM is specified without an executor
+     */
+    public void setExecutorType(@NonNull YTFTPExecutorType executorType) {
+        if (executorType == YTFTPExecutorType.CUSTOM && customExecutor == null) {
+            throw new YTFTPError("Use setExecutorService to specify a custom executor");
         }
+
+        this.executorType = executorType;
     }
 
-    @Override
-    public void run() {
-        running = true;
+    /**
+     * Use a user-supplied executor to run workers (executor type will be set to CUSTOM).
+     * The executor is not shut down when the server stops.
+     *
+     * @param executorService executor
+     */
+    public void setExecutorService(@NonNull ExecutorService executorService) {
+        this.customExecutor = executorService;
+        this.executorType = YTFTPExecutorType.CUSTOM;
+    }
 
-        try {
-            while (running) {
-                int workerNum;
-                TFTPPacket tftpPacket = master.receive();
-                String workerId = UUID.randomUUID().toString();
-                YTFTPWorker worker = new YTFTPWorker(new YTFTPWorkerInfo(workerId, type, maxRetries, socketTimeoutMs, readDirectory, writeDirectory, tftpPacket));
-
-                synchronized (workers) {
-                    workers.put(workerId, worker);
-                    workerNum = workers.size();
-                }
+    /**
+     * Set the maximum number of transfers handled at the same time (running or waiting for a thread).
+     * Requests exceeding this limit are rejected with a TFTP error.
+     * Default 512.
+     *
+     * @param maxConcurrentTransfers number of transfers, must be greater than 0
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setMaxConcurrentTransfers(@NonNull Integer maxConcurrentTransfers) {
+        if (maxConcurrentTransfers < 1) {
+            throw new YTFTPError("Specify a number of transfers greater than 0");
+        }
 
-                Thread thread = new Thread(worker, "YTFTP-Wrk" + workerNum);
-                thread.setDaemon(true);
-                thread.start();
-            }
-        } catch (Throwable t) {
-            if (running) {
-                runningException = t;
-                throw new YTFTPError("Aborting TFTP server due to unexpected error", t);
-            }
-        } finally {
-            shutdown();
+        this.maxConcurrentTransfers = maxConcurrentTransfers;
+    }
+
+    /**
+     * Set the number of threads of the PLATFORM_POOL executor.
+     * Transfers exceeding this number wait in queue (up to the maximum number of concurrent transfers).
+     * Default 64.
+     *
+     * @param workerThreads number of threads, must be greater than 0
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setWorkerThreads(@NonNull Integer workerThreads) {
+        if (workerThreads < 1) {
+            throw new YTFTPError("Specify a number of threads greater than 0");
         }
+
+        this.workerThreads = workerThreads;
     }
 
-    @Override
-    public void close() {
-        shutdown();
+    /**
+     * Set the engine used to handle transfers.
+     * THREADED runs each transfer on its own worker (see setExecutorType), NIO multiplexes all transfers on a few
+     * event loop threads (see setNioThreads) using non-blocking sockets.
+     * Default THREADED.
+     *
+     * @param engineType engine type
+     */
+    public void setEngineType(@NonNull YTFTPEngineType engineType) {
+        this.engineType = engineType;
+    }
+
+    /**
+     * Set the number of event loop threads of the NIO engine.
+     * Default number of available processors.
+     *
+     * @param nioThreads number of threads, must be greater than 0
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setNioThreads(@NonNull Integer nioThreads) {
+        if (nioThreads < 1) {
+            throw new YTFTPError("Specify a number of threads greater than 0");
+        }
+
+        this.nioThreads = nioThreads;
+    }
+
+    /**
+     * Set the resolution of the deadlines of transfers run by the NIO engine (retransmissions, dally period, clients
+     * not answering): expired deadlines are handled up to one tick late.
+     * Default 10 milliseconds.
+     *
+     * @param timerTickMs tick in milliseconds, must be greater than 0
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setTimerTickMs(@NonNull Integer timerTickMs) {
+        if (timerTickMs < 1) {
+            throw new YTFTPError("Specify a tick greater than 0");
+        }
+
+        this.timerTickMs = timerTickMs;
+    }
+
+    /**
+     * Set the number of sockets listening for requests on each address, each with its own thread.
+     * With more than one socket the port is shared with SO_REUSEPORT, so that the kernel spreads requests of
+     * different clients among the sockets (and the cores running their threads); all sockets hand transfers over
+     * to the same engine.
+     * Default 1.
+     *
+     * @param listenThreads number of threads, must be greater than 0 (values greater than 1 require SO_REUSEPORT
+     *                      support, e.g. Linux 3.9 or later)
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setListenThreads(@NonNull Integer listenThreads) {
+        if (listenThreads < 1) {
+            throw new YTFTPError("Specify a number of threads greater than 0");
+        }
+
+        if (listenThreads > 1 && !YTFTPReusePortSocketFactory.isSupported()) {
+            throw new YTFTPError("SO_REUSEPORT is not supported on this platform, use a single listen thread");
+        }
+
+        this.listenThreads = listenThreads;
+    }
+
+    /**
+     * Set the size of the cache of files sent in octet mode, kept in memory outside the heap.
+     * Files bigger than the cache (or than 2 GiB) are always read from disk.
+     * Default no cache.
+     *
+     * @param fileCacheSize size in bytes, must be greater than 0 (null to disable the cache)
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setFileCacheSize(Long fileCacheSize) {
+        if (fileCacheSize != null && fileCacheSize <= 0) {
+            throw new YTFTPError("Specify a cache size greater than 0");
+        }
+
+        this.fileCache = fileCacheSize != null ? new YTFTPFileCache(fileCacheSize) : null;
+    }
+
+    /**
+     * Set the size of the cache of files sent in netascii mode, kept already converted in memory outside the heap.
+     * Converted files are also sent with their size (tsize option), while files bigger than the cache are converted
+     * while they are sent.
+     * Default 16 MiB.
+     *
+     * @param netAsciiCacheSize size in bytes, must be greater than 0 (null to disable the cache)
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setNetAsciiCacheSize(Long netAsciiCacheSize) {
+        if (netAsciiCacheSize != null && netAsciiCacheSize <= 0) {
+            throw new YTFTPError("Specify a cache size greater than 0");
+        }
+
+        this.netAsciiCache = netAsciiCacheSize != null ? new YTFTPFileCache(netAsciiCacheSize, true) : null;
+    }
+
+    /**
+     * Set the number of missing files remembered by the cache of resolved file names.
+     * The cache keeps the path and attributes of requested files (and remembers missing ones, up to the given number),
+     * so that repeated requests don't touch the file system; it watches read and write directories to forget changed
+     * files. Enable it only on local file systems, whose changes are reported to the WatchService.
+     * Default no cache.
+     *
+     * @param pathCacheSize number of entries, must be greater than 0 (null to disable the cache)
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setPathCacheSize(Integer pathCacheSize) {
+        if (pathCacheSize != null && pathCacheSize <= 0) {
+            throw new YTFTPError("Specify a number of entries greater than 0");
+        }
+
+        this.pathCacheSize = pathCacheSize;
+    }
+
+    /**
+     * Set the storage serving files of read requests (e.g. a YTFTPMemoryStorage or a YTFTPArchiveStorage), in place
+     * of the read directory.
+     * The file cache and netascii cache are used only with the read directory: other storages decide by themselves
+     * how files are kept.
+     * Default null (read directory).
+     *
+     * @param readStorage storage (null to use the read directory)
+     */
+    public void setReadStorage(YTFTPStorage readStorage) {
+        this.readStorage = readStorage;
+    }
+
+    /**
+     * Set the storage receiving files of write requests, in place of the write directory.
+     * Upload sync mode, sync bytes and buffer size are used only with the write directory.
+     * Default null (write directory).
+     *
+     * @param writeStorage storage (null to use the write directory)
+     */
+    public void setWriteStorage(YTFTPStorage writeStorage) {
+        this.writeStorage = writeStorage;
     }
 
-    protected static synchronized void removeWorker(String id) {
-        workers.remove(id);
+    /**
+     * Set the size of the cache of decompressed data of compressed files.
+     * When enabled, a missing file of the read directory is sent from the file with the same name plus the extension
+     * of a supported format (see setDecompressors), e.g. "boot.img" from "boot.img.gz", decompressing it while sent.
+     * The size of these files (tsize option) is known only after they have been sent once, and they are never sent
+     * with multicast before.
+     * Default null (compressed files are not served).
+     *
+     * @param decompressionCacheSize size in bytes, must be greater or equal than 256 KiB (null to disable)
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setDecompressionCacheSize(Long decompressionCacheSize) {
+        if (decompressionCacheSize != null && decompressionCacheSize < YTFTPDecompressionCache.DEFAULT_CHUNK_SIZE) {
+            throw new YTFTPError("Specify a cache size greater or equal than " + YTFTPDecompressionCache.DEFAULT_CHUNK_SIZE);
+        }
+
+        this.decompressionCacheSize = decompressionCacheSize;
+    }
+
+    /**
+     * Set the formats of compressed files, tried in order (see setDecompressionCacheSize).
+     * Default gzip only.
+     *
+     * @param decompressors decoders of supported formats, at least one
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setDecompressors(@NonNull List<YTFTPDecompressor> decompressors) {
+        if (decompressors.isEmpty()) {
+            throw new YTFTPError("Specify at least one format");
+        }
+
+        this.decompressors = Collections.unmodifiableList(new ArrayList<>(decompressors));
+    }
+
+    /**
+     * Set the provider of generated files (e.g. per-client boot configurations), asked for every read request before
+     * the read storage.
+     * Generated files are cached (see setRenderCacheSize and setRenderCacheTtlMs) and are never sent with multicast.
+     * Default null (no generated files).
+     *
+     * @param contentProvider provider (null for no generated files)
+     */
+    public void setContentProvider(YTFTPContentProvider contentProvider) {
+        this.contentProvider = contentProvider;
+    }
+
+    /**
+     * Set the size of the cache of generated files.
+     * Bigger files are generated for every request.
+     * Default 16 MiB.
+     *
+     * @param renderCacheSize size in bytes, must be greater than 0
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setRenderCacheSize(@NonNull Long renderCacheSize) {
+        if (renderCacheSize <= 0) {
+            throw new YTFTPError("Specify a cache size greater than 0");
+        }
+
+        this.renderCacheSize = renderCacheSize;
+    }
+
+    /**
+     * Set how long generated files are reused before being generated again.
+     * Default 60 seconds.
+     *
+     * @param renderCacheTtlMs time in milliseconds, must be greater or equal than 0 (0 to disable the cache)
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setRenderCacheTtlMs(@NonNull Long renderCacheTtlMs) {
+        if (renderCacheTtlMs < 0) {
+            throw new YTFTPError("Specify a time greater or equal than 0");
+        }
+
+        this.renderCacheTtlMs = renderCacheTtlMs;
+    }
+
+    /**
+     * Set how long the content provider is given to generate a file.
+     * Files are generated by dedicated threads: when the time expires the provider is interrupted and the request
+     * fails.
+     * Default 5 seconds.
+     *
+     * @param renderTimeoutMs time in milliseconds, must be greater than 0
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setRenderTimeoutMs(@NonNull Long renderTimeoutMs) {
+        if (renderTimeoutMs <= 0) {
+            throw new YTFTPError("Specify a timeout greater than 0");
+        }
+
+        this.renderTimeoutMs = renderTimeoutMs;
+    }
+
+    /**
+     * Set the rate of new requests accepted from each client address.
+     * Requests over the limit are rejected with an error, so that a single client cannot use all transfer slots.
+     * Default no limit.
+     *
+     * @param clientRequestLimit requests per second and burst (null for no limit)
+     */
+    public void setClientRequestLimit(YTFTPRateLimit clientRequestLimit) {
+        this.clientRequestLimit = clientRequestLimit;
+    }
+
+    /**
+     * Set the rate of new requests accepted from each subnet (see subnet prefix lengths).
+     * Default no limit.
+     *
+     * @param subnetRequestLimit requests per second and burst (null for no limit)
+     */
+    public void setSubnetRequestLimit(YTFTPRateLimit subnetRequestLimit) {
+        this.subnetRequestLimit = subnetRequestLimit;
+    }
+
+    /**
+     * Set the rate of new requests accepted from all clients.
+     * Default no limit.
+     *
+     * @param serverRequestLimit requests per second and burst (null for no limit)
+     */
+    public void setServerRequestLimit(YTFTPRateLimit serverRequestLimit) {
+        this.serverRequestLimit = serverRequestLimit;
+    }
+
+    /**
+     * Set the prefix length used to group IPv4 clients in subnets.
+     * Default 24.
+     *
+     * @param ipv4SubnetPrefixLength prefix length, must be between 0 and 32
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setIpv4SubnetPrefixLength(int ipv4SubnetPrefixLength) {
+        if (ipv4SubnetPrefixLength < 0 || ipv4SubnetPrefixLength > 32) {
+            throw new YTFTPError("Specify a prefix length between 0 and 32");
+        }
+
+        this.ipv4SubnetPrefixLength = ipv4SubnetPrefixLength;
+    }
+
+    /**
+     * Set the prefix length used to group IPv6 clients in subnets.
+     * Default 64.
+     *
+     * @param ipv6SubnetPrefixLength prefix length, must be between 0 and 128
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setIpv6SubnetPrefixLength(int ipv6SubnetPrefixLength) {
+        if (ipv6SubnetPrefixLength < 0 || ipv6SubnetPrefixLength > 128) {
+            throw new YTFTPError("Specify a prefix length between 0 and 128");
+        }
+
+        this.ipv6SubnetPrefixLength = ipv6SubnetPrefixLength;
+    }
+
+    /**
+     * Set the bandwidth used by each GET transfer.
+     * Blocks over the limit are delayed (without counting as retransmissions).
+     * Default no limit.
+     *
+     * @param sessionBandwidthLimit bytes per second and burst (null for no limit)
+     */
+    public void setSessionBandwidthLimit(YTFTPRateLimit sessionBandwidthLimit) {
+        this.sessionBandwidthLimit = sessionBandwidthLimit;
+    }
+
+    /**
+     * Set the bandwidth shared by all GET transfers.
+     * Default no limit.
+     *
+     * @param serverBandwidthLimit bytes per second and burst (null for no limit)
+     */
+    public void setServerBandwidthLimit(YTFTPRateLimit serverBandwidthLimit) {
+        this.serverBandwidthLimit = serverBandwidthLimit;
+    }
+
+    /**
+     * Set the receiver of server events.
+     * Default a YTFTPServerMetrics, which can be read with getMetrics or through JMX.
+     *
+     * @param metrics metrics implementation (YTFTPMetrics.NONE to disable metrics)
+     */
+    public void setMetrics(@NonNull YTFTPMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set if metrics are registered as a JMX MBean (com.github.ansa89.ytftp:type=Server,name=address:port) when the
+     * server starts.
+     * Only metrics implementing YTFTPServerMetricsMXBean can be registered.
+     * Default true.
+     *
+     * @param jmxEnabled true to register metrics
+     */
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    /**
+     * Enable multicast transfers (RFC 2090) for clients asking for them.
+     * Concurrent octet mode readers of the same file share a multicast group: blocks are sent once to the group and
+     * acknowledged by a master client, and when the master has the whole file the next client becomes master and
+     * gets the blocks it missed. Each file being sent uses a group, starting from the given address (see
+     * setMaxMulticastGroups); when no group is free, or the file has more than 65535 blocks, clients get a unicast
+     * transfer. Multicast packets are sent through the interface of the listening address.
+     * Default disabled.
+     *
+     * @param multicastAddress first multicast group address (null to disable)
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setMulticastAddress(InetAddress multicastAddress) {
+        if (multicastAddress != null && !multicastAddress.isMulticastAddress()) {
+            throw new YTFTPError("Specify a multicast address");
+        }
+
+        this.multicastAddress = multicastAddress;
+    }
+
+    /**
+     * Set the destination port of multicast packets.
+     * Default 1758.
+     *
+     * @param multicastPort port, must be between 1 and 65535
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setMulticastPort(int multicastPort) {
+        if (multicastPort < 1 || multicastPort > 65535) {
+            throw new YTFTPError("Specify a port between 1 and 65535");
+        }
+
+        this.multicastPort = multicastPort;
+    }
+
+    /**
+     * Set the number of multicast groups, that is the number of files sent with multicast at the same time.
+     * Default 16.
+     *
+     * @param maxMulticastGroups number of groups, must be greater than 0
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setMaxMulticastGroups(int maxMulticastGroups) {
+        if (maxMulticastGroups < 1) {
+            throw new YTFTPError("Specify a number of groups greater than 0");
+        }
+
+        this.maxMulticastGroups = maxMulticastGroups;
+    }
+
+    /**
+     * Set the time to live of multicast packets (1 keeps them in the local network).
+     * Default 1.
+     *
+     * @param multicastTtl time to live, must be between 0 and 255
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public void setMulticastTtl(int multicastTtl) {
+        if (multicastTtl < 0 || multicastTtl > 255) {
+            throw new YTFTPError("Specify a time to live between 0 and 255");
+        }
+
+        this.multicastTtl = multicastTtl;
+    }
+
+    /**
+     * Get the addresses the server listens on.
+     *
+     * @return unmodifiable list of addresses (empty for wildcard address)
+     */
+    public List<InetAddress> getListenAddresses() {
+        return Collections.unmodifiableList(inetAddresses);
+    }
+
+    /**
+     * Get the number of transfers currently handled by the server.
+     *
+     * @return number of running or queued transfers
+     */
+    public int getActiveTransfers() {
+        return activeTransfers.get();
+    }
+
+    /**
+     * Get the sessions of the transfers handled by the server, as a snapshot not updated by later changes.
+     *
+     * @return sessions
+     */
+    public List<YTFTPSession> getSessions() {
+        return sessions.getSessions();
+    }
+
+    /**
+     * Get a session of a request handled by the server.
+     *
+     * @param id id of the session
+     * @return session (null if the transfer is not running)
+     */
+    public YTFTPSession getSession(long id) {
+        return sessions.get(id);
+    }
+
+    /**
+     * Get the block size limit used in negotiations.
+     *
+     * @return minimum between maximum block size and interface block size
+     */
+    public int getEffectiveMaxBlockSize() {
+        return interfaceBlockSize != null ? Math.min(maxBlockSize, interfaceBlockSize) : maxBlockSize;
+    }
+
+    /**
+     * Check if the server thread is still running.
+     *
+     * @return true if running, false otherwise
+     * @throws YTFTPError if the server has been stopped by an exception
+     */
+    public boolean isRunning() {
+        if (!running && runningException != null) {
+            throw new YTFTPError("TFTP server stopped unexpectedly", runningException);
+        }
+
+        return running;
+    }
+
+    /**
+     * Start the TFTP server.
+     *
+     * @throws YTFTPError if any error occurs during start
+     */
+    public void start() {
+        if (readStorage == null && (type == YTFTPServerType.GET_AND_PUT || type == YTFTPServerType.GET_ONLY)) {
+            if (!Files.exists(readDirectory) || !Files.isDirectory(readDirectory)) {
+                throw new YTFTPError("Read directory " + readDirectory.toString() + " does not exist");
+            }
+
+            if (!Files.isReadable(readDirectory)) {
+                throw new YTFTPError("Cannot read directory " + readDirectory.toString());
+            }
+        }
+
+        if (writeStorage == null && (type == YTFTPServerType.GET_AND_PUT || type == YTFTPServerType.PUT_ONLY)) {
+            if (!Files.exists(writeDirectory) || !Files.isDirectory(writeDirectory)) {
+                throw new YTFTPError("Write directory " + writeDirectory.toString() + " does not exist");
+            }
+
+            if (!Files.isWritable(writeDirectory)) {
+                throw new YTFTPError("Cannot write to directory " + writeDirectory.toString());
+            }
+        }
+
+        decompressionCache = readStorage == null && decompressionCacheSize != null ? new YTFTPDecompressionCache(decompressionCacheSize, YTFTPDecompressionCache.DEFAULT_CHUNK_SIZE, decompressors) : null;
+        activeReadStorage = readStorage != null ? readStorage : new YTFTPFileSystemStorage(readDirectory, getPathCache(readDirectory, type != YTFTPServerType.PUT_ONLY), fileCache, netAsciiCache, decompressionCache, uploadSyncMode, uploadSyncBytes, uploadBufferSize);
+        dynamicContent = contentProvider != null ? new YTFTPRenderCache(contentProvider, renderCacheSize, renderCacheTtlMs, renderTimeoutMs) : null;
+        activeWriteStorage = writeStorage != null ? writeStorage : new YTFTPFileSystemStorage(writeDirectory, getPathCache(writeDirectory, type != YTFTPServerType.GET_ONLY), null, null, null, uploadSyncMode, uploadSyncBytes, uploadBufferSize);
+
+        YTFTPLogger.info(() -> "Starting TFTP server:\n" +
+                "\t- type: " + type.name() + "\n" +
+                "\t- address: " + describeAddresses() + "\n" +
+                "\t- port: " + port + "\n" +
+                "\t- listen threads: " + listenThreads + " per address\n" +
+                "\t- max block size: " + getEffectiveMaxBlockSize() + "\n" +
+                "\t- max window size: " + maxWindowSize + "\n" +
+                "\t- retransmit: " + (retransmitMode == YTFTPRetransmitMode.ADAPTIVE ? "ADAPTIVE (" + minRetransmitTimeoutMs + "-" + maxRetransmitTimeoutMs + "ms)" : "FIXED (" + socketTimeoutMs + "ms)") + "\n" +
+                "\t- engine: " + (engineType == YTFTPEngineType.NIO ? "NIO (" + nioThreads + " threads, " + timerTickMs + "ms timer tick)" : executorType.name()) + "\n" +
+                "\t- max concurrent transfers: " + maxConcurrentTransfers + "\n" +
+                "\t- request limits: " + describeLimit(clientRequestLimit) + " per client, " + describeLimit(subnetRequestLimit) + " per subnet (/" + ipv4SubnetPrefixLength + ", /" + ipv6SubnetPrefixLength + "), " + describeLimit(serverRequestLimit) + " per server\n" +
+                "\t- bandwidth limits: " + describeLimit(sessionBandwidthLimit) + " per transfer, " + describeLimit(serverBandwidthLimit) + " per server\n" +
+                "\t- uploads: sync " + uploadSyncMode.name() + (uploadSyncMode == YTFTPSyncMode.EVERY_N_BYTES ? " (" + uploadSyncBytes + " bytes)" : "") + ", " + uploadBufferSize + " bytes buffer\n" +
+                "\t- file cache: " + (fileCache != null ? fileCache.getMaxSize() + " bytes" : "disabled") + "\n" +
+                "\t- netascii cache: " + (netAsciiCache != null ? netAsciiCache.getMaxSize() + " bytes" : "disabled") + "\n" +
+                "\t- path cache: " + (pathCacheSize != null ? pathCacheSize + " missing files" : "disabled") + "\n" +
+                "\t- compressed files: " + (decompressionCache != null ? decompressors + " (cache " + decompressionCacheSize + " bytes)" : "disabled") + "\n" +
+                "\t- multicast: " + (multicastAddress != null ? multicastAddress.getHostAddress() + ":" + multicastPort + " (" + maxMulticastGroups + " groups, ttl " + multicastTtl + ")" : "disabled") + "\n" +
+                "\t- read storage: " + activeReadStorage + "\n" +
+                "\t- generated files: " + (contentProvider != null ? "enabled (cache " + renderCacheSize + " bytes, ttl " + renderCacheTtlMs + "ms, timeout " + renderTimeoutMs + "ms)" : "disabled") + "\n" +
+                "\t- write storage: " + activeWriteStorage);
+
+        requestLimiter = new YTFTPRequestLimiter(clientRequestLimit, subnetRequestLimit, serverRequestLimit, ipv4SubnetPrefixLength, ipv6SubnetPrefixLength);
+        serverBandwidth = serverBandwidthLimit != null ? serverBandwidthLimit.newBucket() : null;
+
+        registerMetrics();
+
+        try {
+            for (InetAddress inetAddress : inetAddresses.isEmpty() ? Collections.<InetAddress>singletonList(null) : inetAddresses) {
+                for (int i = 0; i < listenThreads; i++) {
+                    listeners.add(openListener(inetAddress));
+                }
+            }
+        } catch (SocketException e) {
+            shutdown();
+            throw new YTFTPError("Error starting TFTP server", e);
+        }
+
+        if (multicastAddress != null) {
+            multicast = new YTFTPMulticastEngine(multicastAddress, multicastPort, maxMulticastGroups, multicastTtl, getAddressOfFamily(multicastAddress));
+        }
+
+        if (engineType == YTFTPEngineType.NIO) {
+            // transfer channels are bound to the address each request has been received on
+            engine = new YTFTPNioEngine(nioThreads, null, timerTickMs);
+        } else {
+            executor = createExecutor();
+        }
+
+        running = true;
+        listenerThreads.add(new Thread(this, "YTFTP-Master"));
+
+        for (int i = 1; i < listeners.size(); i++) {
+            YTFTPSocket listener = listeners.get(i);
+            listenerThreads.add(new Thread(() -> listen(listener), "YTFTP-Master" + (i + 1)));
+        }
+
+        for (Thread thread : listenerThreads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the TFTP server.
+     */
+    public synchronized void shutdown() {
+        running = false;
+
+        for (YTFTPSocket listener : listeners) {
+            listener.close();
+        }
+
+        // sessions are removed when their transfer ends
+        for (YTFTPSession session : sessions.getSessions()) {
+            session.close();
+        }
+
+        if (multicast != null) {
+            multicast.close();
+        }
+
+        if (engine != null) {
+            engine.close();
+        }
+
+        for (YTFTPPathCache pathCache : pathCaches) {
+            pathCache.close();
+        }
+
+        pathCaches.clear();
+
+        if (executor != null && executorType != YTFTPExecutorType.CUSTOM) {
+            executor.shutdownNow();
+        }
+
+        unregisterMetrics();
+
+        for (Thread thread : listenerThreads) {
+            // a listener stopped by an error shuts the server down from its own thread
+            if (thread == Thread.currentThread()) {
+                continue;
+            }
+
+            try {
+                thread.join(10000);
+            } catch (InterruptedException e) {
+                throw new YTFTPError("Error while trying to join master thread", e);
+            }
+        }
+    }
+
+    /**
+     * Receive requests on the first listening socket (other sockets have their own threads), until the server is
+     * stopped.
+     */
+    @Override
+    public void run() {
+        listen(listeners.get(0));
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+    }
+
+    // receive requests and dispatch their transfers
+    private void listen(YTFTPSocket listener) {
+        // transfers answer from the address the request has been received on
+        InetAddress localAddress = listener.getLocalAddress().isAnyLocalAddress() ? null : listener.getLocalAddress();
+
+        try {
+            while (running) {
+                DatagramPacket datagram = listener.receiveDatagram();
+                int opcode = YTFTPPackets.getOpcode(listener.getReceivedData());
+
+                if (opcode != TFTPPacket.READ_REQUEST && opcode != TFTPPacket.WRITE_REQUEST) {
+                    // stray packet (e.g. late ACK of a terminated transfer), there is no transfer to start
+                    YTFTPLogger.debug(() -> "Ignoring unexpected TFTP packet from " + datagram.getAddress().getHostAddress() + ":" + datagram.getPort() + " (" + YTFTPPackets.describe(listener.getReceivedData()) + ")");
+                    continue;
+                }
+
+                TFTPRequestPacket tftpPacket;
+
+                try {
+                    tftpPacket = (TFTPRequestPacket) TFTPPacket.newTFTPPacket(datagram);
+                } catch (TFTPPacketException e) {
+                    YTFTPLogger.warn(() -> "Ignoring malformed TFTP packet from " + datagram.getAddress().getHostAddress() + ":" + datagram.getPort(), e);
+                    continue;
+                }
+
+                metrics.requestReceived(opcode == TFTPPacket.READ_REQUEST);
+                YTFTPSession session = sessions.register(tftpPacket);
+
+                if (session == null) {
+                    // client retransmitted its request before receiving the first answer of the transfer
+                    YTFTPLogger.debug(() -> "Ignoring duplicate TFTP request from " + tftpPacket.getAddress().getHostAddress() + ":" + tftpPacket.getPort() + " - " + tftpPacket.getFilename());
+
+                    if (multicast != null) {
+                        // clients not yet master do not acknowledge the OACK, it may have been lost
+                        multicast.onDuplicateRequest(tftpPacket);
+                    }
+
+                    continue;
+                }
+
+                if (!requestLimiter.tryAcquire(tftpPacket.getAddress())) {
+                    sessions.remove(session);
+                    rejectRequest(listener, tftpPacket, "Too many requests, retry later");
+                    continue;
+                }
+
+                YTFTPWorkerInfo workerInfo = new YTFTPWorkerInfo(session, type, maxRetries, socketTimeoutMs, activeReadStorage, activeWriteStorage, dynamicContent, tftpPacket, YTFTPOptions.parse(datagram), getEffectiveMaxBlockSize(), maxWindowSize, maxUploadSize, retransmitMode, minRetransmitTimeoutMs, maxRetransmitTimeoutMs, sessionBandwidthLimit, serverBandwidth, metrics, localAddress);
+                Runnable onDone = () -> {
+                    sessions.remove(session);
+                    activeTransfers.decrementAndGet();
+                };
+
+                if (activeTransfers.incrementAndGet() > maxConcurrentTransfers) {
+                    onDone.run();
+                    rejectRequest(listener, tftpPacket, "Server busy, too many transfers");
+                    continue;
+                }
+
+                // the multicast engine opens the file on its own threads, then falls back to unicast if needed
+                if (multicast != null && multicast.submit(workerInfo, onDone, () -> startTransfer(listener, workerInfo, onDone))) {
+                    continue;
+                }
+
+                startTransfer(listener, workerInfo, onDone);
+            }
+        } catch (Throwable t) {
+            if (running) {
+                runningException = t;
+                throw new YTFTPError("Aborting TFTP server due to unexpected error", t);
+            }
+        } finally {
+            if (running) {
+                shutdown();
+            }
+
+            // multicast threads rejecting requests check that the listener is open
+            synchronized (listener) {
+                listener.close();
+                listener.release();
+            }
+        }
+    }
+
+    // run a unicast transfer (called by the listener thread, or by the multicast engine)
+    private void startTransfer(YTFTPSocket listener, YTFTPWorkerInfo workerInfo, Runnable onDone) {
+        if (!running) {
+            onDone.run();
+            return;
+        }
+
+        if (engine != null) {
+            engine.submit(workerInfo, onDone);
+            return;
+        }
+
+        YTFTPWorker worker = new YTFTPWorker(workerInfo);
+        workerInfo.getSession().attach(worker);
+
+        try {
+            executor.execute(() -> {
+                try {
+                    worker.run();
+                } finally {
+                    onDone.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            onDone.run();
+            rejectRequest(listener, workerInfo.getTftpPacket(), "Server busy, cannot start transfer");
+        }
+    }
+
+    // notify the client that its request has not been accepted
+    private void rejectRequest(YTFTPSocket listener, TFTPPacket tftpPacket, String msg) {
+        YTFTPLogger.warn(() -> "Rejected TFTP request from " + tftpPacket.getAddress().getHostAddress() + ":" + tftpPacket.getPort() + " (" + msg + ")");
+        metrics.requestRejected();
+
+        try {
+            // the multicast engine may reject requests from its threads, the send buffer of the listener is shared
+            synchronized (listener) {
+                if (!listener.isOpen()) {
+                    return;
+                }
+
+                listener.sendError(tftpPacket.getAddress(), tftpPacket.getPort(), TFTPErrorPacket.UNDEFINED, msg);
+            }
+        } catch (IOException e) {
+            YTFTPLogger.debug("Error sending TFTP error packet", e);
+        }
+    }
+
+    private void registerMetrics() {
+        if (!jmxEnabled || !(metrics instanceof YTFTPServerMetricsMXBean)) {
+            return;
+        }
+
+        try {
+            String name = describeAddresses() + ":" + port;
+            jmxName = new ObjectName("com.github.ansa89.ytftp:type=Server,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, jmxName);
+        } catch (JMException e) {
+            YTFTPLogger.warn("Cannot register TFTP server metrics", e);
+            jmxName = null;
+        }
+    }
+
+    private void unregisterMetrics() {
+        if (jmxName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxName);
+        } catch (JMException e) {
+            YTFTPLogger.debug("Cannot unregister TFTP server metrics", e);
+        }
+
+        jmxName = null;
+    }
+
+    private String describeAddresses() {
+        if (inetAddresses.isEmpty()) {
+            return "0.0.0.0";
+        }
+
+        return inetAddresses.stream().map(InetAddress::getHostAddress).collect(Collectors.joining(","));
+    }
+
+    // path cache of a directory used by the server (null if disabled or not used)
+    private YTFTPPathCache getPathCache(Path directory, boolean used) {
+        if (pathCacheSize == null || !used) {
+            return null;
+        }
+
+        final Path absolute = directory.toAbsolutePath().normalize();
+
+        for (YTFTPPathCache pathCache : pathCaches) {
+            if (pathCache.getDirectory().equals(absolute)) {
+                return pathCache;
+            }
+        }
+
+        YTFTPPathCache pathCache = new YTFTPPathCache(absolute, pathCacheSize);
+        pathCaches.add(pathCache);
+        return pathCache;
+    }
+
+    private static String describeLimit(YTFTPRateLimit limit) {
+        return limit != null ? limit.getRate() + "/s (burst " + limit.getBurst() + ")" : "unlimited";
+    }
+
+    private ExecutorService createExecutor() {
+        switch (executorType) {
+            case VIRTUAL_THREADS:
+                try {
+                    // available since Java 21, looked up at runtime to keep compatibility with older versions
+                    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    throw new YTFTPError("Virtual threads are not supported by this Java runtime", e);
+                }
+            case CUSTOM:
+                return customExecutor;
+            default:
+                AtomicInteger threadNum = new AtomicInteger();
+                ThreadFactory threadFactory = runnable -> {
+                    Thread thread = new Thread(runnable, "YTFTP-Wrk" + threadNum.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                };
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(maxConcurrentTransfers), threadFactory);
+                pool.allowCoreThreadTimeOut(true);
+                return pool;
+        }
+    }
+
+    // listen on the address, keeping the smallest block size limit of all interfaces
+    private void addAddress(NetworkInterface iface, InetAddress address) {
+        inetAddresses.add(address);
+        Integer blockSize = getInterfaceBlockSize(iface, address);
+
+        if (blockSize != null && (interfaceBlockSize == null || blockSize < interfaceBlockSize)) {
+            interfaceBlockSize = blockSize;
+        }
+    }
+
+    // first listening address of the same family (null if there is none)
+    private InetAddress getAddressOfFamily(InetAddress address) {
+        for (InetAddress inetAddress : inetAddresses) {
+            if (inetAddress.getClass() == address.getClass()) {
+                return inetAddress;
+            }
+        }
+
+        return null;
+    }
+
+    private YTFTPSocket openListener(InetAddress address) throws SocketException {
+        YTFTPSocket listener = new YTFTPSocket(YTFTPOptions.MAX_BLOCK_SIZE);
+        listener.setDefaultTimeout(0);
+
+        if (listenThreads > 1) {
+            listener.setDatagramSocketFactory(new YTFTPReusePortSocketFactory());
+        }
+
+        try {
+            listener.open(port, address);
+        } catch (SocketException e) {
+            listener.close();
+            listener.release();
+            throw e;
+        }
+
+        return listener;
+    }
+
+    // largest block size fitting the interface MTU without IP fragmentation
+    private static Integer getInterfaceBlockSize(NetworkInterface iface, InetAddress address) {
+        try {
+            if (iface == null || iface.getMTU() <= 0) {
+                return null;
+            }
+
+            int ipHeader = address instanceof Inet6Address ? 40 : 20;
+            int blockSize = iface.getMTU() - ipHeader - 8 - YTFTPPackets.HEADER_SIZE;
+            return Math.max(YTFTPOptions.DEFAULT_BLOCK_SIZE, Math.min(blockSize, YTFTPOptions.MAX_BLOCK_SIZE));
+        } catch (SocketException e) {
+            YTFTPLogger.warn("Cannot read MTU of interface {}", iface.getName(), e);
+            return null;
+        }
     }
 }
@@ -0,0 +1,92 @@
+package com.github.ansa89.ytftp.core;
+
+/*
+ * YTFTPSession.java - Class representing a transfer requested by a client, from the request until the end of the
+ *                     transfer.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import org.apache.commons.net.tftp.TFTPReadRequestPacket;
+import org.apache.commons.net.tftp.TFTPRequestPacket;
+
+import java.net.InetAddress;
+
+@Getter
+public class YTFTPSession {
+    private final long id;
+    @NonNull
+    private final InetAddress address;
+    private final int port;
+    private final boolean read;
+    @NonNull
+    private final String filename;
+    private final long startTimeMs = System.currentTimeMillis();
+    // set when a later request of the client is a new one: the client has sent a packet of the transfer, or all data
+    // has been sent to it (its last ACK may be processed after its next request)
+    private volatile boolean established = false;
+    // worker running the transfer with blocking sockets (null with other engines)
+    @Getter(AccessLevel.NONE)
+    private volatile YTFTPWorker worker;
+
+    YTFTPSession(long id, TFTPRequestPacket request) {
+        this.id = id;
+        this.address = request.getAddress();
+        this.port = request.getPort();
+        this.read = request instanceof TFTPReadRequestPacket;
+        this.filename = request.getFilename();
+    }
+
+    /**
+     * Mark the session as established: a request received later from the same client is a new request, not a
+     * retransmission of this one.
+     */
+    public void markEstablished() {
+        if (!established) {
+            established = true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "#" + id + " " + (read ? "GET" : "PUT") + " " + address.getHostAddress() + ":" + port + " - " + filename;
+    }
+
+    // check if the request is a retransmission of the one of this session
+    boolean isRetransmission(TFTPRequestPacket request) {
+        return !established && read == (request instanceof TFTPReadRequestPacket) && filename.equals(request.getFilename());
+    }
+
+    void attach(YTFTPWorker worker) {
+        this.worker = worker;
+    }
+
+    // stop the transfer, if run by a worker
+    void close() {
+        final YTFTPWorker running = worker;
+
+        if (running != null) {
+            running.close();
+        }
+    }
+}
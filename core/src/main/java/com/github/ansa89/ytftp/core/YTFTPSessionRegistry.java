@@ -0,0 +1,130 @@
+package com.github.ansa89.ytftp.core;
+
+/*
+ * YTFTPSessionRegistry.java - Registry of the sessions of a server, by id and by client address and port, used to
+ *                             detect retransmitted requests and to monitor running transfers.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import lombok.NonNull;
+import lombok.Value;
+import org.apache.commons.net.tftp.TFTPRequestPacket;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class YTFTPSessionRegistry {
+    private final AtomicLong lastId = new AtomicLong();
+    private final Map<Long, YTFTPSession> sessions = new ConcurrentHashMap<>();
+    // last session of each client
+    private final Map<YTFTPClientKey, YTFTPSession> clients = new ConcurrentHashMap<>();
+
+    /**
+     * Register the session of a request.
+     * A request is a retransmission if the last session of the same client (address and port) has the same request
+     * and is not yet established; otherwise it replaces the last session of the client.
+     *
+     * @param request request received
+     * @return new session, or null if the request is a retransmission
+     */
+    public YTFTPSession register(@NonNull TFTPRequestPacket request) {
+        final YTFTPClientKey client = new YTFTPClientKey(request.getAddress(), request.getPort());
+        YTFTPSession current = clients.get(client);
+
+        if (current != null && current.isRetransmission(request)) {
+            return null;
+        }
+
+        final YTFTPSession session = new YTFTPSession(lastId.incrementAndGet(), request);
+
+        // retry if another session of the client has been registered or removed in the meantime
+        while (current == null ? clients.putIfAbsent(client, session) != null : !clients.replace(client, current, session)) {
+            current = clients.get(client);
+
+            if (current != null && current.isRetransmission(request)) {
+                return null;
+            }
+        }
+
+        sessions.put(session.getId(), session);
+        return session;
+    }
+
+    /**
+     * Remove a session (when its transfer is done or not started).
+     *
+     * @param session session to remove
+     */
+    public void remove(@NonNull YTFTPSession session) {
+        sessions.remove(session.getId(), session);
+        clients.remove(new YTFTPClientKey(session.getAddress(), session.getPort()), session);
+    }
+
+    /**
+     * Get a session.
+     *
+     * @param id id of the session
+     * @return session (null if not running)
+     */
+    public YTFTPSession get(long id) {
+        return sessions.get(id);
+    }
+
+    /**
+     * Get the last session of a client.
+     *
+     * @param address client address
+     * @param port    client port
+     * @return session (null if not running)
+     */
+    public YTFTPSession get(@NonNull InetAddress address, int port) {
+        return clients.get(new YTFTPClientKey(address, port));
+    }
+
+    /**
+     * Get the sessions running, as a snapshot not updated by later changes.
+     *
+     * @return sessions
+     */
+    public List<YTFTPSession> getSessions() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    /**
+     * Get the number of sessions running.
+     *
+     * @return number of sessions
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    @Value
+    private static class YTFTPClientKey {
+        @NonNull
+        InetAddress address;
+        int port;
+    }
+}
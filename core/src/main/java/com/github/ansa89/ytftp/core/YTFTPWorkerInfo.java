@@ -23,21 +23,28 @@ package com.github.ansa89.ytftp.core;
  */
 
 
+import com.github.ansa89.ytftp.core.cache.YTFTPRenderCache;
+import com.github.ansa89.ytftp.core.enums.YTFTPRetransmitMode;
 import com.github.ansa89.ytftp.core.enums.YTFTPServerType;
+import com.github.ansa89.ytftp.core.metrics.YTFTPMetrics;
+import com.github.ansa89.ytftp.core.protocol.YTFTPOptions;
+import com.github.ansa89.ytftp.core.ratelimit.YTFTPRateLimit;
+import com.github.ansa89.ytftp.core.ratelimit.YTFTPTokenBucket;
+import com.github.ansa89.ytftp.core.storage.YTFTPStorage;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.NonNull;
 import org.apache.commons.net.tftp.TFTPPacket;
 
-import java.nio.file.Path;
+import java.net.InetAddress;
 
 @Data
 @AllArgsConstructor
 @NoArgsConstructor
 public class YTFTPWorkerInfo {
     @NonNull
-    private String id;
+    private YTFTPSession session;
     @NonNull
     private YTFTPServerType mode;
     @NonNull
@@ -45,9 +52,30 @@ public class YTFTPWorkerInfo {
     @NonNull
     private Integer socketTimeoutMs;
     @NonNull
-    private Path readDirectory;
+    private YTFTPStorage readStorage;
     @NonNull
-    private Path writeDirectory;
+    private YTFTPStorage writeStorage;
+    // generated files, served in place of those of the read storage (null if none)
+    private YTFTPRenderCache dynamicContent;
     @NonNull
     private TFTPPacket tftpPacket;
+    @NonNull
+    private YTFTPOptions options;
+    @NonNull
+    private Integer maxBlockSize;
+    @NonNull
+    private Integer maxWindowSize;
+    private Long maxUploadSize;
+    @NonNull
+    private YTFTPRetransmitMode retransmitMode;
+    @NonNull
+    private Integer minRetransmitTimeoutMs;
+    @NonNull
+    private Integer maxRetransmitTimeoutMs;
+    private YTFTPRateLimit sessionBandwidthLimit;
+    private YTFTPTokenBucket serverBandwidth;
+    @NonNull
+    private YTFTPMetrics metrics;
+    // address the request was received on (null for wildcard address), transfers answer from it
+    private InetAddress localAddress;
 }
@@ -0,0 +1,583 @@
+package com.github.ansa89.ytftp.core.cache;
+
+/*
+ * YTFTPDecompressionCache.java - Size-bounded LRU cache of decompressed chunks of compressed files, shared by
+ *                                concurrent readers and retransmissions, with decoders reused across readers.
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import com.github.ansa89.ytftp.core.io.YTFTPDecompressor;
+import com.github.ansa89.ytftp.core.protocol.YTFTPBufferPool;
+import com.github.ansa89.ytftp.core.storage.YTFTPReadableFile;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class YTFTPDecompressionCache {
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    // idle decoders kept for each file, positioned where their last reader stopped
+    private static final int MAX_IDLE_DECODERS = 4;
+
+    @Getter
+    private final long maxSize;
+    @Getter
+    private final int chunkSize;
+    @Getter
+    private final List<YTFTPDecompressor> decompressors;
+    // chunks and their references are guarded by this map
+    private final Map<YTFTPChunkKey, YTFTPChunk> chunks = new LinkedHashMap<>(16, 0.75f, true);
+    // compressed files being read, by path
+    private final Map<Path, YTFTPCompressedFile> files = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder restarts = new LongAdder();
+    private long size = 0;
+
+    /**
+     * Create a cache.
+     *
+     * @param maxSize       maximum size of cached chunks in bytes, must be greater or equal than chunk size
+     * @param chunkSize     size of decompressed chunks, must be greater than 0
+     * @param decompressors decoders of supported formats, tried in order
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public YTFTPDecompressionCache(long maxSize, int chunkSize, @NonNull List<YTFTPDecompressor> decompressors) {
+        if (chunkSize <= 0) {
+            throw new YTFTPError("Specify a chunk size greater than 0");
+        }
+
+        if (maxSize < chunkSize) {
+            throw new YTFTPError("Specify a cache size greater or equal than the chunk size");
+        }
+
+        this.maxSize = maxSize;
+        this.chunkSize = chunkSize;
+        this.decompressors = Collections.unmodifiableList(new ArrayList<>(decompressors));
+    }
+
+    /**
+     * Open a compressed file for reading its decompressed content.
+     * Content is decompressed in chunks while read, and chunks are cached for other readers. The size of the
+     * decompressed content is known only after a reader reaches its end.
+     *
+     * @param path         compressed file
+     * @param attributes   current attributes of the compressed file
+     * @param decompressor decoder of the file format
+     * @return reader of decompressed content
+     */
+    public YTFTPReadableFile open(@NonNull Path path, @NonNull BasicFileAttributes attributes, @NonNull YTFTPDecompressor decompressor) {
+        final Path key = path.toAbsolutePath().normalize();
+        final YTFTPCompressedFile file = files.compute(key, (k, current) -> {
+            if (current != null && current.matches(attributes, decompressor)) {
+                return current;
+            }
+
+            if (current != null) {
+                // changed file, readers of the old content keep using it until they are closed
+                current.retire();
+            }
+
+            return new YTFTPCompressedFile(k, attributes, decompressor);
+        });
+
+        return new YTFTPChunkReader(file);
+    }
+
+    /**
+     * Get the number of chunks read from cache.
+     *
+     * @return number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the number of chunks that had to be decompressed.
+     *
+     * @return number of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Get the number of chunks removed from cache to make room for other chunks.
+     *
+     * @return number of evictions
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Get the number of times a file had to be decompressed again from its beginning, to get back an evicted chunk.
+     * A high value means the cache is too small for the readers of distant parts of files.
+     *
+     * @return number of restarts
+     */
+    public long getRestarts() {
+        return restarts.sum();
+    }
+
+    /**
+     * Get the size of cached chunks.
+     *
+     * @return size in bytes
+     */
+    public long getSize() {
+        synchronized (chunks) {
+            return size;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "YTFTPDecompressionCache(size=" + getSize() + "/" + maxSize + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + ", restarts=" + getRestarts() + ")";
+    }
+
+    // the chunk is referenced by the caller, who must release it
+    private YTFTPChunk getCached(YTFTPChunkKey key) {
+        synchronized (chunks) {
+            YTFTPChunk chunk = chunks.get(key);
+
+            if (chunk != null) {
+                chunk.refs++;
+            }
+
+            return chunk;
+        }
+    }
+
+    private boolean isCached(YTFTPChunkKey key) {
+        synchronized (chunks) {
+            return chunks.containsKey(key);
+        }
+    }
+
+    private void put(YTFTPChunkKey key, YTFTPChunk chunk) {
+        synchronized (chunks) {
+            chunk.refs++;
+            YTFTPChunk old = chunks.put(key, chunk);
+
+            if (old != null) {
+                size -= old.buffer.capacity();
+                release(old);
+            }
+
+            size += chunk.buffer.capacity();
+
+            // evict least recently used chunks (the new chunk is the most recent one), readers keep theirs
+            Iterator<YTFTPChunk> iterator = chunks.values().iterator();
+
+            while (size > maxSize && iterator.hasNext()) {
+                YTFTPChunk eldest = iterator.next();
+
+                if (eldest == chunk) {
+                    break;
+                }
+
+                iterator.remove();
+                size -= eldest.buffer.capacity();
+                release(eldest);
+                evictions.increment();
+            }
+        }
+    }
+
+    // the buffer is returned to the pool when neither the cache nor a reader references the chunk
+    private void release(YTFTPChunk chunk) {
+        synchronized (chunks) {
+            if (chunk != YTFTPChunk.EMPTY && --chunk.refs == 0) {
+                YTFTPBufferPool.heap().release(chunk.buffer);
+            }
+        }
+    }
+
+    // decompressed data in a pooled buffer (between 0 and limit)
+    private static final class YTFTPChunk {
+        // past the end of file
+        private static final YTFTPChunk EMPTY = new YTFTPChunk(ByteBuffer.allocate(0));
+
+        private final ByteBuffer buffer;
+        // references of the cache and of readers
+        private int refs = 1;
+
+        private YTFTPChunk(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private int length() {
+            return buffer.limit();
+        }
+    }
+
+    // chunks are identified by the (version of the) file they belong to
+    private static final class YTFTPChunkKey {
+        private final YTFTPCompressedFile file;
+        private final long index;
+
+        private YTFTPChunkKey(YTFTPCompressedFile file, long index) {
+            this.file = file;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof YTFTPChunkKey)) {
+                return false;
+            }
+
+            YTFTPChunkKey other = (YTFTPChunkKey) o;
+            return file == other.file && index == other.index;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(file) * 31 + Long.hashCode(index);
+        }
+    }
+
+    // decoder positioned before a chunk
+    private static final class YTFTPDecoder {
+        private final InputStream stream;
+        private long next = 0;
+
+        private YTFTPDecoder(InputStream stream) {
+            this.stream = stream;
+        }
+
+        private void close() {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    // a version of a compressed file, with its decoders (guarded by this)
+    private final class YTFTPCompressedFile {
+        private final Path path;
+        private final Object fileKey;
+        private final long compressedSize;
+        private final long lastModified;
+        private final YTFTPDecompressor decompressor;
+        private final List<YTFTPDecoder> idle = new ArrayList<>();
+        private final List<YTFTPDecoder> busy = new ArrayList<>();
+        // decompressed size, once a decoder reached the end
+        private volatile long size = -1;
+        private boolean retired = false;
+
+        private YTFTPCompressedFile(Path path, BasicFileAttributes attributes, YTFTPDecompressor decompressor) {
+            this.path = path;
+            this.fileKey = attributes.fileKey();
+            this.compressedSize = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.decompressor = decompressor;
+        }
+
+        private boolean matches(BasicFileAttributes attributes, YTFTPDecompressor decompressor) {
+            return this.decompressor == decompressor && Objects.equals(fileKey, attributes.fileKey()) && compressedSize == attributes.size() && lastModified == attributes.lastModifiedTime().toMillis();
+        }
+
+        private synchronized void retire() {
+            retired = true;
+
+            for (YTFTPDecoder decoder : idle) {
+                decoder.close();
+            }
+
+            idle.clear();
+        }
+
+        // get a decompressed chunk (empty after the end of file), referenced by the caller
+        private YTFTPChunk getChunk(long index) throws IOException {
+            final YTFTPChunkKey key = new YTFTPChunkKey(this, index);
+            final long knownSize = size;
+
+            if (knownSize >= 0 && index * chunkSize >= knownSize) {
+                return YTFTPChunk.EMPTY;
+            }
+
+            while (true) {
+                YTFTPChunk chunk = getCached(key);
+
+                if (chunk != null) {
+                    hits.increment();
+                    return chunk;
+                }
+
+                final YTFTPDecoder decoder = acquireDecoder(key);
+
+                if (decoder != null) {
+                    return decodeUntil(decoder, index);
+                }
+
+                // produced by another reader meanwhile (retry if already evicted)
+            }
+        }
+
+        // advance the decoder up to the chunk; chunks decoded on the way are cached for readers behind
+        private YTFTPChunk decodeUntil(YTFTPDecoder decoder, long index) throws IOException {
+            boolean failed = true;
+
+            try {
+                YTFTPChunk chunk = null;
+
+                while (decoder.next <= index) {
+                    if (chunk != null) {
+                        // only cached
+                        release(chunk);
+                    }
+
+                    chunk = decode(decoder);
+                    put(new YTFTPChunkKey(this, decoder.next), chunk);
+                    misses.increment();
+
+                    synchronized (this) {
+                        decoder.next++;
+                        notifyAll();
+                    }
+
+                    if (chunk.length() < chunkSize) {
+                        // end of file
+                        size = (decoder.next - 1) * chunkSize + chunk.length();
+
+                        if (decoder.next - 1 < index) {
+                            release(chunk);
+                            chunk = YTFTPChunk.EMPTY;
+                        }
+
+                        break;
+                    }
+                }
+
+                failed = false;
+                return chunk;
+            } finally {
+                releaseDecoder(decoder, failed);
+            }
+        }
+
+        // take the decoder closest before the chunk (waiting for a busy one, which will produce the chunk on its way),
+        // or a new one; return null if the chunk has been cached while waiting (only storage threads decode, or wait for
+        // another decoder)
+        private synchronized YTFTPDecoder acquireDecoder(YTFTPChunkKey key) throws IOException {
+            while (true) {
+                if (isCached(key)) {
+                    return null;
+                }
+
+                YTFTPDecoder best = null;
+
+                for (YTFTPDecoder decoder : idle) {
+                    if (decoder.next <= key.index && (best == null || decoder.next > best.next)) {
+                        best = decoder;
+                    }
+                }
+
+                boolean waitBusy = false;
+
+                for (YTFTPDecoder decoder : busy) {
+                    if (decoder.next <= key.index && (best == null || decoder.next > best.next)) {
+                        waitBusy = true;
+                    }
+                }
+
+                if (waitBusy) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for decompressed data");
+                    }
+
+                    continue;
+                }
+
+                if (best != null) {
+                    idle.remove(best);
+                } else {
+                    if (key.index > 0) {
+                        // evicted chunk behind all decoders
+                        restarts.increment();
+                    }
+
+                    best = new YTFTPDecoder(decompressor.decompress(Files.newInputStream(path)));
+                }
+
+                busy.add(best);
+                return best;
+            }
+        }
+
+        private synchronized void releaseDecoder(YTFTPDecoder decoder, boolean failed) {
+            busy.remove(decoder);
+
+            if (failed || retired || size >= 0 && decoder.next * chunkSize >= size) {
+                decoder.close();
+            } else {
+                idle.add(decoder);
+
+                if (idle.size() > MAX_IDLE_DECODERS) {
+                    // drop the one furthest behind
+                    YTFTPDecoder oldest = Collections.min(idle, (a, b) -> Long.compare(a.next, b.next));
+                    idle.remove(oldest);
+                    oldest.close();
+                }
+            }
+
+            notifyAll();
+        }
+
+        private YTFTPChunk decode(YTFTPDecoder decoder) throws IOException {
+            final ByteBuffer buffer = YTFTPBufferPool.heap().acquire(chunkSize);
+            final byte[] data = buffer.array();
+            final int offset = buffer.arrayOffset();
+            int total = 0;
+
+            try {
+                while (total < chunkSize) {
+                    int read = decoder.stream.read(data, offset + total, chunkSize - total);
+
+                    if (read == -1) {
+                        break;
+                    }
+
+                    total += read;
+                }
+            } catch (IOException | RuntimeException e) {
+                YTFTPBufferPool.heap().release(buffer);
+                throw e;
+            }
+
+            buffer.limit(total);
+            return new YTFTPChunk(buffer);
+        }
+    }
+
+    // reader of decompressed content, keeping the current chunk for blocks read (or retransmitted) from it
+    private final class YTFTPChunkReader implements YTFTPReadableFile {
+        private final YTFTPCompressedFile file;
+        private final long size;
+        private YTFTPChunk chunk;
+        private long chunkIndex = -1;
+        // blocks spanning two chunks are copied here
+        private ByteBuffer scratch = ByteBuffer.allocate(0);
+
+        private YTFTPChunkReader(YTFTPCompressedFile file) {
+            this.file = file;
+            this.size = file.size;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        // chunks may have to be decompressed, or be waited for
+        @Override
+        public boolean isInMemory() {
+            return false;
+        }
+
+        @Override
+        public ByteBuffer read(long position, int length) throws IOException {
+            ByteBuffer first = getChunk(position / chunkSize);
+            int offset = (int) (position % chunkSize);
+
+            if (offset + length <= first.limit() || first.limit() < chunkSize) {
+                ByteBuffer view = first.asReadOnlyBuffer();
+                view.limit(Math.min(first.limit(), offset + length)).position(Math.min(offset, view.limit()));
+                return view;
+            }
+
+            if (scratch.capacity() < length) {
+                scratch = ByteBuffer.allocate(length);
+            }
+
+            scratch.clear().limit(length);
+            long next = position;
+
+            while (scratch.hasRemaining()) {
+                ByteBuffer current = getChunk(next / chunkSize);
+                int start = (int) (next % chunkSize);
+
+                if (start >= current.limit()) {
+                    break;
+                }
+
+                ByteBuffer part = current.duplicate();
+                part.position(start).limit(Math.min(current.limit(), start + scratch.remaining()));
+                next += part.remaining();
+                scratch.put(part);
+            }
+
+            return scratch.flip();
+        }
+
+        @Override
+        public void close() {
+            if (chunk != null) {
+                release(chunk);
+                chunk = null;
+                chunkIndex = -1;
+            }
+        }
+
+        private ByteBuffer getChunk(long index) throws IOException {
+            if (index != chunkIndex) {
+                final YTFTPChunk previous = chunk;
+                chunk = file.getChunk(index);
+                chunkIndex = index;
+
+                if (previous != null) {
+                    release(previous);
+                }
+            }
+
+            return chunk.buffer;
+        }
+
+        @Override
+        public String toString() {
+            return file.path.toString();
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package com.github.ansa89.ytftp.core.cache;
+
+/*
+ * YTFTPFileCache.java - Size-bounded LRU cache of files sent to clients, keeping content in direct
+ *                       buffers outside the heap.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import com.github.ansa89.ytftp.core.io.YTFTPFileReader;
+import com.github.ansa89.ytftp.core.io.YTFTPNetASCIIEncoder;
+import com.github.ansa89.ytftp.core.storage.YTFTPStorageThreads;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+public class YTFTPFileCache {
+    // content is kept in a single buffer
+    public static final long MAX_ENTRY_SIZE = Integer.MAX_VALUE;
+    // reads of a file that keeps changing, before it is read directly from disk
+    private static final int MAX_LOAD_ATTEMPTS = 3;
+
+    @Getter
+    private final long maxSize;
+    // cache NETASCII encoded content instead of raw content
+    @Getter
+    private final boolean netascii;
+    private final Map<Path, YTFTPCacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // loads in progress, shared by concurrent requests of the same file
+    private final Map<Path, CompletableFuture<YTFTPCacheEntry>> loading = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private long size = 0;
+
+    /**
+     * Create a cache of raw files.
+     *
+     * @param maxSize maximum size of cached content in bytes, must be greater than 0 (bigger files are not cached)
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public YTFTPFileCache(long maxSize) {
+        this(maxSize, false);
+    }
+
+    /**
+     * Create a cache.
+     *
+     * @param maxSize  maximum size of cached content in bytes, must be greater than 0 (bigger files are not cached)
+     * @param netascii true to cache NETASCII encoded files, false to cache raw files
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public YTFTPFileCache(long maxSize, boolean netascii) {
+        if (maxSize <= 0) {
+            throw new YTFTPError("Specify a cache size greater than 0");
+        }
+
+        this.maxSize = maxSize;
+        this.netascii = netascii;
+    }
+
+    /**
+     * Open a file for reading, loading (and eventually encoding) it in cache if needed.
+     * Cached content is reloaded when identity, size or modification time of the file change. Raw files bigger than
+     * the cache (or than MAX_ENTRY_SIZE) are read directly from disk, NETASCII files are not converted.
+     *
+     * @param path file to read
+     * @return reader, or null if the file is too big to be encoded in memory (NETASCII caches only)
+     * @throws FileNotFoundException if the file does not exist or is not a regular file
+     * @throws IOException           if an I/O error occurs
+     */
+    public YTFTPFileReader open(@NonNull Path path) throws IOException {
+        return await(openAsync(path));
+    }
+
+    /**
+     * Open a file for reading, whose attributes are already known (e.g. from a YTFTPPathCache).
+     *
+     * @param path       file to read
+     * @param attributes current attributes of the file
+     * @return reader, or null if the file is too big to be encoded in memory (NETASCII caches only)
+     * @throws FileNotFoundException if the file is not a regular file
+     * @throws IOException           if an I/O error occurs
+     */
+    public YTFTPFileReader open(@NonNull Path path, @NonNull BasicFileAttributes attributes) throws IOException {
+        return await(openAsync(path, attributes));
+    }
+
+    /**
+     * Open a file for reading without waiting for the disk: the file is looked up and read by storage threads.
+     *
+     * @param path file to read
+     * @return future completed as open(Path)
+     */
+    public CompletableFuture<YTFTPFileReader> openAsync(@NonNull Path path) {
+        final Path key = path.toAbsolutePath().normalize();
+        return YTFTPStorageThreads.submit(() -> readAttributes(key)).thenCompose(attributes -> openAsync(key, attributes));
+    }
+
+    /**
+     * Open a file for reading without waiting for the disk, whose attributes are already known.
+     * A request of a file being loaded by another request continues when the load completes, without holding a
+     * thread.
+     *
+     * @param path       file to read
+     * @param attributes current attributes of the file
+     * @return future completed as open(Path, BasicFileAttributes)
+     */
+    public CompletableFuture<YTFTPFileReader> openAsync(@NonNull Path path, @NonNull BasicFileAttributes attributes) {
+        final Path key = path.toAbsolutePath().normalize();
+
+        if (!attributes.isRegularFile()) {
+            return CompletableFuture.failedFuture(new FileNotFoundException(key + " (Not a regular file)"));
+        }
+
+        if (!isCacheable(attributes)) {
+            return openUncached(key, attributes);
+        }
+
+        YTFTPCacheEntry entry;
+
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+
+        if (entry != null && entry.matches(attributes)) {
+            hits.increment();
+            return CompletableFuture.completedFuture(YTFTPFileReader.wrap(entry.content));
+        }
+
+        final CompletableFuture<YTFTPCacheEntry> load = new CompletableFuture<>();
+        final CompletableFuture<YTFTPCacheEntry> pending = loading.putIfAbsent(key, load);
+
+        if (pending != null) {
+            // another request is already reading the file
+            return pending.thenCompose(loaded -> {
+                if (loaded == null) {
+                    return openUncached(key, null);
+                }
+
+                if (!loaded.matches(attributes)) {
+                    // file changed again, retry
+                    return openAsync(key, attributes);
+                }
+
+                hits.increment();
+                return CompletableFuture.completedFuture(YTFTPFileReader.wrap(loaded.content));
+            });
+        }
+
+        misses.increment();
+
+        YTFTPStorageThreads.submit(() -> load(key, attributes)).whenComplete((loaded, e) -> {
+            // encoded content can be bigger than the file
+            if (loaded != null && loaded.content.limit() <= maxSize) {
+                put(key, loaded);
+            }
+
+            loading.remove(key, load);
+
+            if (e != null) {
+                load.completeExceptionally(e);
+            } else {
+                load.complete(loaded);
+            }
+        });
+
+        return load.thenCompose(loaded -> loaded != null ? CompletableFuture.completedFuture(YTFTPFileReader.wrap(loaded.content)) : openUncached(key, null));
+    }
+
+    /**
+     * Remove all cached files.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * Get the number of requests served from cache (including requests waiting for a concurrent load).
+     *
+     * @return number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the number of requests that had to read the file from disk.
+     *
+     * @return number of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Get the number of files removed from cache to make room for other files.
+     *
+     * @return number of evictions
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Get the size of cached content.
+     *
+     * @return size in bytes
+     */
+    public long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    /**
+     * Get the number of cached files.
+     *
+     * @return number of files
+     */
+    public int getEntries() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "YTFTPFileCache(size=" + getSize() + "/" + maxSize + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + ")";
+    }
+
+    private void put(Path key, YTFTPCacheEntry entry) {
+        synchronized (entries) {
+            YTFTPCacheEntry old = entries.put(key, entry);
+
+            if (old != null) {
+                size -= old.content.limit();
+            }
+
+            size += entry.content.limit();
+
+            // evict least recently used files (the new entry is the most recent one)
+            Iterator<YTFTPCacheEntry> iterator = entries.values().iterator();
+
+            while (size > maxSize && iterator.hasNext()) {
+                YTFTPCacheEntry eldest = iterator.next();
+
+                if (eldest == entry) {
+                    break;
+                }
+
+                iterator.remove();
+                size -= eldest.content.limit();
+                evictions.increment();
+            }
+        }
+    }
+
+    // encoding can double the size of a file
+    private boolean isCacheable(BasicFileAttributes attributes) {
+        return attributes.size() <= maxSize && attributes.size() <= (netascii ? MAX_ENTRY_SIZE / 2 : MAX_ENTRY_SIZE);
+    }
+
+    // files not kept in cache are read directly from disk (attributes are read again if null)
+    private CompletableFuture<YTFTPFileReader> openUncached(Path path, BasicFileAttributes attributes) {
+        if (netascii) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return YTFTPStorageThreads.submit(() -> YTFTPFileReader.open(path, attributes != null ? attributes : readAttributes(path)));
+    }
+
+    // storage thread: the file is read again if it changes while read (a file rewritten in place would be cached with
+    // mixed content), null if it keeps changing or is no longer cacheable
+    private YTFTPCacheEntry load(Path path, BasicFileAttributes attributes) throws IOException {
+        BasicFileAttributes expected = attributes;
+
+        for (int attempt = 0; attempt < MAX_LOAD_ATTEMPTS; attempt++) {
+            final ByteBuffer content;
+
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                // raw content of encoded files is only needed during conversion
+                content = netascii ? ByteBuffer.allocate((int) expected.size()) : ByteBuffer.allocateDirect((int) expected.size());
+
+                while (content.hasRemaining() && channel.read(content) >= 0) {
+                    // read whole file
+                }
+            } catch (NoSuchFileException e) {
+                throw new FileNotFoundException(path + " (No such file or directory)");
+            }
+
+            final BasicFileAttributes current = readAttributes(path);
+
+            if (isSameVersion(expected, current)) {
+                content.flip();
+                return new YTFTPCacheEntry(netascii ? YTFTPNetASCIIEncoder.encode(content) : content, current);
+            }
+
+            if (!current.isRegularFile() || !isCacheable(current)) {
+                return null;
+            }
+
+            expected = current;
+        }
+
+        return null;
+    }
+
+    private static boolean isSameVersion(BasicFileAttributes a, BasicFileAttributes b) {
+        return Objects.equals(a.fileKey(), b.fileKey()) && a.size() == b.size() && a.lastModifiedTime().toMillis() == b.lastModifiedTime().toMillis();
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(path + " (No such file or directory)");
+        }
+    }
+
+    private static YTFTPFileReader await(CompletableFuture<YTFTPFileReader> open) throws IOException {
+        try {
+            return open.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for file", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw new YTFTPError("Error loading file in cache", e.getCause());
+        }
+    }
+
+    private static final class YTFTPCacheEntry {
+        private final ByteBuffer content;
+        // identity of the file (e.g. device and inode), if supported by the file system
+        private final Object fileKey;
+        private final long fileSize;
+        private final long lastModified;
+
+        private YTFTPCacheEntry(ByteBuffer content, BasicFileAttributes attributes) {
+            this.content = content;
+            this.fileKey = attributes.fileKey();
+            this.fileSize = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+        }
+
+        private boolean matches(BasicFileAttributes attributes) {
+            return Objects.equals(attributes.fileKey(), fileKey) && attributes.size() == fileSize && attributes.lastModifiedTime().toMillis() == lastModified;
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.github.ansa89.ytftp.core.cache;
+
+/*
+ * YTFTPPathCache.java - Cache of requested file names resolved inside a server directory, with file attributes and
+ *                       a bounded cache of missing files, invalidated by a WatchService.
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import com.github.ansa89.ytftp.core.io.YTFTPFileWriter;
+import com.github.ansa89.ytftp.core.log.YTFTPLogger;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class YTFTPPathCache implements Closeable {
+    @Getter
+    private final Path directory;
+    @Getter
+    private final int maxMissingEntries;
+    private final String separator;
+    // existing files and directories, by absolute path (sorted, to invalidate whole subtrees)
+    private final ConcurrentNavigableMap<String, YTFTPResolvedPath> found = new ConcurrentSkipListMap<>();
+    // missing files, least recently used first; also guards updates of both maps
+    private final LinkedHashMap<String, YTFTPResolvedPath> missing;
+    // incremented by each invalidation, lookups racing with one don't store their (maybe stale) result
+    private long generation = 0;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private final Thread watchThread;
+    private volatile boolean watching;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder missingHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create a cache of the given directory, watching it and all its subdirectories for changes.
+     * If the directory cannot be watched (e.g. the limit of watches of the system is reached), paths are resolved
+     * without caching.
+     *
+     * @param directory         root directory (requested file names are resolved inside it)
+     * @param maxMissingEntries maximum number of missing files remembered, must be greater than 0
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public YTFTPPathCache(@NonNull Path directory, int maxMissingEntries) {
+        if (maxMissingEntries <= 0) {
+            throw new YTFTPError("Specify a number of entries greater than 0");
+        }
+
+        this.directory = directory.toAbsolutePath().normalize();
+        this.maxMissingEntries = maxMissingEntries;
+        this.separator = this.directory.getFileSystem().getSeparator();
+        this.missing = new LinkedHashMap<String, YTFTPResolvedPath>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, YTFTPResolvedPath> eldest) {
+                return size() > YTFTPPathCache.this.maxMissingEntries;
+            }
+        };
+
+        WatchService service = null;
+
+        try {
+            service = this.directory.getFileSystem().newWatchService();
+            watchTree(service, this.directory);
+            watching = true;
+        } catch (IOException e) {
+            YTFTPLogger.warn("Cannot watch {} for changes, file names are resolved without cache", this.directory, e);
+            closeQuietly(service);
+            service = null;
+        }
+
+        this.watchService = service;
+        this.watchThread = service != null ? new Thread(this::processEvents, "YTFTP-PathWatch") : null;
+
+        if (watchThread != null) {
+            watchThread.setDaemon(true);
+            watchThread.start();
+        }
+    }
+
+    /**
+     * Resolve a requested file name, returning cached attributes if the file (or its absence) is already known.
+     * Changes are seen as soon as the WatchService reports them (immediately on Linux, with some delay on platforms
+     * where changes are polled).
+     *
+     * @param fileName requested file name
+     * @return resolved path
+     * @throws YTFTPError  if the path is outside the directory
+     * @throws IOException if file attributes cannot be read
+     */
+    public YTFTPResolvedPath resolve(@NonNull String fileName) throws IOException {
+        final Path path = directory.resolve(fileName).normalize();
+
+        if (!path.startsWith(directory)) {
+            throw new YTFTPError("Destination path is outside server directory");
+        }
+
+        return lookup(path);
+    }
+
+    /**
+     * Get the attributes of a path inside the directory (e.g. the parent of a resolved path).
+     *
+     * @param path absolute and normalized path inside the directory
+     * @return resolved path
+     * @throws IOException if file attributes cannot be read
+     */
+    public YTFTPResolvedPath lookup(@NonNull Path path) throws IOException {
+        final String key = path.toString();
+
+        if (!watching) {
+            return new YTFTPResolvedPath(path, readAttributes(path));
+        }
+
+        YTFTPResolvedPath entry = found.get(key);
+
+        if (entry != null) {
+            hits.increment();
+            return entry;
+        }
+
+        final long expectedGeneration;
+
+        synchronized (missing) {
+            entry = missing.get(key);
+
+            if (entry != null) {
+                missingHits.increment();
+                return entry;
+            }
+
+            expectedGeneration = generation;
+        }
+
+        misses.increment();
+        entry = new YTFTPResolvedPath(path, readAttributes(path));
+
+        synchronized (missing) {
+            if (generation == expectedGeneration) {
+                if (entry.exists()) {
+                    found.put(key, entry);
+                } else {
+                    missing.put(key, entry);
+                }
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Forget all cached paths.
+     */
+    public void clear() {
+        synchronized (missing) {
+            generation++;
+            found.clear();
+            missing.clear();
+        }
+    }
+
+    /**
+     * Check if the directory is watched (otherwise nothing is cached).
+     *
+     * @return true if watched
+     */
+    public boolean isWatching() {
+        return watching;
+    }
+
+    /**
+     * Get the number of lookups of existing files served from cache.
+     *
+     * @return number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the number of lookups of missing files served from cache.
+     *
+     * @return number of hits
+     */
+    public long getMissingHits() {
+        return missingHits.sum();
+    }
+
+    /**
+     * Get the number of lookups that had to read file attributes.
+     *
+     * @return number of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Get the number of cached paths.
+     *
+     * @return number of existing and missing files
+     */
+    public int getEntries() {
+        synchronized (missing) {
+            return found.size() + missing.size();
+        }
+    }
+
+    @Override
+    public void close() {
+        watching = false;
+        closeQuietly(watchService);
+        clear();
+    }
+
+    @Override
+    public String toString() {
+        return "YTFTPPathCache(entries=" + getEntries() + ", hits=" + getHits() + ", missingHits=" + getMissingHits() + ", misses=" + getMisses() + ")";
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            return null;
+        } catch (FileSystemException e) {
+            // a parent is a regular file
+            if (e.getReason() != null && e.getReason().contains("Not a directory")) {
+                return null;
+            }
+
+            throw e;
+        }
+    }
+
+    // register the directory and its subdirectories, except directories of files being uploaded (never served, and
+    // changing at each upload)
+    private void watchTree(WatchService service, Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (dir.getFileName() != null && dir.getFileName().toString().equals(YTFTPFileWriter.TEMP_DIRECTORY)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedDirectories.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                // removed while walking
+                if (e instanceof NoSuchFileException) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                throw e;
+            }
+        });
+    }
+
+    // watch thread: invalidate paths reported as changed
+    private void processEvents() {
+        try {
+            while (watching) {
+                final WatchKey key = watchService.take();
+                final Path dir = watchedDirectories.get(key);
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                        // events lost
+                        clear();
+                        continue;
+                    }
+
+                    final Path child = dir.resolve((Path) event.context());
+                    boolean newDirectory = false;
+
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                        try {
+                            watchTree(watchService, child);
+                            newDirectory = true;
+                        } catch (IOException e) {
+                            YTFTPLogger.warn("Cannot watch {} for changes, file names are resolved without cache", child, e);
+                            watching = false;
+                            clear();
+                            return;
+                        }
+                    }
+
+                    invalidate(child.toString(), newDirectory);
+                }
+
+                if (!key.reset()) {
+                    // directory deleted
+                    watchedDirectories.remove(key);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    // forget a path and the existing files below it; missing files below it are forgotten too when it is a new
+    // directory (files created inside it before it was watched are not reported)
+    private void invalidate(String key, boolean newDirectory) {
+        final String prefix = key + separator;
+
+        synchronized (missing) {
+            generation++;
+            found.remove(key);
+            found.subMap(prefix, key + (char) (separator.charAt(0) + 1)).clear();
+            missing.remove(key);
+
+            if (newDirectory) {
+                missing.keySet().removeIf(name -> name.startsWith(prefix));
+            }
+        }
+    }
+
+    private static void closeQuietly(WatchService service) {
+        if (service == null) {
+            return;
+        }
+
+        try {
+            service.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+}
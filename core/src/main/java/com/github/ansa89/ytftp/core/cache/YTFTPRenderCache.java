@@ -0,0 +1,339 @@
+package com.github.ansa89.ytftp.core.cache;
+
+/*
+ * YTFTPRenderCache.java - Cache of files generated by a content provider, bounded in size and with a time to
+ *                         live.
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import com.github.ansa89.ytftp.core.io.YTFTPFileReader;
+import com.github.ansa89.ytftp.core.storage.YTFTPContentProvider;
+import com.github.ansa89.ytftp.core.storage.YTFTPReadableFile;
+import com.github.ansa89.ytftp.core.storage.YTFTPStorage;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Value;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class YTFTPRenderCache {
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    // shared by all caches: a provider waiting (e.g. for a database) holds a render thread, never a transfer thread
+    private static final ExecutorService renderers = createRenderers();
+
+    @Getter
+    private final YTFTPContentProvider provider;
+    @Getter
+    private final long maxSize;
+    @Getter
+    private final long ttlMs;
+    @Getter
+    private final long timeoutMs;
+    private final Map<YTFTPRenderKey, YTFTPRenderEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // renders in progress, shared by concurrent requests of the same file
+    private final Map<YTFTPRenderKey, CompletableFuture<ByteBuffer>> rendering = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private long size = 0;
+
+    /**
+     * Create a cache of generated files, with the default timeout.
+     *
+     * @param provider provider generating files
+     * @param maxSize  maximum size of cached content in bytes, must be greater than 0 (bigger files are not cached)
+     * @param ttlMs    time generated content is reused, in milliseconds, must be greater or equal than 0 (0 to
+     *                 generate files for every request)
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public YTFTPRenderCache(@NonNull YTFTPContentProvider provider, long maxSize, long ttlMs) {
+        this(provider, maxSize, ttlMs, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * Create a cache of generated files.
+     *
+     * @param provider  provider generating files
+     * @param maxSize   maximum size of cached content in bytes, must be greater than 0 (bigger files are not cached)
+     * @param ttlMs     time generated content is reused, in milliseconds, must be greater or equal than 0 (0 to
+     *                  generate files for every request)
+     * @param timeoutMs time the provider is given to generate a file, in milliseconds, must be greater than 0 (the
+     *                  provider is then interrupted and the request fails)
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public YTFTPRenderCache(@NonNull YTFTPContentProvider provider, long maxSize, long ttlMs, long timeoutMs) {
+        if (maxSize <= 0) {
+            throw new YTFTPError("Specify a cache size greater than 0");
+        }
+
+        if (ttlMs < 0) {
+            throw new YTFTPError("Specify a time to live greater or equal than 0");
+        }
+
+        if (timeoutMs <= 0) {
+            throw new YTFTPError("Specify a timeout greater than 0");
+        }
+
+        this.provider = provider;
+        this.maxSize = maxSize;
+        this.ttlMs = ttlMs;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Open a generated file, generating it if not cached (or expired), and wait for it.
+     *
+     * @param fileName      requested file name
+     * @param clientAddress address of the client
+     * @return reader of generated content, or null if the provider doesn't generate the file
+     * @throws IOException if the provider fails or times out
+     */
+    public YTFTPReadableFile open(@NonNull String fileName, @NonNull InetAddress clientAddress) throws IOException {
+        return await(openAsync(fileName, clientAddress));
+    }
+
+    /**
+     * Open a generated file, generating it on a render thread if not cached (or expired).
+     * Concurrent requests of a file being generated share its render, without holding a thread.
+     *
+     * @param fileName      requested file name
+     * @param clientAddress address of the client
+     * @return future completed as open
+     */
+    public CompletableFuture<YTFTPReadableFile> openAsync(@NonNull String fileName, @NonNull InetAddress clientAddress) {
+        final String name = YTFTPStorage.normalizeName(fileName);
+
+        if (name == null) {
+            // invalid names are rejected by the storage
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final YTFTPRenderKey key = new YTFTPRenderKey(name, provider.isClientSpecific() ? clientAddress : null);
+
+        synchronized (entries) {
+            YTFTPRenderEntry entry = entries.get(key);
+
+            if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+                hits.increment();
+                return CompletableFuture.completedFuture(YTFTPFileReader.wrap(entry.content));
+            }
+        }
+
+        final CompletableFuture<ByteBuffer> render = new CompletableFuture<>();
+        final CompletableFuture<ByteBuffer> pending = rendering.putIfAbsent(key, render);
+
+        if (pending != null) {
+            // another request is already generating the file
+            hits.increment();
+            return pending.thenApply(YTFTPRenderCache::wrap);
+        }
+
+        misses.increment();
+
+        final Future<?> task = renderers.submit(() -> {
+            try {
+                final ByteBuffer content = generate(name, clientAddress);
+
+                // content generated after the timeout is dropped
+                if (content != null && ttlMs > 0 && content.limit() <= maxSize && !render.isDone()) {
+                    put(key, new YTFTPRenderEntry(content, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMs)));
+                }
+
+                render.complete(content);
+            } catch (IOException | RuntimeException e) {
+                render.completeExceptionally(e);
+            } finally {
+                rendering.remove(key, render);
+            }
+        });
+
+        CompletableFuture.delayedExecutor(timeoutMs, TimeUnit.MILLISECONDS).execute(() -> {
+            if (render.completeExceptionally(new IOException("Timeout generating " + name + " (" + timeoutMs + "ms)"))) {
+                rendering.remove(key, render);
+                task.cancel(true);
+            }
+        });
+
+        return render.thenApply(YTFTPRenderCache::wrap);
+    }
+
+    /**
+     * Remove all cached files (e.g. when the data used to generate them changes).
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * Get the number of requests served with cached content (including requests waiting for a concurrent render).
+     *
+     * @return number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the number of requests passed to the provider.
+     *
+     * @return number of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Get the number of files removed from cache to make room for other files.
+     *
+     * @return number of evictions
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Get the size of cached content.
+     *
+     * @return size in bytes
+     */
+    public long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "YTFTPRenderCache(size=" + getSize() + "/" + maxSize + ", ttl=" + ttlMs + "ms, timeout=" + timeoutMs + "ms, hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + ")";
+    }
+
+    private ByteBuffer generate(String name, InetAddress clientAddress) throws IOException {
+        final byte[] content;
+
+        try {
+            content = provider.generate(name, clientAddress);
+        } catch (RuntimeException e) {
+            throw new IOException("Error generating " + name, e);
+        }
+
+        return content != null ? ByteBuffer.wrap(content).asReadOnlyBuffer() : null;
+    }
+
+    private void put(YTFTPRenderKey key, YTFTPRenderEntry entry) {
+        synchronized (entries) {
+            YTFTPRenderEntry old = entries.put(key, entry);
+
+            if (old != null) {
+                size -= old.content.limit();
+            }
+
+            size += entry.content.limit();
+
+            // evict expired files first, then least recently used ones (the new entry is the most recent one)
+            final long now = System.nanoTime();
+            Iterator<YTFTPRenderEntry> iterator = entries.values().iterator();
+
+            while (iterator.hasNext()) {
+                YTFTPRenderEntry eldest = iterator.next();
+
+                if (eldest == entry) {
+                    break;
+                }
+
+                if (size > maxSize || eldest.expiresAt - now <= 0) {
+                    iterator.remove();
+                    size -= eldest.content.limit();
+
+                    if (eldest.expiresAt - now > 0) {
+                        evictions.increment();
+                    }
+                }
+            }
+        }
+    }
+
+    private static YTFTPReadableFile wrap(ByteBuffer content) {
+        return content != null ? YTFTPFileReader.wrap(content) : null;
+    }
+
+    private static YTFTPReadableFile await(CompletableFuture<YTFTPReadableFile> open) throws IOException {
+        try {
+            return open.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for file", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw new YTFTPError("Error generating file", e.getCause());
+        }
+    }
+
+    private static ExecutorService createRenderers() {
+        final int threads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+        final AtomicInteger threadNum = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "YTFTP-Render" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // content shared by all clients has no address
+    @Value
+    private static class YTFTPRenderKey {
+        @NonNull
+        String fileName;
+        InetAddress clientAddress;
+    }
+
+    private static final class YTFTPRenderEntry {
+        private final ByteBuffer content;
+        private final long expiresAt;
+
+        private YTFTPRenderEntry(ByteBuffer content, long expiresAt) {
+            this.content = content;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.github.ansa89.ytftp.core.cache;
+
+/*
+ * YTFTPResolvedPath.java - Requested file name resolved inside a server directory, with the attributes of the file
+ *                          (if it exists).
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import lombok.NonNull;
+import lombok.Value;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+@Value
+public class YTFTPResolvedPath {
+    // absolute and normalized
+    @NonNull
+    Path path;
+    // null if the file does not exist
+    BasicFileAttributes attributes;
+
+    public boolean exists() {
+        return attributes != null;
+    }
+
+    public boolean isRegularFile() {
+        return attributes != null && attributes.isRegularFile();
+    }
+
+    public boolean isDirectory() {
+        return attributes != null && attributes.isDirectory();
+    }
+}
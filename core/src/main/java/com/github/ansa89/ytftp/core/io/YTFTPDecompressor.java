@@ -0,0 +1,45 @@
+package com.github.ansa89.ytftp.core.io;
+
+/*
+ * YTFTPDecompressor.java - Decoder of a compression format, used to serve files from their compressed siblings.
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public interface YTFTPDecompressor {
+    /**
+     * Get the extension of compressed files, appended to the name of the plain file (e.g. ".gz").
+     *
+     * @return extension, including the dot
+     */
+    String getExtension();
+
+    /**
+     * Wrap a compressed stream into a stream of decompressed data.
+     * Formats not supported by the JDK can be plugged in by wrapping the stream of a third-party decoder (e.g. the
+     * ZstdInputStream of zstd-jni for ".zst" files).
+     *
+     * @param compressed compressed data (closed when the returned stream is closed)
+     * @return decompressed data
+     * @throws IOException if the stream cannot be decoded
+     */
+    InputStream decompress(InputStream compressed) throws IOException;
+}
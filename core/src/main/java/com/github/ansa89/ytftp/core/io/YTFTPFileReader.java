@@ -0,0 +1,239 @@
+package com.github.ansa89.ytftp.core.io;
+
+/*
+ * YTFTPFileReader.java - Positional reader of files sent to clients, backed by memory mappings shared
+ *                        between concurrent readers of the same file.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.log.YTFTPLogger;
+import com.github.ansa89.ytftp.core.storage.YTFTPReadableFile;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+public class YTFTPFileReader implements YTFTPReadableFile {
+    // files bigger than this are read with positional reads instead of being mapped
+    public static final long MAX_MAPPED_SIZE = Integer.MAX_VALUE;
+
+    private static final Map<Path, YTFTPSharedFile> files = new HashMap<>();
+
+    // null for in-memory content
+    private final YTFTPSharedFile file;
+    private final long size;
+    // private view of the content (mapped or in-memory), or buffer used for positional reads, reused for each block
+    private ByteBuffer view;
+    private final boolean positional;
+    private boolean closed = false;
+
+    private YTFTPFileReader(YTFTPSharedFile file, ByteBuffer content, long size) {
+        this.file = file;
+        this.size = size;
+        this.positional = content == null;
+        this.view = content != null ? content.duplicate() : ByteBuffer.allocate(0);
+    }
+
+    /**
+     * Open a file for reading.
+     * Readers of the same (unchanged) file share the same memory mapping, which is released when the last reader is
+     * closed.
+     *
+     * @param path file to read
+     * @return reader
+     * @throws java.io.FileNotFoundException if the file does not exist or is not a regular file
+     * @throws IOException                   if an I/O error occurs
+     */
+    public static YTFTPFileReader open(@NonNull Path path) throws IOException {
+        return open(path, null);
+    }
+
+    /**
+     * Open a file for reading, whose attributes are already known (e.g. from a YTFTPPathCache), so that a shared
+     * mapping is reused without reading them again.
+     *
+     * @param path       file to read
+     * @param attributes current attributes of the file (null to read them)
+     * @return reader
+     * @throws java.io.FileNotFoundException if the file does not exist or is not a regular file
+     * @throws IOException                   if an I/O error occurs
+     */
+    public static YTFTPFileReader open(@NonNull Path path, BasicFileAttributes attributes) throws IOException {
+        final Path key = path.toAbsolutePath().normalize();
+
+        synchronized (files) {
+            YTFTPSharedFile file = files.get(key);
+
+            if (file == null || file.isStale(attributes)) {
+                // a changed file gets a new mapping, readers of the old content keep using the old one
+                file = new YTFTPSharedFile(key);
+                files.put(key, file);
+            }
+
+            file.references++;
+            return new YTFTPFileReader(file, file.mapping, file.size);
+        }
+    }
+
+    /**
+     * Create a reader of in-memory content (e.g. a cached file).
+     *
+     * @param content content, between position 0 and limit (the buffer is not modified)
+     * @return reader
+     */
+    public static YTFTPFileReader wrap(@NonNull ByteBuffer content) {
+        return new YTFTPFileReader(null, content, content.limit());
+    }
+
+    /**
+     * Get the number of files currently shared between readers.
+     *
+     * @return number of open files
+     */
+    public static int getOpenFiles() {
+        synchronized (files) {
+            return files.size();
+        }
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Get a view of a file region, without copying data when the file is mapped or in memory.
+     * The returned buffer is reused by next calls.
+     *
+     * @param position offset of the region
+     * @param length   length of the region (truncated at the end of the file)
+     * @return buffer containing the region between position and limit
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public ByteBuffer read(long position, int length) throws IOException {
+        length = (int) Math.max(0, Math.min(length, size - position));
+
+        if (!positional) {
+            view.limit((int) position + length).position((int) position);
+            return view;
+        }
+
+        if (view.capacity() < length) {
+            view = ByteBuffer.allocate(length);
+        }
+
+        view.clear().limit(length);
+
+        while (view.hasRemaining()) {
+            if (file.channel.read(view, position + view.position()) < 0) {
+                break;
+            }
+        }
+
+        return view.flip();
+    }
+
+    @Override
+    public void close() {
+        if (file == null) {
+            return;
+        }
+
+        synchronized (files) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            if (--file.references == 0) {
+                files.remove(file.path, file);
+                file.close();
+            }
+        }
+    }
+
+    private static final class YTFTPSharedFile {
+        private final Path path;
+        private final long size;
+        private final long lastModified;
+        private final MappedByteBuffer mapping;
+        // kept open only for files too big to be mapped
+        private final FileChannel channel;
+        private int references = 0;
+
+        private YTFTPSharedFile(Path path) throws IOException {
+            this.path = path;
+
+            // throws FileNotFoundException (like FileInputStream) for missing files and directories
+            RandomAccessFile file = new RandomAccessFile(path.toFile(), "r");
+
+            try {
+                this.lastModified = Files.getLastModifiedTime(path).toMillis();
+                this.size = file.length();
+
+                if (size <= MAX_MAPPED_SIZE) {
+                    // the mapping stays valid after the channel is closed
+                    this.mapping = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    this.channel = null;
+                    file.close();
+                } else {
+                    this.mapping = null;
+                    this.channel = file.getChannel();
+                }
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        private boolean isStale(BasicFileAttributes attributes) {
+            try {
+                if (attributes == null) {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                }
+
+                return attributes.size() != size || attributes.lastModifiedTime().toMillis() != lastModified;
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        private void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    YTFTPLogger.debug("Error closing {}", path, e);
+                }
+            }
+        }
+    }
+}
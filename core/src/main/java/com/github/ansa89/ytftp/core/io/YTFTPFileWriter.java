@@ -0,0 +1,473 @@
+package com.github.ansa89.ytftp.core.io;
+
+/*
+ * YTFTPFileWriter.java - Writer of uploaded files, buffering data in memory and writing it to a temporary file from
+ *                        background threads, then moving the file to its final path when the upload completes.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.enums.YTFTPSyncMode;
+import com.github.ansa89.ytftp.core.log.YTFTPLogger;
+import com.github.ansa89.ytftp.core.protocol.YTFTPBufferPool;
+import com.github.ansa89.ytftp.core.storage.YTFTPWritableFile;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class YTFTPFileWriter implements YTFTPWritableFile {
+    // size of the buffers handed to disk threads
+    public static final int CHUNK_SIZE = 64 * 1024;
+    // hidden directory of files being uploaded, in the root of storages (files in it are never served)
+    public static final String TEMP_DIRECTORY = ".ytftp-tmp";
+
+    // disk threads shared by all uploads (each writer has at most one task running, so its data is written in order)
+    private static final ThreadPoolExecutor diskThreads = createDiskThreads();
+
+    @Getter
+    private final Path path;
+    private final Path tempPath;
+    private final FileChannel channel;
+    private final YTFTPSyncMode syncMode;
+    private final long syncBytes;
+    private final int maxChunks;
+    // chunks waiting to be written, chunks acquired (pending, being written or being filled) and disk thread state
+    // are guarded by this
+    private final Queue<ByteBuffer> pending = new ArrayDeque<>();
+    private int chunks = 0;
+    private boolean draining = false;
+    private IOException error;
+    // callback waiting for a free chunk, and callback of a commit waiting for data to be written
+    private Runnable onReady;
+    private Consumer<IOException> onCommitted;
+    // chunk being filled
+    private ByteBuffer current;
+    private long written = 0;
+    // disk thread only
+    private long unsynced = 0;
+    // set by the thread linking the file to its destination
+    private volatile boolean committed = false;
+    private boolean closed = false;
+
+    private YTFTPFileWriter(Path path, Path tempPath, FileChannel channel, YTFTPSyncMode syncMode, long syncBytes, int bufferSize) {
+        this.path = path;
+        this.tempPath = tempPath;
+        this.channel = channel;
+        this.syncMode = syncMode;
+        this.syncBytes = syncBytes;
+        this.maxChunks = Math.max(2, bufferSize / CHUNK_SIZE);
+    }
+
+    /**
+     * Create a writer of the given file.
+     * Data is written to a temporary file, linked to the destination by commit (so an existing destination is never
+     * replaced), or deleted if the writer is closed before.
+     *
+     * @param path            destination file
+     * @param tempDirectory   directory of the temporary file, on the same file system of the destination
+     * @param preallocateSize expected size of the file, to limit fragmentation (null if unknown)
+     * @param syncMode        when data is synced to disk
+     * @param syncBytes       amount of data written between syncs with EVERY_N_BYTES
+     * @param bufferSize      maximum amount of data buffered in memory waiting to be written
+     * @return writer
+     * @throws IOException if the temporary file cannot be created
+     */
+    public static YTFTPFileWriter open(@NonNull Path path, @NonNull Path tempDirectory, Long preallocateSize, @NonNull YTFTPSyncMode syncMode, long syncBytes, int bufferSize) throws IOException {
+        final Path tempPath = tempDirectory.resolve(path.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".part");
+        RandomAccessFile file = null;
+
+        // created with default permissions, as the destination would be
+        Files.createFile(tempPath);
+
+        try {
+            file = new RandomAccessFile(tempPath.toFile(), "rw");
+
+            if (preallocateSize != null && preallocateSize > 0) {
+                file.setLength(preallocateSize);
+            }
+
+            return new YTFTPFileWriter(path, tempPath, file.getChannel(), syncMode, syncBytes, bufferSize);
+        } catch (IOException e) {
+            if (file != null) {
+                file.close();
+            }
+
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+    }
+
+    /**
+     * Get the buffer where the next data must be put.
+     * Full buffers are handed to disk threads, waiting if the maximum amount of buffered data is reached.
+     *
+     * @param length amount of data that will be put
+     * @return buffer with at least length bytes remaining
+     * @throws IOException if a previous write failed
+     */
+    @Override
+    public ByteBuffer buffer(int length) throws IOException {
+        if (current != null && current.remaining() >= length) {
+            return current;
+        }
+
+        submit();
+        current = acquireChunk(length);
+        return current;
+    }
+
+    /**
+     * Get the buffer where the next data must be put.
+     * Full buffers are handed to disk threads; if the maximum amount of buffered data is reached, null is returned and
+     * onReady is invoked by the disk thread once a buffer is written.
+     *
+     * @param length  amount of data that will be put
+     * @param onReady callback invoked once a buffer is available, only if null has been returned
+     * @return buffer with at least length bytes remaining, or null
+     * @throws IOException if a previous write failed
+     */
+    @Override
+    public ByteBuffer tryBuffer(int length, @NonNull Runnable onReady) throws IOException {
+        if (current != null && current.remaining() >= length) {
+            return current;
+        }
+
+        submit();
+
+        synchronized (this) {
+            if (error != null) {
+                throw error;
+            }
+
+            if (chunks >= maxChunks) {
+                this.onReady = onReady;
+                return null;
+            }
+
+            chunks++;
+        }
+
+        current = YTFTPBufferPool.direct().acquire(Math.max(CHUNK_SIZE, length));
+        return current;
+    }
+
+    /**
+     * Write all data, then link the file to its destination.
+     *
+     * @throws FileAlreadyExistsException if the destination has been created in the meantime
+     * @throws IOException                if an I/O error occurs
+     */
+    @Override
+    public void commit() throws IOException {
+        submit();
+        awaitWritten();
+        publish();
+    }
+
+    /**
+     * Link the file to its destination once all data is written, from a disk thread.
+     *
+     * @param onDone callback invoked by the disk thread, with null or the error (FileAlreadyExistsException if the
+     *               destination has been created in the meantime)
+     */
+    @Override
+    public void commit(@NonNull Consumer<IOException> onDone) {
+        submit();
+
+        synchronized (this) {
+            onCommitted = onDone;
+
+            if (!draining) {
+                draining = true;
+                diskThreads.execute(this::drain);
+            }
+        }
+    }
+
+    /**
+     * Close the writer, discarding data if the file has not been committed.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        if (current != null) {
+            releaseChunks(current);
+            current = null;
+        }
+
+        try {
+            awaitWritten();
+        } catch (IOException e) {
+            // data is discarded anyway
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            YTFTPLogger.warn("Error closing {}", tempPath, e);
+        }
+
+        if (!committed) {
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch (IOException e) {
+                YTFTPLogger.warn("Error deleting {}", tempPath, e);
+            }
+        }
+    }
+
+    // hand the chunk being filled to a disk thread
+    private void submit() {
+        if (current == null) {
+            return;
+        }
+
+        ByteBuffer chunk = current;
+        current = null;
+
+        if (chunk.position() == 0) {
+            releaseChunks(chunk);
+            return;
+        }
+
+        chunk.flip();
+        written += chunk.remaining();
+
+        synchronized (this) {
+            pending.add(chunk);
+
+            if (!draining) {
+                draining = true;
+                diskThreads.execute(this::drain);
+            }
+        }
+    }
+
+    private ByteBuffer acquireChunk(int length) throws IOException {
+        synchronized (this) {
+            try {
+                while (chunks >= maxChunks && error == null) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting data to be written");
+            }
+
+            if (error != null) {
+                throw error;
+            }
+
+            chunks++;
+        }
+
+        return YTFTPBufferPool.direct().acquire(Math.max(CHUNK_SIZE, length));
+    }
+
+    private void releaseChunks(ByteBuffer... batch) {
+        final Runnable ready;
+
+        for (ByteBuffer chunk : batch) {
+            YTFTPBufferPool.direct().release(chunk);
+        }
+
+        synchronized (this) {
+            chunks -= batch.length;
+            notifyAll();
+            ready = onReady;
+            onReady = null;
+        }
+
+        if (ready != null) {
+            ready.run();
+        }
+    }
+
+    // wait until submitted data is written
+    private synchronized void awaitWritten() throws IOException {
+        try {
+            while (draining) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting data to be written");
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // disk thread: write pending chunks, all those accumulated since the previous write at once, then complete a
+    // commit waiting for them
+    private void drain() {
+        while (true) {
+            final ByteBuffer[] batch;
+            final boolean failed;
+
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    if (onCommitted != null) {
+                        break;
+                    }
+
+                    draining = false;
+                    notifyAll();
+                    return;
+                }
+
+                batch = pending.toArray(new ByteBuffer[0]);
+                pending.clear();
+                failed = error != null;
+            }
+
+            try {
+                if (!failed) {
+                    write(batch);
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    error = e;
+                }
+            }
+
+            releaseChunks(batch);
+        }
+
+        final Consumer<IOException> committing;
+        IOException result;
+
+        synchronized (this) {
+            committing = onCommitted;
+            onCommitted = null;
+            result = error;
+        }
+
+        if (result == null) {
+            try {
+                publish();
+            } catch (IOException e) {
+                result = e;
+            }
+        }
+
+        synchronized (this) {
+            draining = false;
+            notifyAll();
+        }
+
+        // invoked once no longer draining, so that the callback can close the writer
+        committing.accept(result);
+    }
+
+    // complete the written file and link it to its destination, failing if the destination exists (even if created
+    // after the upload started)
+    private void publish() throws IOException {
+        // release preallocated space not used
+        channel.truncate(written);
+
+        if (syncMode != YTFTPSyncMode.NEVER) {
+            channel.force(false);
+        }
+
+        channel.close();
+
+        try {
+            Files.createLink(path, tempPath);
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (FileSystemException | UnsupportedOperationException e) {
+            // no hard links (e.g. FAT), or the temporary directory is on another file system: fails only if the
+            // destination already exists when moving
+            Files.move(tempPath, path);
+            committed = true;
+            return;
+        }
+
+        committed = true;
+
+        try {
+            Files.delete(tempPath);
+        } catch (IOException e) {
+            YTFTPLogger.warn("Error deleting {}", tempPath, e);
+        }
+    }
+
+    private void write(ByteBuffer[] batch) throws IOException {
+        int first = 0;
+        long length = 0;
+
+        for (ByteBuffer chunk : batch) {
+            length += chunk.remaining();
+        }
+
+        while (first < batch.length) {
+            channel.write(batch, first, batch.length - first);
+
+            while (first < batch.length && !batch[first].hasRemaining()) {
+                first++;
+            }
+        }
+
+        if (syncMode == YTFTPSyncMode.EVERY_N_BYTES) {
+            unsynced += length;
+
+            if (unsynced >= syncBytes) {
+                channel.force(false);
+                unsynced = 0;
+            }
+        }
+    }
+
+    private static ThreadPoolExecutor createDiskThreads() {
+        final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        final AtomicInteger threadNum = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "YTFTP-Disk" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -0,0 +1,47 @@
+package com.github.ansa89.ytftp.core.io;
+
+/*
+ * YTFTPGzipDecompressor.java - Decoder of gzip compressed files (.gz).
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+public class YTFTPGzipDecompressor implements YTFTPDecompressor {
+    // size of the buffer of compressed data read from file
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Override
+    public String getExtension() {
+        return ".gz";
+    }
+
+    @Override
+    public InputStream decompress(InputStream compressed) throws IOException {
+        // concatenated members (e.g. written by pigz or appended files) are decoded as a single stream
+        return new GZIPInputStream(compressed, BUFFER_SIZE);
+    }
+
+    @Override
+    public String toString() {
+        return "gzip";
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.ansa89.ytftp.core.io;
+
+/*
+ * YTFTPNetASCIIDecoder.java - Block-oriented NETASCII decoder (RFC 764): CR LF is stored as the local line
+ *                             separator and CR NUL as CR.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import lombok.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class YTFTPNetASCIIDecoder {
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    // previous input byte was CR, its decoding depends on next byte
+    private boolean lastWasCR = false;
+
+    /**
+     * Get the space needed in the destination to decode some data.
+     *
+     * @param length length of data to decode
+     * @return maximum length of decoded data
+     */
+    public static int getMaxDecodedLength(int length) {
+        return (length + 1) * Math.max(1, LINE_SEPARATOR.length);
+    }
+
+    /**
+     * Decode a block of data.
+     * A CR at the end of the block is kept until next block is decoded.
+     *
+     * @param src data to decode (position is advanced to limit)
+     * @param dst destination of decoded data, with at least getMaxDecodedLength(src.remaining()) bytes remaining
+     */
+    public void decode(@NonNull ByteBuffer src, @NonNull ByteBuffer dst) {
+        while (src.hasRemaining()) {
+            byte b = src.get();
+
+            if (lastWasCR) {
+                lastWasCR = false;
+
+                if (b == '\n') {
+                    dst.put(LINE_SEPARATOR);
+                    continue;
+                }
+
+                dst.put((byte) '\r');
+
+                if (b == 0) {
+                    continue;
+                }
+            }
+
+            if (b == '\r') {
+                lastWasCR = true;
+            } else {
+                dst.put(b);
+            }
+        }
+    }
+
+    /**
+     * Terminate decoding, writing a trailing CR (not valid NETASCII, but kept as is).
+     *
+     * @param dst destination of decoded data, with at least 1 byte remaining
+     */
+    public void finish(@NonNull ByteBuffer dst) {
+        if (lastWasCR) {
+            lastWasCR = false;
+            dst.put((byte) '\r');
+        }
+    }
+}
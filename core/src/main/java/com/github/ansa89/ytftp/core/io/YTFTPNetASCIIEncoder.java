@@ -0,0 +1,128 @@
+package com.github.ansa89.ytftp.core.io;
+
+/*
+ * YTFTPNetASCIIEncoder.java - Block-oriented NETASCII encoder (RFC 764): LF is sent as CR LF and a bare CR
+ *                             as CR NUL.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import lombok.NonNull;
+
+import java.nio.ByteBuffer;
+
+public class YTFTPNetASCIIEncoder {
+    private static final int NO_PENDING = -1;
+    private static final int COUNT_BUFFER_SIZE = 8192;
+
+    // previous input byte was CR, its encoding depends on next byte
+    private boolean lastWasCR = false;
+    // output byte not yet written because destination was full
+    private int pending = NO_PENDING;
+
+    /**
+     * Encode a whole content.
+     *
+     * @param content data to encode (between position and limit, the buffer is not modified)
+     * @return direct buffer containing encoded data (between position 0 and limit)
+     */
+    public static ByteBuffer encode(@NonNull ByteBuffer content) {
+        // first pass computes encoded length, to allocate the exact size
+        ByteBuffer scratch = ByteBuffer.allocate(COUNT_BUFFER_SIZE);
+        ByteBuffer src = content.duplicate();
+        YTFTPNetASCIIEncoder encoder = new YTFTPNetASCIIEncoder();
+        long length = 0;
+
+        do {
+            scratch.clear();
+            encoder.encode(src, scratch, true);
+            length += scratch.position();
+        } while (!encoder.isDone(src));
+
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Encoded content too big (" + length + " bytes)");
+        }
+
+        ByteBuffer encoded = ByteBuffer.allocateDirect((int) length);
+        new YTFTPNetASCIIEncoder().encode(content.duplicate(), encoded, true);
+        return encoded.flip();
+    }
+
+    /**
+     * Encode as much data as possible.
+     *
+     * @param src        data to encode (position is advanced past consumed data)
+     * @param dst        destination of encoded data (position is advanced past written data)
+     * @param endOfInput true if src contains the last data of the content
+     */
+    public void encode(@NonNull ByteBuffer src, @NonNull ByteBuffer dst, boolean endOfInput) {
+        while (dst.hasRemaining()) {
+            if (pending != NO_PENDING) {
+                dst.put((byte) pending);
+                pending = NO_PENDING;
+                continue;
+            }
+
+            if (!src.hasRemaining()) {
+                if (endOfInput && lastWasCR) {
+                    // content ends with a bare CR
+                    lastWasCR = false;
+                    pending = 0;
+                    continue;
+                }
+
+                return;
+            }
+
+            byte b = src.get();
+
+            if (lastWasCR) {
+                lastWasCR = false;
+
+                if (b != '\n') {
+                    // bare CR, reprocess current byte after NUL
+                    src.position(src.position() - 1);
+                    pending = 0;
+                    continue;
+                }
+
+                dst.put(b);
+            } else if (b == '\r') {
+                lastWasCR = true;
+                dst.put(b);
+            } else if (b == '\n') {
+                dst.put((byte) '\r');
+                pending = '\n';
+            } else {
+                dst.put(b);
+            }
+        }
+    }
+
+    /**
+     * Check if all data has been encoded.
+     *
+     * @param src remaining data of the last call to encode, with endOfInput true
+     * @return true if no more output will be produced
+     */
+    public boolean isDone(@NonNull ByteBuffer src) {
+        return !src.hasRemaining() && !lastWasCR && pending == NO_PENDING;
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.ansa89.ytftp.core.io;
+
+/*
+ * YTFTPNetASCIIInputStream.java - Input stream converting data to NETASCII block by block, used for files too
+ *                                 big to be converted in memory.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+public class YTFTPNetASCIIInputStream extends FilterInputStream {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final YTFTPNetASCIIEncoder encoder = new YTFTPNetASCIIEncoder();
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).flip();
+    private boolean endOfInput = false;
+
+    public YTFTPNetASCIIInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+
+        while (dst.hasRemaining()) {
+            encoder.encode(buffer, dst, endOfInput);
+
+            if (endOfInput) {
+                break;
+            }
+
+            if (!buffer.hasRemaining()) {
+                fill();
+            }
+        }
+
+        int read = dst.position() - off;
+        return read == 0 && encoder.isDone(buffer) ? -1 : read;
+    }
+
+    @Override
+    public long skip(long n) {
+        throw new YTFTPError("Skip not supported by NETASCII stream");
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void fill() throws IOException {
+        buffer.clear();
+        int read = in.read(buffer.array(), 0, buffer.capacity());
+
+        if (read == -1) {
+            endOfInput = true;
+            read = 0;
+        }
+
+        buffer.limit(read);
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.ansa89.ytftp.core.log;
+
+/*
+ * YTFTPAsyncAppender.java - Bounded ring buffer of log events, written by a background thread so that transfer
+ *                           threads never wait for log I/O.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.enums.YTFTPLogLevel;
+
+final class YTFTPAsyncAppender implements Runnable {
+    private final Event[] ring;
+    private final Thread thread;
+    // positions in the ring (they never wrap), guarded by this
+    private long head = 0;
+    private long tail = 0;
+    private long dropped = 0;
+    private long reportedDropped = 0;
+    private boolean running = true;
+
+    YTFTPAsyncAppender(int size) {
+        this.ring = new Event[size];
+
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Event();
+        }
+
+        this.thread = new Thread(this, "YTFTP-Log");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // enqueue an event, or drop it if the ring is full (never blocks on I/O)
+    synchronized void append(YTFTPLogLevel level, String format, Object[] args, Throwable t) {
+        if (!running || tail - head == ring.length) {
+            dropped++;
+            return;
+        }
+
+        Event event = ring[(int) (tail % ring.length)];
+        event.level = level;
+        event.format = format;
+        event.args = args;
+        event.t = t;
+
+        if (tail++ == head) {
+            // the writer waits only when the ring is empty
+            notify();
+        }
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    // stop the writer after pending events have been written
+    void close() {
+        synchronized (this) {
+            running = false;
+            notify();
+        }
+
+        try {
+            thread.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long start;
+            long end;
+            long lost;
+
+            synchronized (this) {
+                while (running && head == tail) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+
+                if (head == tail) {
+                    return;
+                }
+
+                start = head;
+                end = tail;
+                lost = dropped - reportedDropped;
+                reportedDropped = dropped;
+            }
+
+            // events between head and tail are not touched by producers until head moves
+            for (long i = start; i < end; i++) {
+                Event event = ring[(int) (i % ring.length)];
+                YTFTPLogger.write(event.level, event.format, event.args, event.t);
+                event.clear();
+            }
+
+            if (lost > 0) {
+                YTFTPLogger.write(YTFTPLogLevel.WARNING, "Dropped {} log events (log buffer full)", new Object[]{lost}, null);
+            }
+
+            synchronized (this) {
+                head = end;
+            }
+        }
+    }
+
+    // slots are reused, events are not allocated for each message
+    private static final class Event {
+        private YTFTPLogLevel level;
+        private String format;
+        private Object[] args;
+        private Throwable t;
+
+        private void clear() {
+            format = null;
+            args = null;
+            t = null;
+        }
+    }
+}
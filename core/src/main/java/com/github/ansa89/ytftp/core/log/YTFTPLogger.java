@@ -24,11 +24,20 @@ package com.github.ansa89.ytftp.core.log;
 
 
 import com.github.ansa89.ytftp.core.enums.YTFTPLogLevel;
+import com.github.ansa89.ytftp.core.error.YTFTPError;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.slf4j.helpers.FormattingTuple;
+import org.slf4j.helpers.MessageFormatter;
 
+import java.util.function.Supplier;
+
+/**
+ * Messages are built only when their level is enabled: use parameterized messages ("{}" placeholders, like SLF4J) or
+ * suppliers instead of string concatenation.
+ */
 @Slf4j
 public final class YTFTPLogger {
     public static final YTFTPLogLevel DEFAULT_LEVEL = YTFTPLogLevel.WARNING;
@@ -37,56 +46,259 @@ public final class YTFTPLogger {
     @Getter
     @Setter
     private static YTFTPLogLevel level = DEFAULT_LEVEL;
+    // null when events are written by the calling thread
+    private static volatile YTFTPAsyncAppender asyncAppender;
 
     private YTFTPLogger() {
         super();
     }
 
+    /**
+     * Write log events from a background thread, so that callers never wait for log I/O.
+     * Events arriving when the buffer is full are dropped (and counted).
+     * Default disabled.
+     *
+     * @param bufferSize maximum number of pending events, must be greater than 0 (null to write events synchronously)
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public static synchronized void setAsyncBufferSize(Integer bufferSize) {
+        if (bufferSize != null && bufferSize < 1) {
+            throw new YTFTPError("Specify a buffer size greater than 0");
+        }
+
+        YTFTPAsyncAppender previous = asyncAppender;
+        asyncAppender = bufferSize != null ? new YTFTPAsyncAppender(bufferSize) : null;
+
+        if (previous != null) {
+            // pending events are written before returning
+            previous.close();
+        }
+    }
+
+    /**
+     * Get the number of events dropped because the asynchronous buffer was full.
+     *
+     * @return dropped events (0 if events are written synchronously)
+     */
+    public static long getDroppedEvents() {
+        YTFTPAsyncAppender appender = asyncAppender;
+        return appender != null ? appender.getDropped() : 0;
+    }
+
     public static void debug(String msg) {
         if (canPrintLog(YTFTPLogLevel.DEBUG)) {
-            log.debug(msg);
+            append(YTFTPLogLevel.DEBUG, msg, null, null);
         }
     }
 
     public static void debug(String msg, Throwable t) {
         if (canPrintLog(YTFTPLogLevel.DEBUG)) {
-            log.debug(msg, t);
+            append(YTFTPLogLevel.DEBUG, msg, null, t);
+        }
+    }
+
+    public static void debug(String format, Object arg) {
+        if (canPrintLog(YTFTPLogLevel.DEBUG)) {
+            append(YTFTPLogLevel.DEBUG, format, new Object[]{arg}, null);
+        }
+    }
+
+    public static void debug(String format, Object arg1, Object arg2) {
+        if (canPrintLog(YTFTPLogLevel.DEBUG)) {
+            append(YTFTPLogLevel.DEBUG, format, new Object[]{arg1, arg2}, null);
+        }
+    }
+
+    public static void debug(String format, Object arg1, Object arg2, Object arg3) {
+        if (canPrintLog(YTFTPLogLevel.DEBUG)) {
+            append(YTFTPLogLevel.DEBUG, format, new Object[]{arg1, arg2, arg3}, null);
+        }
+    }
+
+    public static void debug(Supplier<String> msg) {
+        if (canPrintLog(YTFTPLogLevel.DEBUG)) {
+            append(YTFTPLogLevel.DEBUG, msg.get(), null, null);
+        }
+    }
+
+    public static void debug(Supplier<String> msg, Throwable t) {
+        if (canPrintLog(YTFTPLogLevel.DEBUG)) {
+            append(YTFTPLogLevel.DEBUG, msg.get(), null, t);
         }
     }
 
     public static void info(String msg) {
         if (canPrintLog(YTFTPLogLevel.INFO)) {
-            log.info(msg);
+            append(YTFTPLogLevel.INFO, msg, null, null);
         }
     }
 
     public static void info(String msg, Throwable t) {
         if (canPrintLog(YTFTPLogLevel.INFO)) {
-            log.info(msg, t);
+            append(YTFTPLogLevel.INFO, msg, null, t);
+        }
+    }
+
+    public static void info(String format, Object arg) {
+        if (canPrintLog(YTFTPLogLevel.INFO)) {
+            append(YTFTPLogLevel.INFO, format, new Object[]{arg}, null);
+        }
+    }
+
+    public static void info(String format, Object arg1, Object arg2) {
+        if (canPrintLog(YTFTPLogLevel.INFO)) {
+            append(YTFTPLogLevel.INFO, format, new Object[]{arg1, arg2}, null);
+        }
+    }
+
+    public static void info(String format, Object arg1, Object arg2, Object arg3) {
+        if (canPrintLog(YTFTPLogLevel.INFO)) {
+            append(YTFTPLogLevel.INFO, format, new Object[]{arg1, arg2, arg3}, null);
+        }
+    }
+
+    public static void info(Supplier<String> msg) {
+        if (canPrintLog(YTFTPLogLevel.INFO)) {
+            append(YTFTPLogLevel.INFO, msg.get(), null, null);
+        }
+    }
+
+    public static void info(Supplier<String> msg, Throwable t) {
+        if (canPrintLog(YTFTPLogLevel.INFO)) {
+            append(YTFTPLogLevel.INFO, msg.get(), null, t);
         }
     }
 
     public static void warn(String msg) {
         if (canPrintLog(YTFTPLogLevel.WARNING)) {
-            log.warn(msg);
+            append(YTFTPLogLevel.WARNING, msg, null, null);
         }
     }
 
     public static void warn(String msg, Throwable t) {
         if (canPrintLog(YTFTPLogLevel.WARNING)) {
-            log.warn(msg, t);
+            append(YTFTPLogLevel.WARNING, msg, null, t);
+        }
+    }
+
+    public static void warn(String format, Object arg) {
+        if (canPrintLog(YTFTPLogLevel.WARNING)) {
+            append(YTFTPLogLevel.WARNING, format, new Object[]{arg}, null);
+        }
+    }
+
+    public static void warn(String format, Object arg1, Object arg2) {
+        if (canPrintLog(YTFTPLogLevel.WARNING)) {
+            append(YTFTPLogLevel.WARNING, format, new Object[]{arg1, arg2}, null);
+        }
+    }
+
+    public static void warn(String format, Object arg1, Object arg2, Object arg3) {
+        if (canPrintLog(YTFTPLogLevel.WARNING)) {
+            append(YTFTPLogLevel.WARNING, format, new Object[]{arg1, arg2, arg3}, null);
+        }
+    }
+
+    public static void warn(Supplier<String> msg) {
+        if (canPrintLog(YTFTPLogLevel.WARNING)) {
+            append(YTFTPLogLevel.WARNING, msg.get(), null, null);
+        }
+    }
+
+    public static void warn(Supplier<String> msg, Throwable t) {
+        if (canPrintLog(YTFTPLogLevel.WARNING)) {
+            append(YTFTPLogLevel.WARNING, msg.get(), null, t);
         }
     }
 
     public static void error(String msg) {
         if (canPrintLog(YTFTPLogLevel.ERROR)) {
-            log.error(msg);
+            append(YTFTPLogLevel.ERROR, msg, null, null);
         }
     }
 
     public static void error(String msg, Throwable t) {
         if (canPrintLog(YTFTPLogLevel.ERROR)) {
-            log.error(msg, t);
+            append(YTFTPLogLevel.ERROR, msg, null, t);
+        }
+    }
+
+    public static void error(String format, Object arg) {
+        if (canPrintLog(YTFTPLogLevel.ERROR)) {
+            append(YTFTPLogLevel.ERROR, format, new Object[]{arg}, null);
+        }
+    }
+
+    public static void error(String format, Object arg1, Object arg2) {
+        if (canPrintLog(YTFTPLogLevel.ERROR)) {
+            append(YTFTPLogLevel.ERROR, format, new Object[]{arg1, arg2}, null);
+        }
+    }
+
+    public static void error(String format, Object arg1, Object arg2, Object arg3) {
+        if (canPrintLog(YTFTPLogLevel.ERROR)) {
+            append(YTFTPLogLevel.ERROR, format, new Object[]{arg1, arg2, arg3}, null);
+        }
+    }
+
+    public static void error(Supplier<String> msg) {
+        if (canPrintLog(YTFTPLogLevel.ERROR)) {
+            append(YTFTPLogLevel.ERROR, msg.get(), null, null);
+        }
+    }
+
+    public static void error(Supplier<String> msg, Throwable t) {
+        if (canPrintLog(YTFTPLogLevel.ERROR)) {
+            append(YTFTPLogLevel.ERROR, msg.get(), null, t);
+        }
+    }
+
+    /**
+     * Check if messages of the given level are printed, to skip expensive work done only for logging.
+     *
+     * @param level log level
+     * @return true if messages are printed
+     */
+    public static boolean isEnabled(@NonNull YTFTPLogLevel level) {
+        return canPrintLog(level);
+    }
+
+    // write a log event, formatting its arguments (a Throwable as last argument is printed as exception)
+    static void write(YTFTPLogLevel level, String format, Object[] args, Throwable t) {
+        String msg = format;
+
+        if (args != null) {
+            FormattingTuple tuple = MessageFormatter.arrayFormat(format, args);
+            msg = tuple.getMessage();
+
+            if (t == null) {
+                t = tuple.getThrowable();
+            }
+        }
+
+        switch (level) {
+            case DEBUG:
+                log.debug(msg, t);
+                break;
+            case INFO:
+                log.info(msg, t);
+                break;
+            case WARNING:
+                log.warn(msg, t);
+                break;
+            default:
+                log.error(msg, t);
+                break;
+        }
+    }
+
+    private static void append(YTFTPLogLevel level, String format, Object[] args, Throwable t) {
+        YTFTPAsyncAppender appender = asyncAppender;
+
+        if (appender != null) {
+            appender.append(level, format, args, t);
+        } else {
+            write(level, format, args, t);
         }
     }
 
@@ -0,0 +1,36 @@
+package com.github.ansa89.ytftp.core.metrics;
+
+/*
+ * YTFTPHistogramSnapshot.java - Summary of the values recorded by a histogram.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import lombok.Value;
+
+@Value
+public class YTFTPHistogramSnapshot {
+    long count;
+    double mean;
+    long p50;
+    long p90;
+    long p99;
+    long max;
+}
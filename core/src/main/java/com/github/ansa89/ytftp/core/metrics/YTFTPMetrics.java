@@ -0,0 +1,108 @@
+package com.github.ansa89.ytftp.core.metrics;
+
+/*
+ * YTFTPMetrics.java - Receiver of server and transfer events, to be implemented to export metrics.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * Events reported by the server and by its transfers.
+ * Methods are called on the transfer hot path (e.g. once per block), so implementations must be cheap and thread-safe.
+ * All methods do nothing by default.
+ */
+public interface YTFTPMetrics {
+    /**
+     * Metrics discarding all events.
+     */
+    YTFTPMetrics NONE = new YTFTPMetrics() {
+    };
+
+    /**
+     * A new request has been received.
+     *
+     * @param read true for RRQ, false for WRQ
+     */
+    default void requestReceived(boolean read) {
+    }
+
+    /**
+     * A request has been rejected (e.g. server busy or rate limited).
+     */
+    default void requestRejected() {
+    }
+
+    /**
+     * A transfer has been created.
+     */
+    default void transferStarted() {
+    }
+
+    /**
+     * A transfer has been closed.
+     *
+     * @param durationNanos time elapsed since the transfer has been created
+     * @param success       true if the transfer has been completed
+     */
+    default void transferFinished(long durationNanos, boolean success) {
+    }
+
+    /**
+     * Data has been sent (GET transfers, including retransmissions).
+     *
+     * @param bytes data length (without TFTP header)
+     */
+    default void bytesSent(long bytes) {
+    }
+
+    /**
+     * Data has been received (PUT transfers, including duplicates).
+     *
+     * @param bytes data length (without TFTP header)
+     */
+    default void bytesReceived(long bytes) {
+    }
+
+    /**
+     * A packet (data block, ACK or OACK) has been sent again.
+     */
+    default void retransmit() {
+    }
+
+    /**
+     * The retransmission timeout of a transfer expired.
+     */
+    default void timeout() {
+    }
+
+    /**
+     * A packet from an unknown host or port has been rejected with an UNKNOWN_TID error.
+     */
+    default void unknownTid() {
+    }
+
+    /**
+     * A round-trip time has been measured (from a packet sent for the first time to its answer).
+     *
+     * @param rttNanos round-trip time
+     */
+    default void roundTrip(long rttNanos) {
+    }
+}
@@ -0,0 +1,95 @@
+package com.github.ansa89.ytftp.core.metrics;
+
+/*
+ * YTFTPRateMeter.java - Counter of events also computing their rate per second.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class YTFTPRateMeter {
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // the rate is an exponentially weighted moving average over 1 minute, updated every 5 seconds
+    private static final double ALPHA = 1 - Math.exp(-5.0 / 60);
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder uncounted = new LongAdder();
+    private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+    private volatile double rate = 0;
+    private volatile boolean initialized = false;
+
+    /**
+     * Record an event.
+     */
+    public void mark() {
+        tickIfNeeded();
+        count.increment();
+        uncounted.increment();
+    }
+
+    /**
+     * Get the number of events recorded.
+     *
+     * @return count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Get the recent rate of events.
+     *
+     * @return events per second (averaged over the last minute)
+     */
+    public double getRate() {
+        tickIfNeeded();
+        return rate;
+    }
+
+    // only the thread winning the update of lastTick updates the rate
+    private void tickIfNeeded() {
+        final long oldTick = lastTick.get();
+        final long age = System.nanoTime() - oldTick;
+
+        if (age < TICK_NANOS) {
+            return;
+        }
+
+        if (lastTick.compareAndSet(oldTick, oldTick + age - age % TICK_NANOS)) {
+            for (long i = age / TICK_NANOS; i > 0; i--) {
+                tick();
+            }
+        }
+    }
+
+    private void tick() {
+        final double instantRate = uncounted.sumThenReset() / (double) TimeUnit.NANOSECONDS.toSeconds(TICK_NANOS);
+
+        if (initialized) {
+            rate += ALPHA * (instantRate - rate);
+        } else {
+            rate = instantRate;
+            initialized = true;
+        }
+    }
+}
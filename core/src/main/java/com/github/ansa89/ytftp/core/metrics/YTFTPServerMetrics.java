@@ -0,0 +1,192 @@
+package com.github.ansa89.ytftp.core.metrics;
+
+/*
+ * YTFTPServerMetrics.java - Default metrics of a server, based on striped counters and exposed through JMX.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import lombok.Getter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class YTFTPServerMetrics implements YTFTPMetrics, YTFTPServerMetricsMXBean {
+    private final LongAdder activeSessions = new LongAdder();
+    @Getter
+    private final YTFTPRateMeter readRequestMeter = new YTFTPRateMeter();
+    @Getter
+    private final YTFTPRateMeter writeRequestMeter = new YTFTPRateMeter();
+    private final LongAdder rejectedRequests = new LongAdder();
+    private final LongAdder completedTransfers = new LongAdder();
+    private final LongAdder failedTransfers = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder unknownTidRejections = new LongAdder();
+    // transfer durations in milliseconds
+    @Getter
+    private final YTFTPHistogram transferDurations = new YTFTPHistogram();
+    // round-trip times in microseconds
+    @Getter
+    private final YTFTPHistogram blockRtts = new YTFTPHistogram();
+
+    @Override
+    public void requestReceived(boolean read) {
+        (read ? readRequestMeter : writeRequestMeter).mark();
+    }
+
+    @Override
+    public void requestRejected() {
+        rejectedRequests.increment();
+    }
+
+    @Override
+    public void transferStarted() {
+        activeSessions.increment();
+    }
+
+    @Override
+    public void transferFinished(long durationNanos, boolean success) {
+        activeSessions.decrement();
+        (success ? completedTransfers : failedTransfers).increment();
+        transferDurations.record(TimeUnit.NANOSECONDS.toMillis(durationNanos));
+    }
+
+    @Override
+    public void bytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    @Override
+    public void bytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    @Override
+    public void retransmit() {
+        retransmits.increment();
+    }
+
+    @Override
+    public void timeout() {
+        timeouts.increment();
+    }
+
+    @Override
+    public void unknownTid() {
+        unknownTidRejections.increment();
+    }
+
+    @Override
+    public void roundTrip(long rttNanos) {
+        blockRtts.record(TimeUnit.NANOSECONDS.toMicros(rttNanos));
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return activeSessions.sum();
+    }
+
+    @Override
+    public long getReadRequests() {
+        return readRequestMeter.getCount();
+    }
+
+    @Override
+    public long getWriteRequests() {
+        return writeRequestMeter.getCount();
+    }
+
+    @Override
+    public double getReadRequestRate() {
+        return readRequestMeter.getRate();
+    }
+
+    @Override
+    public double getWriteRequestRate() {
+        return writeRequestMeter.getRate();
+    }
+
+    @Override
+    public long getRejectedRequests() {
+        return rejectedRequests.sum();
+    }
+
+    @Override
+    public long getCompletedTransfers() {
+        return completedTransfers.sum();
+    }
+
+    @Override
+    public long getFailedTransfers() {
+        return failedTransfers.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getUnknownTidRejections() {
+        return unknownTidRejections.sum();
+    }
+
+    @Override
+    public YTFTPHistogramSnapshot getTransferDurationMs() {
+        return transferDurations.getSnapshot();
+    }
+
+    @Override
+    public YTFTPHistogramSnapshot getBlockRttMicros() {
+        return blockRtts.getSnapshot();
+    }
+
+    @Override
+    public void resetHistograms() {
+        transferDurations.reset();
+        blockRtts.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "YTFTPServerMetrics(active=" + getActiveSessions() + ", reads=" + getReadRequests() + ", writes=" + getWriteRequests() +
+                ", rejected=" + getRejectedRequests() + ", completed=" + getCompletedTransfers() + ", failed=" + getFailedTransfers() +
+                ", sent=" + getBytesSent() + ", received=" + getBytesReceived() + ", retransmits=" + getRetransmits() +
+                ", timeouts=" + getTimeouts() + ", unknownTid=" + getUnknownTidRejections() + ")";
+    }
+}
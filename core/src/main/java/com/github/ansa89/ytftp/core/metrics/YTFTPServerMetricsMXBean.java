@@ -0,0 +1,139 @@
+package com.github.ansa89.ytftp.core.metrics;
+
+/*
+ * YTFTPServerMetricsMXBean.java - Management interface of the server metrics.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * Server metrics exposed through JMX.
+ */
+public interface YTFTPServerMetricsMXBean {
+    /**
+     * Get the number of transfers in progress.
+     *
+     * @return number of transfers
+     */
+    long getActiveSessions();
+
+    /**
+     * Get the number of GET requests received.
+     *
+     * @return number of requests
+     */
+    long getReadRequests();
+
+    /**
+     * Get the number of PUT requests received.
+     *
+     * @return number of requests
+     */
+    long getWriteRequests();
+
+    /**
+     * Get the rate of GET requests, averaged over the last minute.
+     *
+     * @return requests per second
+     */
+    double getReadRequestRate();
+
+    /**
+     * Get the rate of PUT requests, averaged over the last minute.
+     *
+     * @return requests per second
+     */
+    double getWriteRequestRate();
+
+    /**
+     * Get the number of requests rejected (server busy or rate limited).
+     *
+     * @return number of requests
+     */
+    long getRejectedRequests();
+
+    /**
+     * Get the number of transfers completed successfully.
+     *
+     * @return number of transfers
+     */
+    long getCompletedTransfers();
+
+    /**
+     * Get the number of transfers aborted or failed.
+     *
+     * @return number of transfers
+     */
+    long getFailedTransfers();
+
+    /**
+     * Get the data sent by GET transfers (including retransmissions).
+     *
+     * @return bytes
+     */
+    long getBytesSent();
+
+    /**
+     * Get the data received by PUT transfers (including duplicates).
+     *
+     * @return bytes
+     */
+    long getBytesReceived();
+
+    /**
+     * Get the number of packets sent again.
+     *
+     * @return number of packets
+     */
+    long getRetransmits();
+
+    /**
+     * Get the number of expired retransmission timeouts.
+     *
+     * @return number of timeouts
+     */
+    long getTimeouts();
+
+    /**
+     * Get the number of packets from unknown hosts or ports rejected during transfers.
+     *
+     * @return number of packets
+     */
+    long getUnknownTidRejections();
+
+    /**
+     * Get the distribution of transfer durations.
+     *
+     * @return summary in milliseconds
+     */
+    YTFTPHistogramSnapshot getTransferDurationMs();
+
+    /**
+     * Get the distribution of round-trip times of packets (data blocks or acks).
+     *
+     * @return summary in microseconds
+     */
+    YTFTPHistogramSnapshot getBlockRttMicros();
+
+    /**
+     * Discard the values recorded by histograms.
+     */
+    void resetHistograms();
+}
@@ -0,0 +1,379 @@
+package com.github.ansa89.ytftp.core.multicast;
+
+/*
+ * YTFTPMulticastEngine.java - Engine grouping concurrent readers of the same file onto multicast sessions
+ *                             (RFC 2090), each using one of a range of multicast groups.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.YTFTPWorkerInfo;
+import com.github.ansa89.ytftp.core.enums.YTFTPServerType;
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import com.github.ansa89.ytftp.core.log.YTFTPLogger;
+import com.github.ansa89.ytftp.core.storage.YTFTPReadableFile;
+import lombok.NonNull;
+import lombok.Value;
+import org.apache.commons.net.tftp.TFTP;
+import org.apache.commons.net.tftp.TFTPReadRequestPacket;
+import org.apache.commons.net.tftp.TFTPRequestPacket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class YTFTPMulticastEngine implements AutoCloseable {
+    // block numbers cannot wrap: a new master client acknowledges its last block without any other reference
+    public static final int MAX_BLOCKS = 65535;
+
+    private final InetAddress baseAddress;
+    private final int port;
+    private final int maxGroups;
+    private final int ttl;
+    private final InetAddress bindAddress;
+    private final NetworkInterface multicastInterface;
+    private final Map<YTFTPMulticastKey, YTFTPMulticastSession> sessions = new HashMap<>();
+    private final BitSet groups = new BitSet();
+    // sessions whose file is being opened, completed with the session (null if the file is sent with unicast)
+    private final Map<YTFTPMulticastKey, CompletableFuture<YTFTPMulticastSession>> pending = new HashMap<>();
+    // threads resolving and opening requested files, so that the thread receiving requests never waits for them
+    private final ThreadPoolExecutor resolver;
+    private boolean closed = false;
+
+    /**
+     * Create the engine.
+     *
+     * @param baseAddress first multicast group, following sessions use the next addresses
+     * @param port        destination port of multicast packets
+     * @param maxGroups   number of groups (multicast transfers running at the same time)
+     * @param ttl         time to live of multicast packets
+     * @param bindAddress local address used by session channels (null for wildcard address), its interface is used
+     *                    to send multicast packets
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public YTFTPMulticastEngine(@NonNull InetAddress baseAddress, int port, int maxGroups, int ttl, InetAddress bindAddress) {
+        if (!baseAddress.isMulticastAddress()) {
+            throw new YTFTPError("Specify a multicast address");
+        }
+
+        if (bindAddress != null && bindAddress.getClass() != baseAddress.getClass()) {
+            throw new YTFTPError("Multicast address and listening address must be of the same family");
+        }
+
+        this.baseAddress = baseAddress;
+        this.port = port;
+        this.maxGroups = maxGroups;
+        this.ttl = ttl;
+        this.bindAddress = bindAddress;
+
+        try {
+            this.multicastInterface = bindAddress != null ? NetworkInterface.getByInetAddress(bindAddress) : null;
+        } catch (SocketException e) {
+            throw new YTFTPError("Cannot find network interface of " + bindAddress.getHostAddress(), e);
+        }
+
+        final AtomicInteger threadNum = new AtomicInteger();
+        this.resolver = new ThreadPoolExecutor(maxGroups, maxGroups, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "YTFTP-McastOpen" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.resolver.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Handle a request in a multicast session, if the client asked for it and the file can be sent with multicast.
+     * The file is resolved and opened by a thread of the engine, not by the caller (the thread receiving requests):
+     * requests that cannot be sent with multicast are then passed to the unicast callback from that thread.
+     *
+     * @param info    request parameters
+     * @param onDone  callback invoked (on the session thread) when the client leaves the session
+     * @param unicast callback starting a unicast transfer, if the file cannot be sent with multicast
+     * @return true if the request has been taken (unicast will be called if needed), false if the caller must start a
+     * unicast transfer
+     */
+    public boolean submit(@NonNull YTFTPWorkerInfo info, @NonNull Runnable onDone, @NonNull Runnable unicast) {
+        if (!isEligible(info)) {
+            return false;
+        }
+
+        try {
+            resolver.execute(() -> {
+                boolean accepted = false;
+
+                try {
+                    accepted = open(info, onDone);
+                } catch (RuntimeException e) {
+                    YTFTPLogger.error("Error starting TFTP multicast session", e);
+                }
+
+                if (!accepted) {
+                    unicast.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // engine closed
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Resend the OACK to a client that retransmitted its request, if it is waiting in a multicast session.
+     *
+     * @param request retransmitted request
+     */
+    public void onDuplicateRequest(@NonNull TFTPRequestPacket request) {
+        synchronized (sessions) {
+            for (YTFTPMulticastSession session : sessions.values()) {
+                session.resendOptionAck(request.getAddress(), request.getPort());
+            }
+        }
+    }
+
+    /**
+     * Get the number of multicast sessions running.
+     *
+     * @return number of sessions
+     */
+    public int getActiveSessions() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    @Override
+    public void close() {
+        List<YTFTPMulticastSession> running;
+
+        synchronized (sessions) {
+            closed = true;
+            running = new ArrayList<>(sessions.values());
+        }
+
+        // requests not yet resolved are sent with unicast (and fail if the server is stopping)
+        resolver.shutdown();
+
+        for (YTFTPMulticastSession session : running) {
+            session.shutdown();
+        }
+    }
+
+    int getTtl() {
+        return ttl;
+    }
+
+    InetAddress getBindAddress() {
+        return bindAddress;
+    }
+
+    NetworkInterface getMulticastInterface() {
+        return multicastInterface;
+    }
+
+    // called by sessions when their last client leaves
+    void release(YTFTPMulticastSession session) {
+        synchronized (sessions) {
+            // a closing session may have already been replaced by a new one
+            sessions.remove(session.getKey(), session);
+            groups.clear(session.getGroupIndex());
+        }
+    }
+
+    // join the session of the file, or start one; return false if the file must be sent with unicast
+    private boolean open(YTFTPWorkerInfo info, Runnable onDone) {
+        final TFTPRequestPacket request = (TFTPRequestPacket) info.getTftpPacket();
+        final int blockSize = info.getOptions().negotiateBlockSize(info.getMaxBlockSize());
+        // storages resolve the name requested by the client, exactly as for unicast transfers
+        final String name = request.getFilename();
+
+        if (isGenerated(info, name)) {
+            // generated files may differ between clients
+            return false;
+        }
+
+        final YTFTPMulticastKey key = new YTFTPMulticastKey(name, blockSize);
+
+        while (true) {
+            CompletableFuture<YTFTPMulticastSession> opening;
+            int index = -1;
+
+            synchronized (sessions) {
+                if (closed) {
+                    return false;
+                }
+
+                YTFTPMulticastSession session = sessions.get(key);
+
+                if (session != null && session.join(info, onDone)) {
+                    return true;
+                }
+
+                opening = pending.get(key);
+
+                if (opening == null) {
+                    index = groups.nextClearBit(0);
+
+                    if (index >= maxGroups) {
+                        YTFTPLogger.debug("No free multicast group for {}, using unicast", name);
+                        return false;
+                    }
+
+                    // reserve the group while the file is opened without holding the lock
+                    groups.set(index);
+                    opening = new CompletableFuture<>();
+                    pending.put(key, opening);
+                }
+            }
+
+            if (index < 0) {
+                // another request is opening the file, join its session once started
+                YTFTPMulticastSession session = opening.join();
+
+                if (session == null) {
+                    return false;
+                }
+
+                if (session.join(info, onDone)) {
+                    return true;
+                }
+
+                // session already terminating, retry
+                continue;
+            }
+
+            YTFTPMulticastSession session = null;
+
+            try {
+                session = createSession(info, key, index);
+            } finally {
+                synchronized (sessions) {
+                    pending.remove(key);
+
+                    if (session != null && closed) {
+                        // engine closed while opening the file
+                        session.close();
+                        session = null;
+                    } else if (session != null) {
+                        sessions.put(key, session);
+                        session.join(info, onDone);
+                        session.start();
+                    } else {
+                        groups.clear(index);
+                    }
+                }
+
+                opening.complete(session);
+            }
+
+            return session != null;
+        }
+    }
+
+    // open the file and create its session on the given group, return null if it cannot be sent with multicast
+    private YTFTPMulticastSession createSession(YTFTPWorkerInfo info, YTFTPMulticastKey key, int index) {
+        YTFTPReadableFile file = null;
+
+        try {
+            // missing files are reported by the unicast transfer
+            file = info.getReadStorage().openRead(key.getFileName());
+
+            if (file.getSize() < 0) {
+                // blocks of a multicast session are read in any order
+                YTFTPLogger.debug("Size of {} unknown, using unicast", key.getFileName());
+                file.close();
+                return null;
+            }
+
+            if (file.getSize() / key.getBlockSize() + 1 > MAX_BLOCKS) {
+                YTFTPLogger.debug("File {} too big for multicast with block size {}, using unicast", key.getFileName(), key.getBlockSize());
+                file.close();
+                return null;
+            }
+
+            InetSocketAddress group = new InetSocketAddress(getGroupAddress(index), port);
+            return new YTFTPMulticastSession(this, key, index, group, file, info.getSocketTimeoutMs(), info.getMaxRetries(), info.getMetrics());
+        } catch (IOException | YTFTPError e) {
+            if (file != null) {
+                file.close();
+            }
+
+            return null;
+        }
+    }
+
+    private static boolean isEligible(YTFTPWorkerInfo info) {
+        if (!(info.getTftpPacket() instanceof TFTPReadRequestPacket) || !info.getOptions().isMulticastRequested()) {
+            return false;
+        }
+
+        // netascii files are converted while sent, and read requests may not be allowed
+        return info.getMode() != YTFTPServerType.PUT_ONLY && ((TFTPRequestPacket) info.getTftpPacket()).getMode() != TFTP.NETASCII_MODE;
+    }
+
+    private static boolean isGenerated(YTFTPWorkerInfo info, String name) {
+        if (info.getDynamicContent() == null) {
+            return false;
+        }
+
+        try (YTFTPReadableFile generated = info.getDynamicContent().open(name, ((TFTPRequestPacket) info.getTftpPacket()).getAddress())) {
+            return generated != null;
+        } catch (IOException e) {
+            // reported by the unicast transfer
+            return true;
+        }
+    }
+
+    // base address plus the given offset
+    private InetAddress getGroupAddress(int offset) throws UnknownHostException {
+        byte[] address = baseAddress.getAddress();
+
+        for (int i = address.length - 1; i >= 0 && offset > 0; i--) {
+            int sum = (address[i] & 0xff) + (offset & 0xff);
+            address[i] = (byte) sum;
+            offset = (offset >>> 8) + (sum >>> 8);
+        }
+
+        return InetAddress.getByAddress(address);
+    }
+
+    // readers share a session only if they see the same blocks
+    @Value
+    static class YTFTPMulticastKey {
+        @NonNull
+        String fileName;
+        int blockSize;
+    }
+}
@@ -0,0 +1,436 @@
+package com.github.ansa89.ytftp.core.multicast;
+
+/*
+ * YTFTPMulticastSession.java - Multicast transfer of a file (RFC 2090): blocks are sent once to the group, the
+ *                              master client acknowledges them, and clients take turns as master so that late
+ *                              joiners get the blocks they missed.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.YTFTPWorkerInfo;
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import com.github.ansa89.ytftp.core.log.YTFTPLogger;
+import com.github.ansa89.ytftp.core.metrics.YTFTPMetrics;
+import com.github.ansa89.ytftp.core.nio.YTFTPChannelTransport;
+import com.github.ansa89.ytftp.core.protocol.YTFTPBufferPool;
+import com.github.ansa89.ytftp.core.protocol.YTFTPOptions;
+import com.github.ansa89.ytftp.core.protocol.YTFTPPackets;
+import com.github.ansa89.ytftp.core.storage.YTFTPReadableFile;
+import com.github.ansa89.ytftp.core.transfer.YTFTPTransfer;
+import lombok.Getter;
+import org.apache.commons.net.tftp.TFTPErrorPacket;
+import org.apache.commons.net.tftp.TFTPPacket;
+import org.apache.commons.net.tftp.TFTPRequestPacket;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+final class YTFTPMulticastSession implements Runnable {
+    private final YTFTPMulticastEngine engine;
+    @Getter
+    private final YTFTPMulticastEngine.YTFTPMulticastKey key;
+    @Getter
+    private final int groupIndex;
+    private final InetSocketAddress group;
+    private final YTFTPReadableFile file;
+    private final int blockSize;
+    // last block is the first one shorter than block size (eventually empty)
+    private final int lastBlock;
+    private final int timeoutMs;
+    private final int maxRetries;
+    private final YTFTPMetrics metrics;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final YTFTPChannelTransport transport;
+    private final ByteBuffer receiveBuffer = YTFTPBufferPool.direct().acquire(YTFTPPackets.MAX_CONTROL_PACKET_SIZE);
+    // tasks posted by other threads (joins, OACK retransmissions)
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // clients in join order, the first one is the master client
+    private final Map<InetSocketAddress, Member> members = new LinkedHashMap<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    // guarded by this: set when the session stops accepting clients
+    private boolean closing = false;
+    private Member master;
+    // last block sent to the group (-1 while waiting for the first ACK of the master)
+    private int sent = -1;
+    private long deadline = Long.MAX_VALUE;
+    private int retries = 0;
+
+    YTFTPMulticastSession(YTFTPMulticastEngine engine, YTFTPMulticastEngine.YTFTPMulticastKey key, int groupIndex, InetSocketAddress group, YTFTPReadableFile file, int timeoutMs, int maxRetries, YTFTPMetrics metrics) throws IOException {
+        this.engine = engine;
+        this.key = key;
+        this.groupIndex = groupIndex;
+        this.group = group;
+        this.file = file;
+        this.blockSize = key.getBlockSize();
+        this.lastBlock = (int) (file.getSize() / blockSize + 1);
+        this.timeoutMs = timeoutMs;
+        this.maxRetries = maxRetries;
+        this.metrics = metrics;
+
+        this.channel = DatagramChannel.open(group.getAddress() instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, engine.getTtl());
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+
+            if (engine.getMulticastInterface() != null) {
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, engine.getMulticastInterface());
+            }
+
+            channel.bind(new InetSocketAddress(engine.getBindAddress(), 0));
+            this.selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            YTFTPBufferPool.direct().release(receiveBuffer);
+            throw e;
+        }
+
+        this.transport = new YTFTPChannelTransport(channel);
+        this.transport.setBlockSize(blockSize);
+        this.thread = new Thread(this, "YTFTP-Mcast" + (groupIndex + 1));
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // add a client, return false if the session is terminating
+    synchronized boolean join(YTFTPWorkerInfo info, Runnable onDone) {
+        if (closing) {
+            return false;
+        }
+
+        tasks.add(() -> addMember(info, onDone));
+        selector.wakeup();
+        return true;
+    }
+
+    void resendOptionAck(InetAddress address, int port) {
+        tasks.add(() -> {
+            Member member = members.get(new InetSocketAddress(address, port));
+
+            if (member != null) {
+                sendOptionAck(member);
+            }
+        });
+        selector.wakeup();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+
+        try {
+            thread.join(10000);
+        } catch (InterruptedException e) {
+            throw new YTFTPError("Error while trying to join multicast session thread", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(getSelectTimeout());
+                selector.selectedKeys().clear();
+                receive();
+                runTasks();
+
+                if (master != null && deadline <= YTFTPTransfer.now()) {
+                    onTimeout();
+                }
+
+                if (members.isEmpty() && isTerminated()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                YTFTPLogger.error("Aborting TFTP multicast session due to unexpected error", e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void addMember(YTFTPWorkerInfo info, Runnable onDone) {
+        Member member = new Member(info, onDone);
+
+        if (!running || members.putIfAbsent(member.address, member) != null) {
+            // session shutting down, or request retransmitted by a client already in the group
+            onDone.run();
+            return;
+        }
+
+        metrics.transferStarted();
+        YTFTPLogger.info("New  {}", member);
+
+        YTFTPOptions options = info.getOptions();
+        options.negotiateTransferSize(file.getSize());
+
+        if (master == null) {
+            promote(member);
+        } else {
+            options.negotiateMulticast(getMulticastOption(false));
+            sendOptionAck(member);
+        }
+    }
+
+    private void receive() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            InetSocketAddress from = (InetSocketAddress) channel.receive(receiveBuffer);
+
+            if (from == null) {
+                return;
+            }
+
+            receiveBuffer.flip();
+            Member member = members.get(from);
+
+            if (member == null) {
+                YTFTPLogger.warn(() -> "Ignoring TFTP message from unexpected client (" + from.getAddress().getHostAddress() + ":" + from.getPort() + ")");
+                transport.sendError(from.getAddress(), from.getPort(), TFTPErrorPacket.UNKNOWN_TID, "Unexpected host or port");
+                metrics.unknownTid();
+                continue;
+            }
+
+            onPacket(member, receiveBuffer);
+        }
+    }
+
+    private void onPacket(Member member, ByteBuffer packet) throws IOException {
+        final int opcode = YTFTPPackets.getOpcode(packet);
+
+        if (opcode == TFTPPacket.ERROR) {
+            // client left the group
+            YTFTPLogger.info(() -> "Transfer aborted by TFTP client (" + YTFTPPackets.describe(packet) + ")");
+            removeMember(member, false);
+            return;
+        }
+
+        if (opcode != TFTPPacket.ACKNOWLEDGEMENT || packet.remaining() < YTFTPPackets.HEADER_SIZE) {
+            return;
+        }
+
+        final int block = YTFTPPackets.getBlockNumber(packet);
+
+        if (member != master) {
+            // a client with the whole file can leave without waiting its turn as master
+            if (block == lastBlock) {
+                removeMember(member, true);
+            }
+
+            return;
+        }
+
+        // the master acknowledges the last block it received in sequence, which may skip ahead of the sent block
+        // when it already got the following ones from the group (older acks are duplicates)
+        if (sent >= 0 && block < sent) {
+            return;
+        }
+
+        if (sent < 0) {
+            metrics.roundTrip(System.nanoTime() - member.oackNanos);
+        }
+
+        retries = 0;
+
+        if (block >= lastBlock) {
+            removeMember(member, true);
+            return;
+        }
+
+        sendBlock(block + 1);
+    }
+
+    private void onTimeout() throws IOException {
+        metrics.timeout();
+
+        if (retries >= maxRetries) {
+            YTFTPLogger.warn("Too many retries waiting answer from TFTP master client {}", master);
+            removeMember(master, false);
+            return;
+        }
+
+        retries++;
+        metrics.retransmit();
+
+        if (sent < 0) {
+            sendOptionAck(master);
+            armTimer();
+        } else {
+            sendBlock(sent);
+        }
+    }
+
+    private void removeMember(Member member, boolean success) throws IOException {
+        members.remove(member.address);
+        metrics.transferFinished(System.nanoTime() - member.startNanos, success);
+        member.onDone.run();
+
+        if (success) {
+            YTFTPLogger.info("Done {}", member);
+        }
+
+        if (member != master) {
+            return;
+        }
+
+        master = null;
+        deadline = Long.MAX_VALUE;
+        Iterator<Member> next = members.values().iterator();
+
+        if (next.hasNext()) {
+            // next client becomes master, and will ask for the blocks it missed
+            promote(next.next());
+        }
+    }
+
+    // make a client master, it will answer the OACK with the last block it received in sequence
+    private void promote(Member member) {
+        master = member;
+        sent = -1;
+        retries = 0;
+        member.info.getOptions().negotiateMulticast(getMulticastOption(true));
+        sendOptionAck(member);
+        armTimer();
+    }
+
+    private void sendBlock(int block) throws IOException {
+        ByteBuffer data = file.read((long) (block - 1) * blockSize, blockSize);
+        metrics.bytesSent(data.remaining());
+        transport.sendData(group.getAddress(), group.getPort(), block, data);
+        sent = block;
+        armTimer();
+    }
+
+    private void sendOptionAck(Member member) {
+        member.oackNanos = System.nanoTime();
+
+        try {
+            transport.sendOptionAck(member.address.getAddress(), member.address.getPort(), member.info.getOptions().getAcknowledged());
+        } catch (IOException e) {
+            YTFTPLogger.debug("Error sending OACK to {}", member, e);
+        }
+    }
+
+    // value of the multicast option: group address, port and master client flag
+    private String getMulticastOption(boolean master) {
+        return group.getAddress().getHostAddress() + "," + group.getPort() + "," + (master ? 1 : 0);
+    }
+
+    private void armTimer() {
+        deadline = YTFTPTransfer.now() + timeoutMs;
+    }
+
+    private long getSelectTimeout() {
+        if (master == null) {
+            return 0;
+        }
+
+        return Math.max(1, deadline - YTFTPTransfer.now());
+    }
+
+    private void runTasks() {
+        Runnable task;
+
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    // stop accepting clients if none is waiting to join
+    private synchronized boolean isTerminated() {
+        if (tasks.isEmpty()) {
+            closing = true;
+        }
+
+        return closing;
+    }
+
+    // also used to discard a session not started
+    void close() {
+        synchronized (this) {
+            closing = true;
+        }
+
+        // clients still waiting (e.g. server shutdown) are failed
+        runTasks();
+
+        for (Member member : members.values()) {
+            metrics.transferFinished(System.nanoTime() - member.startNanos, false);
+            member.onDone.run();
+        }
+
+        members.clear();
+        master = null;
+        engine.release(this);
+        file.close();
+        transport.close();
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            YTFTPLogger.debug("Error closing selector", e);
+        }
+
+        YTFTPBufferPool.direct().release(receiveBuffer);
+    }
+
+    private final class Member {
+        private final YTFTPWorkerInfo info;
+        private final InetSocketAddress address;
+        private final Runnable onDone;
+        private final long startNanos = System.nanoTime();
+        private long oackNanos;
+
+        private Member(YTFTPWorkerInfo info, Runnable onDone) {
+            this.info = info;
+            this.address = new InetSocketAddress(info.getTftpPacket().getAddress(), info.getTftpPacket().getPort());
+            this.onDone = onDone;
+        }
+
+        @Override
+        public String toString() {
+            return "multicast GET request: " + address.getAddress() + ":" + address.getPort() + " - " + ((TFTPRequestPacket) info.getTftpPacket()).getFilename() +
+                    " (group " + group.getAddress().getHostAddress() + ":" + group.getPort() + ")";
+        }
+    }
+}
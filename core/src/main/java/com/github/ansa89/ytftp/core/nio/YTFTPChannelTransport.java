@@ -0,0 +1,129 @@
+package com.github.ansa89.ytftp.core.nio;
+
+/*
+ * YTFTPChannelTransport.java - Transport sending packets through a non-blocking datagram channel.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.log.YTFTPLogger;
+import com.github.ansa89.ytftp.core.protocol.YTFTPBufferPool;
+import com.github.ansa89.ytftp.core.protocol.YTFTPOptions;
+import com.github.ansa89.ytftp.core.protocol.YTFTPPackets;
+import com.github.ansa89.ytftp.core.protocol.YTFTPTransport;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+
+// when the socket send buffer is full, packets are dropped like on a lossy network (retransmissions will recover)
+public final class YTFTPChannelTransport implements YTFTPTransport {
+    private final DatagramChannel channel;
+    // direct buffers avoid the temporary copy done by the channel for heap buffers
+    private ByteBuffer sendBuffer;
+    private ByteBuffer controlBuffer;
+    private InetSocketAddress lastTarget;
+
+    /**
+     * Create a transport sending packets through a (non-blocking) channel.
+     *
+     * @param channel bound channel, closed with the transport
+     */
+    public YTFTPChannelTransport(@NonNull DatagramChannel channel) {
+        this.channel = channel;
+        this.controlBuffer = YTFTPBufferPool.direct().acquire(YTFTPPackets.MAX_CONTROL_PACKET_SIZE);
+        setBlockSize(YTFTPOptions.DEFAULT_BLOCK_SIZE);
+    }
+
+    @Override
+    public void sendData(InetAddress address, int port, int block, byte[] data, int offset, int length) throws IOException {
+        sendBuffer.clear();
+        YTFTPPackets.putDataHeader(sendBuffer, block);
+        sendBuffer.put(data, offset, length);
+        send(sendBuffer, address, port);
+    }
+
+    @Override
+    public void sendData(InetAddress address, int port, int block, @NonNull ByteBuffer data) throws IOException {
+        sendBuffer.clear();
+        YTFTPPackets.putDataHeader(sendBuffer, block);
+        sendBuffer.put(data);
+        send(sendBuffer, address, port);
+    }
+
+    @Override
+    public void sendAck(InetAddress address, int port, int block) throws IOException {
+        controlBuffer.clear();
+        YTFTPPackets.putAck(controlBuffer, block);
+        send(controlBuffer, address, port);
+    }
+
+    @Override
+    public void sendError(InetAddress address, int port, int code, @NonNull String message) throws IOException {
+        controlBuffer.clear();
+        YTFTPPackets.putError(controlBuffer, code, message);
+        send(controlBuffer, address, port);
+    }
+
+    @Override
+    public void sendOptionAck(InetAddress address, int port, @NonNull Map<String, String> options) throws IOException {
+        controlBuffer.clear();
+        YTFTPPackets.putOptionAck(controlBuffer, options);
+        send(controlBuffer, address, port);
+    }
+
+    @Override
+    public void setBlockSize(int blockSize) {
+        YTFTPBufferPool.direct().release(sendBuffer);
+        sendBuffer = YTFTPBufferPool.direct().acquire(blockSize + YTFTPPackets.HEADER_SIZE);
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            YTFTPLogger.debug("Error closing TFTP transfer channel", e);
+        }
+
+        YTFTPBufferPool.direct().release(sendBuffer);
+        YTFTPBufferPool.direct().release(controlBuffer);
+        sendBuffer = controlBuffer = null;
+    }
+
+    // send the packet written in buffer (from 0 to position)
+    private void send(ByteBuffer buffer, InetAddress address, int port) throws IOException {
+        buffer.flip();
+        channel.send(buffer, getTarget(address, port));
+    }
+
+    // the client of a session never changes, avoid creating a new socket address for each packet
+    private InetSocketAddress getTarget(InetAddress address, int port) {
+        if (lastTarget == null || lastTarget.getPort() != port || !lastTarget.getAddress().equals(address)) {
+            lastTarget = new InetSocketAddress(address, port);
+        }
+
+        return lastTarget;
+    }
+}
@@ -0,0 +1,341 @@
+package com.github.ansa89.ytftp.core.nio;
+
+/*
+ * YTFTPEventLoop.java - Event loop multiplexing many transfers on a single thread, each transfer being
+ *                       driven as a non-blocking state machine.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.YTFTPWorkerInfo;
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import com.github.ansa89.ytftp.core.log.YTFTPLogger;
+import com.github.ansa89.ytftp.core.protocol.YTFTPBufferPool;
+import com.github.ansa89.ytftp.core.protocol.YTFTPOptions;
+import com.github.ansa89.ytftp.core.protocol.YTFTPPackets;
+import com.github.ansa89.ytftp.core.timer.YTFTPTimerWheel;
+import com.github.ansa89.ytftp.core.transfer.YTFTPTransfer;
+import org.apache.commons.net.tftp.TFTPErrorPacket;
+import org.apache.commons.net.tftp.TFTPPacket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+final class YTFTPEventLoop implements Runnable {
+    private final Selector selector;
+    private final InetAddress bindAddress;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Set<YTFTPNioSession> sessions = new HashSet<>();
+    private final ByteBuffer receiveBuffer = YTFTPBufferPool.direct().acquire(YTFTPOptions.MAX_BLOCK_SIZE + YTFTPPackets.HEADER_SIZE);
+    // deadlines of the transfers (retransmissions, dally period, idle clients)
+    private final YTFTPTimerWheel timers;
+    private final Consumer<SelectionKey> onSelected = this::onSelected;
+    private final Consumer<YTFTPNioSession> onTimeout = this::onTimeout;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile int sessionCount = 0;
+
+    YTFTPEventLoop(String name, InetAddress bindAddress, int timerTickMs) throws IOException {
+        this.selector = Selector.open();
+        this.bindAddress = bindAddress;
+        this.timers = new YTFTPTimerWheel(timerTickMs, YTFTPTimerWheel.DEFAULT_WHEEL_SIZE, YTFTPTransfer.now());
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // called by other threads: the session is opened by the loop thread
+    void submit(YTFTPWorkerInfo info, Runnable onDone) {
+        tasks.add(() -> open(info, onDone));
+        selector.wakeup();
+    }
+
+    int getSessionCount() {
+        return sessionCount;
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+
+        try {
+            thread.join(10000);
+        } catch (InterruptedException e) {
+            throw new YTFTPError("Error while trying to join event loop thread", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                try {
+                    // selected keys are handled by a callback, to avoid allocating an iterator for each select
+                    selector.select(onSelected, getSelectTimeout());
+                    runTasks();
+                    timers.advance(YTFTPTransfer.now());
+                } catch (ClosedSelectorException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    // sessions fail on their own errors, an error here must not stop the other sessions of the loop
+                    YTFTPLogger.error("Unexpected error in TFTP event loop", e);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                YTFTPLogger.error("Aborting TFTP event loop due to unexpected error", e);
+            }
+        } finally {
+            for (YTFTPNioSession session : new ArrayList<>(sessions)) {
+                closeSession(session);
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                YTFTPLogger.debug("Error closing selector", e);
+            }
+
+            YTFTPBufferPool.direct().release(receiveBuffer);
+        }
+    }
+
+    private void onSelected(SelectionKey key) {
+        if (key.isValid() && key.isReadable()) {
+            receive((YTFTPNioSession) key.attachment());
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void open(YTFTPWorkerInfo info, Runnable onDone) {
+        DatagramChannel channel;
+
+        try {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            // answer from the address the request was received on
+            channel.bind(new InetSocketAddress(info.getLocalAddress() != null ? info.getLocalAddress() : bindAddress, 0));
+        } catch (IOException e) {
+            YTFTPLogger.error("Error opening TFTP transfer channel", e);
+            onDone.run();
+            return;
+        }
+
+        YTFTPNioSession session = new YTFTPNioSession(info, channel, onDone, onTimeout);
+        sessions.add(session);
+        sessionCount = sessions.size();
+
+        try {
+            session.setTransport(new YTFTPChannelTransport(channel));
+            YTFTPTransfer transfer = YTFTPTransfer.create(info, session.getTransport());
+
+            if (transfer == null) {
+                YTFTPLogger.warn("Ignored unsupported TFTP request ({})", info.getTftpPacket());
+                closeSession(session);
+                return;
+            }
+
+            session.setTransfer(transfer);
+            session.setKey(channel.register(selector, SelectionKey.OP_READ, session));
+            transfer.setWakeup(() -> {
+                tasks.add(() -> wakeUp(session));
+                selector.wakeup();
+            });
+
+            // options are formatted now, negotiation changes them
+            YTFTPLogger.info(() -> "New  " + transfer + " " + info.getOptions());
+            // files are opened by storage threads, the transfer continues from its wakeup
+            transfer.start();
+        } catch (IOException | YTFTPError e) {
+            fail(session, e);
+            return;
+        } catch (RuntimeException e) {
+            failUnexpected(session, e);
+            return;
+        }
+
+        closeIfDone(session);
+    }
+
+    // drain all datagrams queued on the session channel
+    private void receive(YTFTPNioSession session) {
+        YTFTPTransfer transfer = session.getTransfer();
+
+        try {
+            while (!transfer.isDone()) {
+                receiveBuffer.clear();
+                InetSocketAddress from = (InetSocketAddress) session.getChannel().receive(receiveBuffer);
+
+                if (from == null) {
+                    break;
+                }
+
+                receiveBuffer.flip();
+                transfer.onDatagram(receiveBuffer, from.getAddress(), from.getPort());
+            }
+        } catch (IOException | YTFTPError e) {
+            fail(session, e);
+            return;
+        } catch (RuntimeException e) {
+            failUnexpected(session, e);
+            return;
+        }
+
+        closeIfDone(session);
+    }
+
+    // the deadline of the transfer expired
+    private void onTimeout(YTFTPNioSession session) {
+        try {
+            session.getTransfer().onTimeout();
+        } catch (IOException | YTFTPError e) {
+            fail(session, e);
+            return;
+        } catch (RuntimeException e) {
+            failUnexpected(session, e);
+            return;
+        }
+
+        closeIfDone(session);
+    }
+
+    // the storage woke the transfer up, maybe after its session has been closed
+    private void wakeUp(YTFTPNioSession session) {
+        if (!sessions.contains(session)) {
+            return;
+        }
+
+        try {
+            session.getTransfer().onWakeup();
+        } catch (IOException | YTFTPError e) {
+            fail(session, e);
+            return;
+        } catch (RuntimeException e) {
+            failUnexpected(session, e);
+            return;
+        }
+
+        closeIfDone(session);
+    }
+
+    private long getSelectTimeout() {
+        long delay = timers.getDelay(YTFTPTransfer.now());
+
+        if (delay < 0) {
+            // no deadline, wait for new sessions or datagrams
+            return 0;
+        }
+
+        return Math.max(1, delay);
+    }
+
+    private void fail(YTFTPNioSession session, Exception e) {
+        if (running) {
+            YTFTPLogger.error("Error during TFTP transfer", e);
+        }
+
+        closeSession(session);
+    }
+
+    // bug or failing storage (e.g. a provider or decompressor error): notify the client and close only its session
+    private void failUnexpected(YTFTPNioSession session, RuntimeException e) {
+        YTFTPLogger.error("Unexpected error during TFTP transfer", e);
+
+        if (session.getTransport() != null) {
+            TFTPPacket request = session.getInfo().getTftpPacket();
+
+            try {
+                session.getTransport().sendError(request.getAddress(), request.getPort(), TFTPErrorPacket.UNDEFINED, "Internal server error");
+            } catch (IOException | RuntimeException sendError) {
+                YTFTPLogger.debug("Error notifying TFTP client", sendError);
+            }
+        }
+
+        closeSession(session);
+    }
+
+    // close the session if its transfer is done, otherwise follow changes of its deadline
+    private void closeIfDone(YTFTPNioSession session) {
+        YTFTPTransfer transfer = session.getTransfer();
+
+        if (transfer.isDone()) {
+            YTFTPLogger.info("Done {}", transfer);
+            closeSession(session);
+        } else if (session.getTimeout().getDeadline() != transfer.getDeadline()) {
+            timers.schedule(session.getTimeout(), transfer.getDeadline());
+        }
+    }
+
+    private void closeSession(YTFTPNioSession session) {
+        if (!sessions.remove(session)) {
+            return;
+        }
+
+        sessionCount = sessions.size();
+        timers.cancel(session.getTimeout());
+
+        if (session.getKey() != null) {
+            session.getKey().cancel();
+        }
+
+        try {
+            if (session.getTransfer() != null) {
+                session.getTransfer().close();
+            }
+        } catch (RuntimeException e) {
+            YTFTPLogger.error("Error closing TFTP transfer", e);
+        } finally {
+            if (session.getTransport() != null) {
+                session.getTransport().close();
+            } else {
+                try {
+                    session.getChannel().close();
+                } catch (IOException e) {
+                    YTFTPLogger.debug("Error closing TFTP transfer channel", e);
+                }
+            }
+
+            // admission control counts the transfer until now
+            session.getOnDone().run();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.github.ansa89.ytftp.core.nio;
+
+/*
+ * YTFTPNioEngine.java - Transfer engine multiplexing all sessions on a few event loop threads, using
+ *                       non-blocking datagram channels and selectors.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.YTFTPWorkerInfo;
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class YTFTPNioEngine implements AutoCloseable {
+    private final YTFTPEventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * Create and start the engine.
+     *
+     * @param threads     number of event loop threads
+     * @param bindAddress local address used by transfer channels of requests without a local address (null for
+     *                    wildcard address)
+     * @param timerTickMs resolution of transfer deadlines in milliseconds
+     * @throws YTFTPError if an invalid values is specified or event loops cannot be created
+     */
+    public YTFTPNioEngine(int threads, InetAddress bindAddress, int timerTickMs) {
+        if (threads < 1) {
+            throw new YTFTPError("Specify a number of event loops greater than 0");
+        }
+
+        if (timerTickMs < 1) {
+            throw new YTFTPError("Specify a timer tick greater than 0");
+        }
+
+        loops = new YTFTPEventLoop[threads];
+
+        try {
+            for (int i = 0; i < threads; i++) {
+                loops[i] = new YTFTPEventLoop("YTFTP-Nio" + (i + 1), bindAddress, timerTickMs);
+            }
+        } catch (IOException e) {
+            throw new YTFTPError("Error creating TFTP event loops", e);
+        }
+
+        for (YTFTPEventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Handle a new request on one of the event loops.
+     *
+     * @param info   request parameters
+     * @param onDone callback invoked (on the event loop thread) when the transfer terminates
+     */
+    public void submit(@NonNull YTFTPWorkerInfo info, @NonNull Runnable onDone) {
+        loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].submit(info, onDone);
+    }
+
+    /**
+     * Get the number of transfers currently handled.
+     *
+     * @return number of sessions
+     */
+    public int getActiveSessions() {
+        int count = 0;
+
+        for (YTFTPEventLoop loop : loops) {
+            count += loop.getSessionCount();
+        }
+
+        return count;
+    }
+
+    @Override
+    public void close() {
+        for (YTFTPEventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
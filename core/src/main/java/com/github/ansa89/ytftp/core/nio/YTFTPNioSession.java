@@ -0,0 +1,61 @@
+package com.github.ansa89.ytftp.core.nio;
+
+/*
+ * YTFTPNioSession.java - Transfer handled by an event loop, bound to its own ephemeral channel (the transfer ID).
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.YTFTPWorkerInfo;
+import com.github.ansa89.ytftp.core.timer.YTFTPTimeout;
+import com.github.ansa89.ytftp.core.transfer.YTFTPTransfer;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.function.Consumer;
+
+@Getter
+final class YTFTPNioSession {
+    @NonNull
+    private final YTFTPWorkerInfo info;
+    @NonNull
+    private final DatagramChannel channel;
+    @NonNull
+    private final Runnable onDone;
+    // deadline of the transfer on the timer wheel of the event loop
+    @NonNull
+    private final YTFTPTimeout timeout;
+    @Setter
+    private YTFTPChannelTransport transport;
+    @Setter
+    private YTFTPTransfer transfer;
+    @Setter
+    private SelectionKey key;
+
+    YTFTPNioSession(YTFTPWorkerInfo info, DatagramChannel channel, Runnable onDone, Consumer<YTFTPNioSession> onTimeout) {
+        this.info = info;
+        this.channel = channel;
+        this.onDone = onDone;
+        this.timeout = new YTFTPTimeout(() -> onTimeout.accept(this));
+    }
+}
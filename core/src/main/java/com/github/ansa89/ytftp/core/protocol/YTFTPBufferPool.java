@@ -0,0 +1,141 @@
+package com.github.ansa89.ytftp.core.protocol;
+
+/*
+ * YTFTPBufferPool.java - Pool of reusable byte buffers, so that transfers do not allocate packet and I/O
+ *                        buffers for every session.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class YTFTPBufferPool {
+    // buffers are pooled by size classes (powers of 2), bigger buffers are not pooled
+    public static final int MIN_BUFFER_SIZE = 512;
+    public static final int MAX_BUFFER_SIZE = 256 * 1024;
+    // maximum amount of memory kept in each size class
+    private static final int MAX_POOLED_BYTES = 16 * 1024 * 1024;
+
+    private static final YTFTPBufferPool heapPool = new YTFTPBufferPool(false);
+    private static final YTFTPBufferPool directPool = new YTFTPBufferPool(true);
+
+    private final boolean direct;
+    private final Queue<ByteBuffer>[] pools;
+    private final AtomicInteger[] pooled;
+
+    @SuppressWarnings("unchecked")
+    private YTFTPBufferPool(boolean direct) {
+        final int classes = getSizeClass(MAX_BUFFER_SIZE) + 1;
+
+        this.direct = direct;
+        this.pools = new Queue[classes];
+        this.pooled = new AtomicInteger[classes];
+
+        for (int i = 0; i < classes; i++) {
+            pools[i] = new ConcurrentLinkedQueue<>();
+            pooled[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Get the pool of heap buffers (backed by an accessible array).
+     *
+     * @return pool
+     */
+    public static YTFTPBufferPool heap() {
+        return heapPool;
+    }
+
+    /**
+     * Get the pool of direct buffers, used for channel I/O without intermediate copies.
+     *
+     * @return pool
+     */
+    public static YTFTPBufferPool direct() {
+        return directPool;
+    }
+
+    /**
+     * Get a buffer from the pool (allocating it if the pool is empty).
+     *
+     * @param size minimum capacity
+     * @return cleared buffer, with limit set to size
+     */
+    public ByteBuffer acquire(int size) {
+        if (size > MAX_BUFFER_SIZE) {
+            return allocate(size);
+        }
+
+        final int sizeClass = getSizeClass(size);
+        ByteBuffer buffer = pools[sizeClass].poll();
+
+        if (buffer == null) {
+            buffer = allocate(MIN_BUFFER_SIZE << sizeClass);
+        } else {
+            pooled[sizeClass].decrementAndGet();
+        }
+
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool.
+     * The buffer must not be used after this call.
+     *
+     * @param buffer buffer obtained with acquire (can be null)
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != direct || buffer.capacity() > MAX_BUFFER_SIZE) {
+            return;
+        }
+
+        final int sizeClass = getSizeClass(buffer.capacity());
+
+        if ((MIN_BUFFER_SIZE << sizeClass) != buffer.capacity()) {
+            // not allocated by a pool
+            return;
+        }
+
+        if (pooled[sizeClass].incrementAndGet() * (long) buffer.capacity() > MAX_POOLED_BYTES) {
+            // pool is full, let the garbage collector free the buffer
+            pooled[sizeClass].decrementAndGet();
+            return;
+        }
+
+        pools[sizeClass].offer(buffer);
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    // index of the smallest size class containing size
+    private static int getSizeClass(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,264 @@
+package com.github.ansa89.ytftp.core.protocol;
+
+/*
+ * YTFTPOptions.java - Class that parses and negotiates TFTP options (RFC 2347).
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import lombok.Getter;
+import lombok.NonNull;
+import org.apache.commons.net.tftp.TFTPDataPacket;
+
+import java.net.DatagramPacket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+public class YTFTPOptions {
+    public static final String BLKSIZE = "blksize";
+    public static final int DEFAULT_BLOCK_SIZE = TFTPDataPacket.MAX_DATA_LENGTH;
+    public static final int MIN_BLOCK_SIZE = 8;
+    public static final int MAX_BLOCK_SIZE = 65464;
+    public static final String WINDOWSIZE = "windowsize";
+    public static final int DEFAULT_WINDOW_SIZE = 1;
+    public static final int MAX_WINDOW_SIZE = 65535;
+    // data sent (and eventually buffered) in a window, whatever block and window sizes the client asks for
+    public static final int MAX_WINDOW_BYTES = 4 * 1024 * 1024;
+    public static final String TSIZE = "tsize";
+    public static final String TIMEOUT = "timeout";
+    public static final int MIN_TIMEOUT = 1;
+    public static final int MAX_TIMEOUT = 255;
+    public static final String MULTICAST = "multicast";
+
+    private final Map<String, String> requested;
+    private final Map<String, String> acknowledged = new LinkedHashMap<>();
+    @Getter
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    @Getter
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+
+    /**
+     * Create an empty set of options (plain RFC 1350 transfer).
+     */
+    public YTFTPOptions() {
+        this(new LinkedHashMap<>());
+    }
+
+    private YTFTPOptions(Map<String, String> requested) {
+        this.requested = requested;
+    }
+
+    /**
+     * Parse options appended to a RRQ/WRQ datagram (after filename and mode).
+     * Malformed trailing data is ignored, as suggested by RFC 2347.
+     *
+     * @param datagram request datagram
+     * @return parsed options
+     */
+    public static YTFTPOptions parse(@NonNull DatagramPacket datagram) {
+        final byte[] data = datagram.getData();
+        final int end = datagram.getOffset() + datagram.getLength();
+        final Map<String, String> options = new LinkedHashMap<>();
+        int index = datagram.getOffset() + 2;
+
+        // skip filename and mode
+        for (int i = 0; i < 2 && index < end; i++) {
+            index = skipString(data, index, end) + 1;
+        }
+
+        while (index < end) {
+            int nameEnd = skipString(data, index, end);
+            int valueEnd = skipString(data, nameEnd + 1, end);
+
+            if (valueEnd >= end) {
+                break;
+            }
+
+            String name = new String(data, index, nameEnd - index, StandardCharsets.US_ASCII).toLowerCase(Locale.ENGLISH);
+            String value = new String(data, nameEnd + 1, valueEnd - nameEnd - 1, StandardCharsets.US_ASCII);
+            options.putIfAbsent(name, value);
+            index = valueEnd + 1;
+        }
+
+        return new YTFTPOptions(options);
+    }
+
+    /**
+     * Negotiate the block size (RFC 2348).
+     * If the client asks for more than maxBlockSize, maxBlockSize is acknowledged instead.
+     *
+     * @param maxBlockSize maximum block size allowed by server
+     * @return negotiated block size
+     */
+    public int negotiateBlockSize(int maxBlockSize) {
+        Integer value = getRequestedInt(BLKSIZE);
+
+        if (value != null && value >= MIN_BLOCK_SIZE) {
+            blockSize = Math.min(value, maxBlockSize);
+            acknowledged.put(BLKSIZE, Integer.toString(blockSize));
+        }
+
+        return blockSize;
+    }
+
+    /**
+     * Negotiate the window size (RFC 7440), after the block size.
+     * If the client asks for more than maxWindowSize (or for more than MAX_WINDOW_BYTES of data per window), the
+     * maximum is acknowledged instead.
+     *
+     * @param maxWindowSize maximum window size allowed by server
+     * @return negotiated window size
+     */
+    public int negotiateWindowSize(int maxWindowSize) {
+        Integer value = getRequestedInt(WINDOWSIZE);
+
+        if (value != null && value >= 1) {
+            windowSize = Math.min(value, Math.max(1, Math.min(maxWindowSize, MAX_WINDOW_BYTES / blockSize)));
+            acknowledged.put(WINDOWSIZE, Integer.toString(windowSize));
+        }
+
+        return windowSize;
+    }
+
+    /**
+     * Get the transfer size announced by the client in a WRQ (RFC 2349).
+     *
+     * @return announced size in bytes, or null if not requested (or invalid)
+     */
+    public Long getRequestedTransferSize() {
+        String value = requested.get(TSIZE);
+
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            long size = Long.parseLong(value.trim());
+            return size >= 0 ? size : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Acknowledge the transfer size (RFC 2349), if requested by the client.
+     * For RRQ the size is the size of the file to send, for WRQ the size announced by the client.
+     *
+     * @param size transfer size in bytes
+     */
+    public void negotiateTransferSize(long size) {
+        if (requested.containsKey(TSIZE)) {
+            acknowledged.put(TSIZE, Long.toString(size));
+        }
+    }
+
+    /**
+     * Negotiate the retransmission timeout (RFC 2349).
+     * The option is acknowledged only if its value is between 1 and 255 seconds.
+     *
+     * @return negotiated timeout in seconds, or null if not requested (or invalid)
+     */
+    public Integer negotiateTimeout() {
+        Integer value = getRequestedInt(TIMEOUT);
+
+        if (value == null || value < MIN_TIMEOUT || value > MAX_TIMEOUT) {
+            return null;
+        }
+
+        acknowledged.put(TIMEOUT, Integer.toString(value));
+        return value;
+    }
+
+    /**
+     * Check if the client asked for a multicast transfer (RFC 2090).
+     *
+     * @return true if the multicast option has been sent
+     */
+    public boolean isMulticastRequested() {
+        return requested.containsKey(MULTICAST);
+    }
+
+    /**
+     * Acknowledge the multicast option (RFC 2090).
+     *
+     * @param value group address, port and master client flag ("addr,port,mc")
+     */
+    public void negotiateMulticast(@NonNull String value) {
+        acknowledged.put(MULTICAST, value);
+    }
+
+    /**
+     * Get options sent by the client.
+     *
+     * @return unmodifiable map of requested options (names in lower case)
+     */
+    public Map<String, String> getRequested() {
+        return Collections.unmodifiableMap(requested);
+    }
+
+    /**
+     * Get options accepted by the server, to be sent in the OACK.
+     *
+     * @return unmodifiable map of acknowledged options
+     */
+    public Map<String, String> getAcknowledged() {
+        return Collections.unmodifiableMap(acknowledged);
+    }
+
+    /**
+     * Check if an OACK must be sent to the client.
+     *
+     * @return true if at least one option has been acknowledged
+     */
+    public boolean hasAcknowledged() {
+        return !acknowledged.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return requested.toString();
+    }
+
+    private Integer getRequestedInt(String name) {
+        String value = requested.get(name);
+
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // return the index of the string terminator (or end if not found)
+    private static int skipString(byte[] data, int index, int end) {
+        while (index < end && data[index] != 0) {
+            index++;
+        }
+
+        return index;
+    }
+}
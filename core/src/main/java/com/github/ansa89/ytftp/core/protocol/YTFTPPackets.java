@@ -0,0 +1,194 @@
+package com.github.ansa89.ytftp.core.protocol;
+
+/*
+ * YTFTPPackets.java - Helpers to read and write raw TFTP packets.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import lombok.NonNull;
+import org.apache.commons.net.tftp.TFTPPacket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+public final class YTFTPPackets {
+    public static final int OPTION_ACKNOWLEDGEMENT = 6;
+    public static final int HEADER_SIZE = 4;
+    // ACK, ERROR and OACK packets must fit in a standard packet (RFC 1350 and RFC 2347)
+    public static final int MAX_CONTROL_PACKET_SIZE = YTFTPOptions.DEFAULT_BLOCK_SIZE + HEADER_SIZE;
+
+    private YTFTPPackets() {
+        super();
+    }
+
+    /**
+     * Get opcode of a raw packet (between position and limit of the buffer).
+     *
+     * @param packet packet to check
+     * @return opcode, or -1 if the packet is too short
+     */
+    public static int getOpcode(@NonNull ByteBuffer packet) {
+        if (packet.remaining() < 2) {
+            return -1;
+        }
+
+        return packet.getShort(packet.position()) & 0xffff;
+    }
+
+    /**
+     * Get block number of a raw DATA/ACK packet.
+     *
+     * @param packet packet to check
+     * @return block number, or -1 if the packet is too short
+     */
+    public static int getBlockNumber(@NonNull ByteBuffer packet) {
+        if (packet.remaining() < HEADER_SIZE) {
+            return -1;
+        }
+
+        return packet.getShort(packet.position() + 2) & 0xffff;
+    }
+
+    /**
+     * Get error code of a raw ERROR packet.
+     *
+     * @param packet packet to check
+     * @return error code, or -1 if the packet is too short
+     */
+    public static int getErrorCode(@NonNull ByteBuffer packet) {
+        return getBlockNumber(packet);
+    }
+
+    /**
+     * Get error message of a raw ERROR packet.
+     *
+     * @param packet packet to check
+     * @return error message (empty if missing)
+     */
+    public static String getErrorMessage(@NonNull ByteBuffer packet) {
+        final int start = packet.position() + HEADER_SIZE;
+        int end = start;
+
+        while (end < packet.limit() && packet.get(end) != 0) {
+            end++;
+        }
+
+        byte[] message = new byte[Math.max(0, end - start)];
+
+        for (int i = 0; i < message.length; i++) {
+            message[i] = packet.get(start + i);
+        }
+
+        return new String(message, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Write the DATA header at the current position of the given buffer.
+     *
+     * @param buffer destination (at least 4 bytes remaining)
+     * @param block  block number (wrapped to 16 bits)
+     */
+    public static void putDataHeader(@NonNull ByteBuffer buffer, int block) {
+        buffer.putShort((short) TFTPPacket.DATA);
+        buffer.putShort((short) block);
+    }
+
+    /**
+     * Write an ACK packet at the current position of the given buffer.
+     *
+     * @param buffer destination (at least 4 bytes remaining)
+     * @param block  block number (wrapped to 16 bits)
+     */
+    public static void putAck(@NonNull ByteBuffer buffer, int block) {
+        buffer.putShort((short) TFTPPacket.ACKNOWLEDGEMENT);
+        buffer.putShort((short) block);
+    }
+
+    /**
+     * Write an ERROR packet at the current position of the given buffer.
+     * The message is truncated if it does not fit in the buffer.
+     *
+     * @param buffer  destination (at least 5 bytes remaining)
+     * @param code    error code
+     * @param message error message (non ASCII characters are replaced by '?')
+     */
+    public static void putError(@NonNull ByteBuffer buffer, int code, @NonNull String message) {
+        buffer.putShort((short) TFTPPacket.ERROR);
+        buffer.putShort((short) code);
+        putString(buffer, message, true);
+    }
+
+    /**
+     * Write an OACK packet (RFC 2347) at the current position of the given buffer.
+     *
+     * @param buffer  destination
+     * @param options acknowledged options
+     * @throws java.nio.BufferOverflowException if options do not fit in the buffer
+     */
+    public static void putOptionAck(@NonNull ByteBuffer buffer, @NonNull Map<String, String> options) {
+        buffer.putShort((short) OPTION_ACKNOWLEDGEMENT);
+
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            putString(buffer, option.getKey(), false);
+            putString(buffer, option.getValue(), false);
+        }
+    }
+
+    /**
+     * Describe a raw packet, for logging purposes.
+     *
+     * @param packet packet to describe
+     * @return description
+     */
+    public static String describe(@NonNull ByteBuffer packet) {
+        final int opcode = getOpcode(packet);
+
+        switch (opcode) {
+            case TFTPPacket.DATA:
+                return "DATA block " + getBlockNumber(packet) + ", " + Math.max(0, packet.remaining() - HEADER_SIZE) + " bytes";
+            case TFTPPacket.ACKNOWLEDGEMENT:
+                return "ACK block " + getBlockNumber(packet);
+            case TFTPPacket.ERROR:
+                return "ERROR " + getErrorCode(packet) + ": " + getErrorMessage(packet);
+            case TFTPPacket.READ_REQUEST:
+                return "RRQ";
+            case TFTPPacket.WRITE_REQUEST:
+                return "WRQ";
+            case OPTION_ACKNOWLEDGEMENT:
+                return "OACK";
+            default:
+                return "opcode " + opcode;
+        }
+    }
+
+    // write a zero terminated ASCII string, eventually truncating it to fit the buffer
+    private static void putString(ByteBuffer buffer, String value, boolean truncate) {
+        final int length = truncate ? Math.min(value.length(), buffer.remaining() - 1) : value.length();
+
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            buffer.put((byte) (c < 0x80 ? c : '?'));
+        }
+
+        buffer.put((byte) 0);
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.ansa89.ytftp.core.protocol;
+
+/*
+ * YTFTPReusePortSocketFactory.java - Factory of datagram sockets sharing their port with other sockets (SO_REUSEPORT),
+ *                                    so that several threads can receive requests on the same address.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import org.apache.commons.net.DatagramSocketFactory;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+
+public class YTFTPReusePortSocketFactory implements DatagramSocketFactory {
+    /**
+     * Check if datagram sockets support SO_REUSEPORT on this platform.
+     *
+     * @return true if supported
+     */
+    public static boolean isSupported() {
+        try (DatagramSocket socket = new DatagramSocket(null)) {
+            return socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public DatagramSocket createDatagramSocket() throws SocketException {
+        return createDatagramSocket(0, null);
+    }
+
+    @Override
+    public DatagramSocket createDatagramSocket(int port) throws SocketException {
+        return createDatagramSocket(port, null);
+    }
+
+    @Override
+    public DatagramSocket createDatagramSocket(int port, InetAddress laddr) throws SocketException {
+        DatagramSocket socket = new DatagramSocket(null);
+
+        try {
+            // the option must be set on every socket sharing the port, before binding it
+            socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            socket.bind(new InetSocketAddress(laddr, port));
+            return socket;
+        } catch (IOException | UnsupportedOperationException e) {
+            socket.close();
+
+            SocketException error = new SocketException("Cannot bind socket with SO_REUSEPORT");
+            error.initCause(e);
+            throw error;
+        }
+    }
+}
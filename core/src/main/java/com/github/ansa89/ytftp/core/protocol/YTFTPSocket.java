@@ -0,0 +1,143 @@
+package com.github.ansa89.ytftp.core.protocol;
+
+/*
+ * YTFTPSocket.java - TFTP socket able to handle packets bigger than 512 bytes of data and OACK packets.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import lombok.NonNull;
+import org.apache.commons.net.tftp.TFTP;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+public class YTFTPSocket extends TFTP implements YTFTPTransport {
+    // buffers are taken from the heap pool (datagram sockets need arrays) and returned by release
+    private ByteBuffer receiveBuffer;
+    private int receiveSize;
+    private final DatagramPacket receiveDatagram = new DatagramPacket(new byte[0], 0);
+    private ByteBuffer sendBuffer;
+    private final DatagramPacket sendDatagram = new DatagramPacket(new byte[0], 0);
+    private ByteBuffer controlBuffer;
+
+    public YTFTPSocket() {
+        this(YTFTPOptions.DEFAULT_BLOCK_SIZE);
+    }
+
+    public YTFTPSocket(int blockSize) {
+        super();
+        controlBuffer = YTFTPBufferPool.heap().acquire(YTFTPPackets.MAX_CONTROL_PACKET_SIZE);
+        setBlockSize(blockSize);
+    }
+
+    @Override
+    public void setBlockSize(int blockSize) {
+        YTFTPBufferPool.heap().release(receiveBuffer);
+        YTFTPBufferPool.heap().release(sendBuffer);
+        receiveSize = blockSize + YTFTPPackets.HEADER_SIZE;
+        receiveBuffer = YTFTPBufferPool.heap().acquire(receiveSize);
+        sendBuffer = YTFTPBufferPool.heap().acquire(blockSize + YTFTPPackets.HEADER_SIZE);
+    }
+
+    /**
+     * Receive a raw datagram.
+     * The returned datagram is reused by next calls, its content is also available with getReceivedData.
+     *
+     * @return received datagram
+     * @throws IOException if an I/O error occurs (including timeouts)
+     */
+    public DatagramPacket receiveDatagram() throws IOException {
+        receiveDatagram.setData(receiveBuffer.array(), 0, receiveSize);
+        _socket_.receive(receiveDatagram);
+        return receiveDatagram;
+    }
+
+    /**
+     * Get the content of the last datagram received.
+     * The returned buffer is reused by next calls.
+     *
+     * @return buffer containing the datagram between position and limit
+     */
+    public ByteBuffer getReceivedData() {
+        receiveBuffer.limit(receiveDatagram.getLength()).position(0);
+        return receiveBuffer;
+    }
+
+    @Override
+    public void sendData(InetAddress address, int port, int block, byte[] data, int offset, int length) throws IOException {
+        sendBuffer.clear();
+        YTFTPPackets.putDataHeader(sendBuffer, block);
+        sendBuffer.put(data, offset, length);
+        send(sendBuffer, sendDatagram, address, port);
+    }
+
+    @Override
+    public void sendData(InetAddress address, int port, int block, @NonNull ByteBuffer data) throws IOException {
+        sendBuffer.clear();
+        YTFTPPackets.putDataHeader(sendBuffer, block);
+        sendBuffer.put(data);
+        send(sendBuffer, sendDatagram, address, port);
+    }
+
+    @Override
+    public void sendAck(InetAddress address, int port, int block) throws IOException {
+        controlBuffer.clear();
+        YTFTPPackets.putAck(controlBuffer, block);
+        send(controlBuffer, sendDatagram, address, port);
+    }
+
+    @Override
+    public void sendError(InetAddress address, int port, int code, @NonNull String message) throws IOException {
+        controlBuffer.clear();
+        YTFTPPackets.putError(controlBuffer, code, message);
+        send(controlBuffer, sendDatagram, address, port);
+    }
+
+    @Override
+    public void sendOptionAck(InetAddress address, int port, @NonNull Map<String, String> options) throws IOException {
+        controlBuffer.clear();
+        YTFTPPackets.putOptionAck(controlBuffer, options);
+        send(controlBuffer, sendDatagram, address, port);
+    }
+
+    /**
+     * Return the buffers to the pool.
+     * Closing the socket does not, as another thread may still be receiving or sending: this must be called by the
+     * thread using the socket, once closed.
+     */
+    public void release() {
+        YTFTPBufferPool.heap().release(receiveBuffer);
+        YTFTPBufferPool.heap().release(sendBuffer);
+        YTFTPBufferPool.heap().release(controlBuffer);
+        receiveBuffer = sendBuffer = controlBuffer = null;
+    }
+
+    // send the packet written in buffer (from 0 to position)
+    private void send(ByteBuffer buffer, DatagramPacket datagram, InetAddress address, int port) throws IOException {
+        datagram.setData(buffer.array(), 0, buffer.position());
+        datagram.setAddress(address);
+        datagram.setPort(port);
+        _socket_.send(datagram);
+    }
+}
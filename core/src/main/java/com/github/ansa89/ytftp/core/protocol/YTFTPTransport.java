@@ -0,0 +1,98 @@
+package com.github.ansa89.ytftp.core.protocol;
+
+/*
+ * YTFTPTransport.java - Interface used by transfers to send packets, independently of the underlying socket.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+public interface YTFTPTransport {
+    /**
+     * Send a DATA packet without the 512 bytes limit of TFTPDataPacket.
+     *
+     * @param address destination address
+     * @param port    destination port
+     * @param block   block number
+     * @param data    buffer containing data
+     * @param offset  data offset
+     * @param length  data length
+     * @throws IOException if an I/O error occurs
+     */
+    void sendData(InetAddress address, int port, int block, byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Send a DATA packet taking data from a buffer (e.g. a memory mapped file), without intermediate copies.
+     *
+     * @param address destination address
+     * @param port    destination port
+     * @param block   block number
+     * @param data    buffer containing data between position and limit (position is moved to limit)
+     * @throws IOException if an I/O error occurs
+     */
+    void sendData(InetAddress address, int port, int block, ByteBuffer data) throws IOException;
+
+    /**
+     * Send an ACK packet.
+     *
+     * @param address destination address
+     * @param port    destination port
+     * @param block   block number
+     * @throws IOException if an I/O error occurs
+     */
+    void sendAck(InetAddress address, int port, int block) throws IOException;
+
+    /**
+     * Send an ERROR packet.
+     *
+     * @param address destination address
+     * @param port    destination port
+     * @param code    error code
+     * @param message error message
+     * @throws IOException if an I/O error occurs
+     */
+    void sendError(InetAddress address, int port, int code, String message) throws IOException;
+
+    /**
+     * Send an OACK packet (RFC 2347).
+     *
+     * @param address destination address
+     * @param port    destination port
+     * @param options acknowledged options
+     * @throws IOException if an I/O error occurs
+     */
+    void sendOptionAck(InetAddress address, int port, Map<String, String> options) throws IOException;
+
+    /**
+     * Prepare the transport to handle packets of the negotiated block size.
+     *
+     * @param blockSize data length of DATA packets
+     */
+    void setBlockSize(int blockSize);
+
+    /**
+     * Close the transport, returning its buffers to the pool.
+     */
+    void close();
+}
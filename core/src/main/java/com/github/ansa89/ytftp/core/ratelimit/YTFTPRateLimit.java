@@ -0,0 +1,64 @@
+package com.github.ansa89.ytftp.core.ratelimit;
+
+/*
+ * YTFTPRateLimit.java - Immutable rate limit configuration (rate and burst) of a token bucket.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import lombok.Value;
+
+@Value
+public class YTFTPRateLimit {
+    // tokens (requests or bytes) added every second
+    double rate;
+    // maximum tokens accumulated while idle
+    double burst;
+
+    /**
+     * Create a rate limit.
+     *
+     * @param rate  tokens per second, must be greater than 0
+     * @param burst maximum tokens used at once after an idle period, must be greater or equal than 1
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public YTFTPRateLimit(double rate, double burst) {
+        if (!(rate > 0)) {
+            throw new YTFTPError("Specify a rate greater than 0");
+        }
+
+        if (!(burst >= 1)) {
+            throw new YTFTPError("Specify a burst greater or equal than 1");
+        }
+
+        this.rate = rate;
+        this.burst = burst;
+    }
+
+    /**
+     * Create a token bucket applying this limit.
+     *
+     * @return full token bucket
+     */
+    public YTFTPTokenBucket newBucket() {
+        return new YTFTPTokenBucket(rate, burst);
+    }
+}
@@ -0,0 +1,142 @@
+package com.github.ansa89.ytftp.core.ratelimit;
+
+/*
+ * YTFTPRequestLimiter.java - Limiter of new requests per client address, per subnet and per server.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class YTFTPRequestLimiter {
+    public static final int DEFAULT_IPV4_PREFIX_LENGTH = 24;
+    public static final int DEFAULT_IPV6_PREFIX_LENGTH = 64;
+    // idle buckets are dropped when a map grows bigger than this
+    private static final int MAX_BUCKETS = 65536;
+
+    @Getter
+    private final YTFTPRateLimit clientLimit;
+    @Getter
+    private final YTFTPRateLimit subnetLimit;
+    @Getter
+    private final YTFTPRateLimit serverLimit;
+    private final int ipv4PrefixLength;
+    private final int ipv6PrefixLength;
+    private final Map<InetAddress, YTFTPTokenBucket> clients = new ConcurrentHashMap<>();
+    private final Map<InetAddress, YTFTPTokenBucket> subnets = new ConcurrentHashMap<>();
+    private final YTFTPTokenBucket server;
+
+    /**
+     * Create a limiter.
+     *
+     * @param clientLimit      limit of requests of each client address (null for no limit)
+     * @param subnetLimit      limit of requests of each subnet (null for no limit)
+     * @param serverLimit      limit of requests of all clients (null for no limit)
+     * @param ipv4PrefixLength prefix length of IPv4 subnets, between 0 and 32
+     * @param ipv6PrefixLength prefix length of IPv6 subnets, between 0 and 128
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public YTFTPRequestLimiter(YTFTPRateLimit clientLimit, YTFTPRateLimit subnetLimit, YTFTPRateLimit serverLimit, int ipv4PrefixLength, int ipv6PrefixLength) {
+        if (ipv4PrefixLength < 0 || ipv4PrefixLength > 32 || ipv6PrefixLength < 0 || ipv6PrefixLength > 128) {
+            throw new YTFTPError("Specify a prefix length between 0 and 32 (IPv4) or 128 (IPv6)");
+        }
+
+        this.clientLimit = clientLimit;
+        this.subnetLimit = subnetLimit;
+        this.serverLimit = serverLimit;
+        this.ipv4PrefixLength = ipv4PrefixLength;
+        this.ipv6PrefixLength = ipv6PrefixLength;
+        this.server = serverLimit != null ? serverLimit.newBucket() : null;
+    }
+
+    /**
+     * Check if a new request of a client can be accepted, consuming a token of each limit.
+     *
+     * @param address client address
+     * @return true if the request is within all limits
+     */
+    public boolean tryAcquire(@NonNull InetAddress address) {
+        YTFTPTokenBucket client = clientLimit != null ? getBucket(clients, address, clientLimit) : null;
+        YTFTPTokenBucket subnet = subnetLimit != null ? getBucket(subnets, getSubnet(address), subnetLimit) : null;
+
+        if (client != null && client.tryAcquire(1) > 0) {
+            return false;
+        }
+
+        if (subnet != null && subnet.tryAcquire(1) > 0) {
+            release(client);
+            return false;
+        }
+
+        if (server != null && server.tryAcquire(1) > 0) {
+            release(client);
+            release(subnet);
+            return false;
+        }
+
+        return true;
+    }
+
+    private InetAddress getSubnet(InetAddress address) {
+        final byte[] bytes = address.getAddress();
+        final int prefixLength = address instanceof Inet4Address ? ipv4PrefixLength : ipv6PrefixLength;
+
+        for (int i = 0; i < bytes.length; i++) {
+            int bits = Math.max(0, Math.min(8, prefixLength - i * 8));
+            bytes[i] &= (byte) (0xff00 >> bits);
+        }
+
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            // cannot happen with a valid address length
+            throw new YTFTPError("Invalid address " + address, e);
+        }
+    }
+
+    private static YTFTPTokenBucket getBucket(Map<InetAddress, YTFTPTokenBucket> buckets, InetAddress key, YTFTPRateLimit limit) {
+        YTFTPTokenBucket bucket = buckets.get(key);
+
+        if (bucket == null) {
+            if (buckets.size() >= MAX_BUCKETS) {
+                // full buckets behave like new ones, they can be dropped
+                buckets.values().removeIf(YTFTPTokenBucket::isFull);
+            }
+
+            bucket = buckets.computeIfAbsent(key, k -> limit.newBucket());
+        }
+
+        return bucket;
+    }
+
+    private static void release(YTFTPTokenBucket bucket) {
+        if (bucket != null) {
+            bucket.release(1);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.ansa89.ytftp.core.ratelimit;
+
+/*
+ * YTFTPTokenBucket.java - Token bucket used to limit request rates and bandwidth.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+public class YTFTPTokenBucket {
+    private final double rate;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Create a full token bucket.
+     *
+     * @param rate     tokens added every second
+     * @param capacity maximum tokens
+     */
+    public YTFTPTokenBucket(double rate, double capacity) {
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Take tokens from the bucket, if it is not empty.
+     * The bucket can go in debt, so that amounts bigger than its capacity (e.g. big blocks) can be taken.
+     *
+     * @param amount tokens to take
+     * @return 0 if tokens have been taken, otherwise milliseconds to wait before trying again
+     */
+    public synchronized long tryAcquire(double amount) {
+        refill();
+
+        if (tokens > 0) {
+            tokens -= amount;
+            return 0;
+        }
+
+        return Math.max(1, (long) Math.ceil(-tokens * 1000 / rate));
+    }
+
+    /**
+     * Give back tokens taken but not used.
+     *
+     * @param amount tokens to give back
+     */
+    public synchronized void release(double amount) {
+        tokens = Math.min(capacity, tokens + amount);
+    }
+
+    /**
+     * Check if the bucket is full, i.e. it has not been used recently.
+     *
+     * @return true if full
+     */
+    public synchronized boolean isFull() {
+        refill();
+        return tokens >= capacity;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,270 @@
+package com.github.ansa89.ytftp.core.storage;
+
+/*
+ * YTFTPArchiveStorage.java - Read-only storage backend serving the entries of a ZIP/JAR archive mapped in memory.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.github.ansa89.ytftp.core.io.YTFTPFileReader;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Value;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+public class YTFTPArchiveStorage implements YTFTPStorage {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int FLAG_ENCRYPTED = 0x1;
+    private static final int FLAG_UTF8 = 0x800;
+
+    @Getter
+    private final Path archive;
+    private final ByteBuffer mapping;
+    private final Map<String, YTFTPArchiveEntry> entries;
+
+    /**
+     * Map the archive and read its central directory.
+     * Stored (uncompressed) entries are sent straight from the mapping, deflated entries are inflated when opened.
+     *
+     * @param archive ZIP or JAR file (smaller than 2 GB, without ZIP64 extensions)
+     * @throws IOException if the file cannot be read or is not a valid archive
+     */
+    public YTFTPArchiveStorage(@NonNull Path archive) throws IOException {
+        final MappedByteBuffer mapped;
+
+        try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+            if (channel.size() > YTFTPFileReader.MAX_MAPPED_SIZE) {
+                throw new ZipException("Archive too large: " + archive);
+            }
+
+            // the mapping stays valid after the channel is closed
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        this.archive = archive;
+        this.mapping = mapped.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        this.entries = Collections.unmodifiableMap(readEntries(mapping));
+    }
+
+    /**
+     * Get the names of the served entries.
+     *
+     * @return unmodifiable set of names
+     */
+    public Set<String> getFileNames() {
+        return entries.keySet();
+    }
+
+    @Override
+    public YTFTPReadableFile openRead(@NonNull String fileName) throws IOException {
+        final String name = YTFTPStorage.normalizeName(fileName);
+        final YTFTPArchiveEntry entry = name != null ? entries.get(name) : null;
+
+        if (entry == null) {
+            throw new FileNotFoundException(fileName + " (No such entry in " + archive + ")");
+        }
+
+        final int dataOffset = getDataOffset(entry);
+
+        if (entry.getMethod() == METHOD_STORED) {
+            return YTFTPFileReader.wrap(slice(dataOffset, (int) entry.getSize()));
+        }
+
+        return YTFTPFileReader.wrap(inflate(entry, slice(dataOffset, (int) entry.getCompressedSize())));
+    }
+
+    @Override
+    public YTFTPWritableFile openWrite(@NonNull String fileName, Long size) throws IOException {
+        throw new AccessDeniedException(fileName, null, "Read-only archive storage");
+    }
+
+    @Override
+    public long getUsableSpace() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return archive + " (" + entries.size() + " entries)";
+    }
+
+    private ByteBuffer slice(int offset, int length) throws ZipException {
+        if (offset < 0 || length < 0 || (long) offset + length > mapping.capacity()) {
+            throw new ZipException("Entry outside of archive " + archive);
+        }
+
+        ByteBuffer slice = mapping.duplicate();
+        slice.position(offset).limit(offset + length);
+        return slice.slice();
+    }
+
+    // entry data follows its local header, whose variable fields may differ from those of the central directory
+    private int getDataOffset(YTFTPArchiveEntry entry) throws ZipException {
+        final int offset = entry.getHeaderOffset();
+
+        if (offset < 0 || offset + LOCAL_HEADER_SIZE > mapping.capacity() || mapping.getInt(offset) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header in " + archive);
+        }
+
+        return offset + LOCAL_HEADER_SIZE + getUnsignedShort(mapping, offset + 26) + getUnsignedShort(mapping, offset + 28);
+    }
+
+    private ByteBuffer inflate(YTFTPArchiveEntry entry, ByteBuffer compressed) throws IOException {
+        final byte[] input = new byte[compressed.remaining()];
+        final byte[] output = new byte[(int) entry.getSize()];
+        final Inflater inflater = new Inflater(true);
+        int length = 0;
+
+        compressed.get(input);
+        inflater.setInput(input);
+
+        try {
+            while (length < output.length && !inflater.finished()) {
+                int inflated = inflater.inflate(output, length, output.length - length);
+
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid compressed data in " + archive + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+
+        if (length != output.length) {
+            throw new ZipException("Truncated compressed data in " + archive);
+        }
+
+        return ByteBuffer.wrap(output).asReadOnlyBuffer();
+    }
+
+    private Map<String, YTFTPArchiveEntry> readEntries(ByteBuffer zip) throws ZipException {
+        final int end = findEnd(zip);
+        final int count = getUnsignedShort(zip, end + 10);
+        final long directorySize = getUnsignedInt(zip, end + 12);
+        final long directoryOffset = getUnsignedInt(zip, end + 16);
+        final Map<String, YTFTPArchiveEntry> result = new HashMap<>(count * 2);
+
+        if (count == 0xffff || directoryOffset == 0xffffffffL || directoryOffset + directorySize > end) {
+            throw new ZipException("Unsupported or invalid central directory in " + archive);
+        }
+
+        int offset = (int) directoryOffset;
+
+        for (int i = 0; i < count; i++) {
+            if (offset + CENTRAL_HEADER_SIZE > end || zip.getInt(offset) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory entry in " + archive);
+            }
+
+            final int flags = getUnsignedShort(zip, offset + 8);
+            final int method = getUnsignedShort(zip, offset + 10);
+            final long compressedSize = getUnsignedInt(zip, offset + 20);
+            final long size = getUnsignedInt(zip, offset + 24);
+            final int nameLength = getUnsignedShort(zip, offset + 28);
+            final int extraLength = getUnsignedShort(zip, offset + 30);
+            final int commentLength = getUnsignedShort(zip, offset + 32);
+            final long headerOffset = getUnsignedInt(zip, offset + 42);
+            final byte[] nameBytes = new byte[nameLength];
+
+            zip.duplicate().position(offset + CENTRAL_HEADER_SIZE).get(nameBytes);
+            offset += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+            // names are UTF-8 if flagged, otherwise CP437 (whose ASCII range is the one used in practice)
+            final String name = new String(nameBytes, (flags & FLAG_UTF8) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+
+            if (name.endsWith("/")) {
+                continue;
+            }
+
+            if ((flags & FLAG_ENCRYPTED) != 0 || (method != METHOD_STORED && method != METHOD_DEFLATED)) {
+                throw new ZipException("Unsupported entry " + name + " in " + archive);
+            }
+
+            if (size == 0xffffffffL || compressedSize == 0xffffffffL || headerOffset == 0xffffffffL) {
+                throw new ZipException("ZIP64 entry " + name + " in " + archive + " not supported");
+            }
+
+            final String key = YTFTPStorage.normalizeName(name);
+
+            if (key == null || key.isEmpty()) {
+                throw new ZipException("Invalid entry name " + name + " in " + archive);
+            }
+
+            result.put(key, new YTFTPArchiveEntry(method, (int) headerOffset, compressedSize, size));
+        }
+
+        return result;
+    }
+
+    // the end of central directory record is at the end of the archive, followed by a comment of up to 64 KB
+    private int findEnd(ByteBuffer zip) throws ZipException {
+        final int last = zip.capacity() - END_SIZE;
+
+        for (int offset = last; offset >= 0 && offset >= last - 0xffff; offset--) {
+            if (zip.getInt(offset) == END_SIGNATURE && offset + END_SIZE + getUnsignedShort(zip, offset + 20) == zip.capacity()) {
+                return offset;
+            }
+        }
+
+        throw new ZipException("Not a ZIP archive: " + archive);
+    }
+
+    private static int getUnsignedShort(ByteBuffer buffer, int offset) {
+        return buffer.getShort(offset) & 0xffff;
+    }
+
+    private static long getUnsignedInt(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset) & 0xffffffffL;
+    }
+
+    @Value
+    private static class YTFTPArchiveEntry {
+        int method;
+        int headerOffset;
+        long compressedSize;
+        long size;
+    }
+}
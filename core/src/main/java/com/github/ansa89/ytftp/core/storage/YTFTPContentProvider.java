@@ -0,0 +1,52 @@
+package com.github.ansa89.ytftp.core.storage;
+
+/*
+ * YTFTPContentProvider.java - Provider of files generated when requested (e.g. per-client boot configurations),
+ *                             served in place of files of the read storage.
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+@FunctionalInterface
+public interface YTFTPContentProvider {
+    /**
+     * Generate the content of a requested file.
+     * Called by render threads, possibly concurrently: implementations must be thread-safe, and should decline
+     * quickly the files they don't generate, as they are asked for every read request. Renders taking longer than
+     * the timeout of the cache are interrupted.
+     *
+     * @param fileName      normalized file name (see YTFTPStorage.normalizeName)
+     * @param clientAddress address of the client
+     * @return content, or null to serve the file from the read storage
+     * @throws IOException if the content cannot be generated
+     */
+    byte[] generate(String fileName, InetAddress clientAddress) throws IOException;
+
+    /**
+     * Tell if generated content depends on the client address, or only on the file name (e.g. a MAC address in it).
+     * Content that doesn't depend on the client is cached once for all clients.
+     *
+     * @return true if content depends on the client address
+     */
+    default boolean isClientSpecific() {
+        return true;
+    }
+}
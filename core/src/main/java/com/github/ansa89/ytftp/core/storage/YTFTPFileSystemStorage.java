@@ -0,0 +1,370 @@
+package com.github.ansa89.ytftp.core.storage;
+
+/*
+ * YTFTPFileSystemStorage.java - Storage backend reading and writing files of a local directory, eventually
+ *                               through caches and write-behind uploads.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.github.ansa89.ytftp.core.cache.YTFTPDecompressionCache;
+import com.github.ansa89.ytftp.core.cache.YTFTPFileCache;
+import com.github.ansa89.ytftp.core.cache.YTFTPPathCache;
+import com.github.ansa89.ytftp.core.cache.YTFTPResolvedPath;
+import com.github.ansa89.ytftp.core.enums.YTFTPSyncMode;
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import com.github.ansa89.ytftp.core.io.YTFTPDecompressor;
+import com.github.ansa89.ytftp.core.io.YTFTPFileReader;
+import com.github.ansa89.ytftp.core.io.YTFTPFileWriter;
+import com.github.ansa89.ytftp.core.transfer.YTFTPTransfer;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+public class YTFTPFileSystemStorage implements YTFTPStorage {
+    public static final YTFTPSyncMode DEFAULT_SYNC_MODE = YTFTPSyncMode.NEVER;
+    public static final long DEFAULT_SYNC_BYTES = 8L * 1024 * 1024;
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    @Getter
+    private final Path directory;
+    private final Path tempDirectory;
+    private final YTFTPPathCache pathCache;
+    private final YTFTPFileCache fileCache;
+    private final YTFTPFileCache netAsciiCache;
+    private final YTFTPDecompressionCache decompressionCache;
+    private final YTFTPSyncMode syncMode;
+    private final long syncBytes;
+    private final int bufferSize;
+
+    /**
+     * Create a storage of the given directory, without caches.
+     *
+     * @param directory root directory (requested file names are resolved inside it)
+     */
+    public YTFTPFileSystemStorage(Path directory) {
+        this(directory, null, null, null, null, DEFAULT_SYNC_MODE, DEFAULT_SYNC_BYTES, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create a storage of the given directory.
+     *
+     * @param directory          root directory (requested file names are resolved inside it)
+     * @param pathCache          cache of resolved file names of the directory (null for no cache)
+     * @param fileCache          cache of files read in octet mode (null for no cache)
+     * @param netAsciiCache      cache of files read in netascii mode (null for no cache)
+     * @param decompressionCache cache of compressed files served in place of missing plain files (null to not serve
+     *                           compressed files)
+     * @param syncMode           when written files are synced to disk
+     * @param syncBytes          amount of data written between syncs with EVERY_N_BYTES
+     * @param bufferSize         maximum amount of data of each written file buffered in memory
+     * @throws YTFTPError if the path cache is of another directory
+     */
+    public YTFTPFileSystemStorage(@NonNull Path directory, YTFTPPathCache pathCache, YTFTPFileCache fileCache, YTFTPFileCache netAsciiCache, YTFTPDecompressionCache decompressionCache, @NonNull YTFTPSyncMode syncMode, long syncBytes, int bufferSize) {
+        if (pathCache != null && !pathCache.getDirectory().equals(directory.toAbsolutePath().normalize())) {
+            throw new YTFTPError("Path cache of " + pathCache.getDirectory() + " cannot be used for " + directory);
+        }
+
+        this.directory = directory;
+        this.tempDirectory = directory.toAbsolutePath().normalize().resolve(YTFTPFileWriter.TEMP_DIRECTORY);
+        this.pathCache = pathCache;
+        this.fileCache = fileCache;
+        this.netAsciiCache = netAsciiCache;
+        this.decompressionCache = decompressionCache;
+        this.syncMode = syncMode;
+        this.syncBytes = syncBytes;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws YTFTPError if the path is outside the directory
+     */
+    @Override
+    public YTFTPReadableFile openRead(@NonNull String fileName) throws IOException {
+        checkNotTemporary(fileName);
+
+        try {
+            if (pathCache == null) {
+                final Path path = YTFTPTransfer.buildSafePath(directory, fileName, false);
+                return fileCache != null ? fileCache.open(path) : YTFTPFileReader.open(path);
+            }
+
+            final YTFTPResolvedPath resolved = resolveRegularFile(fileName);
+            return fileCache != null ? fileCache.open(resolved.getPath(), resolved.getAttributes()) : YTFTPFileReader.open(resolved.getPath(), resolved.getAttributes());
+        } catch (FileNotFoundException e) {
+            final YTFTPReadableFile compressed = openCompressed(fileName);
+
+            if (compressed == null) {
+                throw e;
+            }
+
+            return compressed;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws YTFTPError if the path is outside the directory
+     */
+    @Override
+    public YTFTPReadableFile openNetAsciiRead(@NonNull String fileName) throws IOException {
+        if (netAsciiCache == null) {
+            return null;
+        }
+
+        checkNotTemporary(fileName);
+
+        try {
+            if (pathCache == null) {
+                return netAsciiCache.open(YTFTPTransfer.buildSafePath(directory, fileName, false));
+            }
+
+            final YTFTPResolvedPath resolved = resolveRegularFile(fileName);
+            return netAsciiCache.open(resolved.getPath(), resolved.getAttributes());
+        } catch (FileNotFoundException e) {
+            if (decompressionCache == null) {
+                throw e;
+            }
+
+            // let openRead look for a compressed file, converted while sent
+            return null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Requests of a file being loaded in cache by another request continue when the load completes, without holding
+     * a storage thread.
+     */
+    @Override
+    public CompletableFuture<YTFTPReadableFile> openReadAsync(@NonNull String fileName) {
+        if (fileCache == null) {
+            return YTFTPStorage.super.openReadAsync(fileName);
+        }
+
+        final CompletableFuture<YTFTPReadableFile> open = new CompletableFuture<>();
+
+        openCached(fileCache, fileName).whenComplete((reader, e) -> {
+            final Throwable cause = unwrap(e);
+
+            if (cause == null) {
+                open.complete(reader);
+            } else if (cause instanceof FileNotFoundException && decompressionCache != null) {
+                YTFTPStorageThreads.submit(() -> {
+                    final YTFTPReadableFile compressed = openCompressed(fileName);
+
+                    if (compressed == null) {
+                        throw (FileNotFoundException) cause;
+                    }
+
+                    return compressed;
+                }).whenComplete((compressed, error) -> complete(open, compressed, error));
+            } else {
+                open.completeExceptionally(cause);
+            }
+        });
+
+        return open;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Requests of a file being loaded in cache by another request continue when the load completes, without holding
+     * a storage thread.
+     */
+    @Override
+    public CompletableFuture<YTFTPReadableFile> openNetAsciiReadAsync(@NonNull String fileName) {
+        if (netAsciiCache == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final CompletableFuture<YTFTPReadableFile> open = new CompletableFuture<>();
+
+        openCached(netAsciiCache, fileName).whenComplete((reader, e) -> {
+            final Throwable cause = unwrap(e);
+
+            // let openRead look for a compressed file, converted while sent
+            complete(open, reader, cause instanceof FileNotFoundException && decompressionCache != null ? null : cause);
+        });
+
+        return open;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Data is buffered in memory and written behind to a temporary file in the hidden YTFTPFileWriter.TEMP_DIRECTORY,
+     * linked to its destination when committed. Files in that directory cannot be read nor written by clients.
+     *
+     * @throws YTFTPError if the path is outside the directory, or its parent directories cannot be created
+     */
+    @Override
+    public YTFTPWritableFile openWrite(@NonNull String fileName, Long size) throws IOException {
+        final Path path;
+
+        if (isTemporary(fileName)) {
+            throw new AccessDeniedException(fileName, null, "Reserved directory");
+        }
+
+        if (pathCache == null) {
+            path = YTFTPTransfer.buildSafePath(directory, fileName, true);
+
+            if (Files.exists(path)) {
+                throw new FileAlreadyExistsException(path.toString());
+            }
+        } else {
+            final YTFTPResolvedPath resolved = pathCache.resolve(fileName);
+            path = resolved.getPath();
+
+            if (resolved.exists()) {
+                throw new FileAlreadyExistsException(path.toString());
+            }
+
+            if (!pathCache.lookup(path.getParent()).isDirectory()) {
+                createDirectories(path.getParent());
+            }
+        }
+
+        // not looked up in the path cache, which does not watch it
+        createDirectories(tempDirectory);
+
+        // preallocate the announced size (if any) to limit fragmentation
+        return YTFTPFileWriter.open(path, tempDirectory, size, syncMode, syncBytes, bufferSize);
+    }
+
+    @Override
+    public long getUsableSpace() throws IOException {
+        return Files.getFileStore(directory).getUsableSpace();
+    }
+
+    @Override
+    public String toString() {
+        return directory.toString();
+    }
+
+    private YTFTPResolvedPath resolveRegularFile(String fileName) throws IOException {
+        final YTFTPResolvedPath resolved = pathCache.resolve(fileName);
+
+        if (!resolved.exists()) {
+            throw new FileNotFoundException(resolved.getPath() + " (No such file or directory)");
+        }
+
+        if (!resolved.isRegularFile()) {
+            throw new FileNotFoundException(resolved.getPath() + " (Not a regular file)");
+        }
+
+        return resolved;
+    }
+
+    // the name is resolved by a storage thread (if not in the path cache), the file is read by the cache
+    private CompletableFuture<YTFTPFileReader> openCached(YTFTPFileCache cache, String fileName) {
+        if (pathCache == null) {
+            try {
+                checkNotTemporary(fileName);
+                return cache.openAsync(YTFTPTransfer.buildSafePath(directory, fileName, false));
+            } catch (IOException | RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        return YTFTPStorageThreads.submit(() -> {
+            checkNotTemporary(fileName);
+            return resolveRegularFile(fileName);
+        }).thenCompose(resolved -> cache.openAsync(resolved.getPath(), resolved.getAttributes()));
+    }
+
+    // decompressed content of a compressed file named as the requested one plus the extension of its format (null if
+    // there is none)
+    private YTFTPReadableFile openCompressed(String fileName) throws IOException {
+        if (decompressionCache == null) {
+            return null;
+        }
+
+        final Path path = pathCache != null ? pathCache.resolve(fileName).getPath() : YTFTPTransfer.buildSafePath(directory, fileName, false);
+
+        if (path.getFileName() == null) {
+            return null;
+        }
+
+        for (YTFTPDecompressor decompressor : decompressionCache.getDecompressors()) {
+            final Path compressed = path.resolveSibling(path.getFileName() + decompressor.getExtension());
+            final BasicFileAttributes attributes = pathCache != null ? pathCache.lookup(compressed.toAbsolutePath().normalize()).getAttributes() : readAttributes(compressed);
+
+            if (attributes != null && attributes.isRegularFile()) {
+                return decompressionCache.open(compressed, attributes, decompressor);
+            }
+        }
+
+        return null;
+    }
+
+    // files being uploaded are not visible until committed, in this storage or in one whose directory contains this
+    // one (checked before the name is resolved, so the path cache never holds them)
+    private static boolean isTemporary(String fileName) {
+        final String name = YTFTPStorage.normalizeName(fileName);
+        return name != null && ("/" + name + "/").contains("/" + YTFTPFileWriter.TEMP_DIRECTORY + "/");
+    }
+
+    private static void checkNotTemporary(String fileName) throws FileNotFoundException {
+        if (isTemporary(fileName)) {
+            throw new FileNotFoundException(fileName + " (No such file or directory)");
+        }
+    }
+
+    private static void complete(CompletableFuture<YTFTPReadableFile> open, YTFTPReadableFile file, Throwable error) {
+        if (error != null) {
+            open.completeExceptionally(error);
+        } else {
+            open.complete(file);
+        }
+    }
+
+    // errors of dependent stages are wrapped
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static void createDirectories(Path dir) {
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new YTFTPError("Error creating destination directory " + dir, e);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.github.ansa89.ytftp.core.storage;
+
+/*
+ * YTFTPMemoryStorage.java - Storage backend keeping files in memory (e.g. a fixed set of boot files), and
+ *                           optionally receiving uploads.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import com.github.ansa89.ytftp.core.io.YTFTPFileReader;
+import lombok.NonNull;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class YTFTPMemoryStorage implements YTFTPStorage {
+    private final Map<String, ByteBuffer> files = new ConcurrentHashMap<>();
+    private final boolean writable;
+
+    /**
+     * Create an empty read-only storage (files are added with put).
+     */
+    public YTFTPMemoryStorage() {
+        this(false);
+    }
+
+    /**
+     * Create an empty storage.
+     *
+     * @param writable true to accept uploads of new files
+     */
+    public YTFTPMemoryStorage(boolean writable) {
+        this.writable = writable;
+    }
+
+    /**
+     * Add or replace a file.
+     * Readers of the previous content keep reading it.
+     *
+     * @param fileName file name (see YTFTPStorage.normalizeName)
+     * @param content  file content (copied)
+     * @throws YTFTPError if the name refers outside the storage root
+     */
+    public void put(@NonNull String fileName, @NonNull byte[] content) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+        buffer.put(content).flip();
+        files.put(getKey(fileName), buffer.asReadOnlyBuffer());
+    }
+
+    /**
+     * Remove a file.
+     *
+     * @param fileName file name
+     * @return true if the file existed
+     */
+    public boolean remove(@NonNull String fileName) {
+        String key = YTFTPStorage.normalizeName(fileName);
+        return key != null && files.remove(key) != null;
+    }
+
+    /**
+     * Get the content of a file.
+     *
+     * @param fileName file name
+     * @return read-only content, or null if the file does not exist
+     */
+    public ByteBuffer get(@NonNull String fileName) {
+        String key = YTFTPStorage.normalizeName(fileName);
+        ByteBuffer content = key != null ? files.get(key) : null;
+        return content != null ? content.duplicate() : null;
+    }
+
+    /**
+     * Get the names of stored files.
+     *
+     * @return unmodifiable view of normalized names
+     */
+    public Set<String> getFileNames() {
+        return Collections.unmodifiableSet(files.keySet());
+    }
+
+    @Override
+    public YTFTPReadableFile openRead(@NonNull String fileName) throws IOException {
+        String key = YTFTPStorage.normalizeName(fileName);
+        ByteBuffer content = key != null ? files.get(key) : null;
+
+        if (content == null) {
+            throw new FileNotFoundException(fileName + " (No such file)");
+        }
+
+        return YTFTPFileReader.wrap(content);
+    }
+
+    // content is in memory, opened without changing thread
+    @Override
+    public CompletableFuture<YTFTPReadableFile> openReadAsync(@NonNull String fileName) {
+        final CompletableFuture<YTFTPReadableFile> open = new CompletableFuture<>();
+
+        try {
+            open.complete(openRead(fileName));
+        } catch (IOException e) {
+            open.completeExceptionally(e);
+        }
+
+        return open;
+    }
+
+    @Override
+    public YTFTPWritableFile openWrite(@NonNull String fileName, Long size) throws IOException {
+        if (!writable) {
+            throw new AccessDeniedException(fileName, null, "Read-only storage");
+        }
+
+        String key = YTFTPStorage.normalizeName(fileName);
+
+        if (key == null || key.isEmpty()) {
+            throw new AccessDeniedException(fileName, null, "Invalid file name");
+        }
+
+        if (files.containsKey(key)) {
+            throw new FileAlreadyExistsException(fileName);
+        }
+
+        return new YTFTPMemoryWriter(key, size != null ? (int) Math.min(size, Integer.MAX_VALUE - 8) : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "memory (" + files.size() + " files)";
+    }
+
+    private String getKey(String fileName) {
+        String key = YTFTPStorage.normalizeName(fileName);
+
+        if (key == null || key.isEmpty()) {
+            throw new YTFTPError("Invalid file name " + fileName);
+        }
+
+        return key;
+    }
+
+    // accumulates data in a growing buffer, added to the storage when committed
+    private final class YTFTPMemoryWriter implements YTFTPWritableFile {
+        private final String key;
+        private ByteBuffer content;
+
+        private YTFTPMemoryWriter(String key, int expectedSize) {
+            this.key = key;
+            this.content = ByteBuffer.allocate(Math.max(expectedSize, 4096));
+        }
+
+        @Override
+        public ByteBuffer buffer(int length) throws IOException {
+            if (content.remaining() < length) {
+                long capacity = Math.max((long) content.capacity() * 2, (long) content.position() + length);
+
+                if (capacity > Integer.MAX_VALUE - 8) {
+                    throw new IOException("File too large to be kept in memory");
+                }
+
+                ByteBuffer grown = ByteBuffer.allocate((int) capacity);
+                content.flip();
+                grown.put(content);
+                content = grown;
+            }
+
+            return content;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            ByteBuffer committed = ByteBuffer.allocateDirect(content.position());
+            content.flip();
+            committed.put(content).flip();
+
+            if (files.putIfAbsent(key, committed.asReadOnlyBuffer()) != null) {
+                throw new FileAlreadyExistsException(key);
+            }
+        }
+
+        @Override
+        public void close() {
+            content = null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.ansa89.ytftp.core.storage;
+
+/*
+ * YTFTPReadableFile.java - Random access read contract of files served by storage backends.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+public interface YTFTPReadableFile extends Closeable {
+    /**
+     * Get the size of the file, as seen when it has been opened.
+     * Files whose size is not known in advance (e.g. decompressed while read) are sent as a stream, without
+     * announcing their size.
+     *
+     * @return size in bytes, or -1 if unknown
+     */
+    long getSize();
+
+    /**
+     * Get a view of a file region.
+     * The returned buffer may be reused by next calls.
+     *
+     * @param position offset of the region
+     * @param length   length of the region (truncated at the end of the file)
+     * @return buffer containing the region between position and limit
+     * @throws IOException if an I/O error occurs
+     */
+    ByteBuffer read(long position, int length) throws IOException;
+
+    /**
+     * Tell if regions are read without waiting (e.g. content in memory or mapped), or may wait for other readers or
+     * for the disk (e.g. content decompressed while read).
+     * Files whose reads may wait are read sequentially by storage threads, instead of by the threads handling packets.
+     *
+     * @return true if reads don't wait
+     */
+    default boolean isInMemory() {
+        return true;
+    }
+
+    /**
+     * Read the file sequentially, from the beginning.
+     * Closing the stream closes the file.
+     *
+     * @return input stream
+     */
+    default InputStream openStream() {
+        return new YTFTPReadableFileInputStream(this);
+    }
+
+    @Override
+    void close();
+}
@@ -0,0 +1,77 @@
+package com.github.ansa89.ytftp.core.storage;
+
+/*
+ * YTFTPReadableFileInputStream.java - Sequential input stream over a random access readable file.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+class YTFTPReadableFileInputStream extends InputStream {
+    private final YTFTPReadableFile file;
+    private long position = 0;
+
+    YTFTPReadableFileInputStream(YTFTPReadableFile file) {
+        this.file = file;
+    }
+
+    @Override
+    public int read() throws IOException {
+        ByteBuffer data = file.read(position, 1);
+
+        if (!data.hasRemaining()) {
+            return -1;
+        }
+
+        position++;
+        return data.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        ByteBuffer data = file.read(position, len);
+        int read = data.remaining();
+
+        if (read == 0) {
+            return -1;
+        }
+
+        data.get(b, off, read);
+        position += read;
+        return read;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, file.getSize() - position));
+    }
+
+    @Override
+    public void close() {
+        file.close();
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.ansa89.ytftp.core.storage;
+
+/*
+ * YTFTPStorage.java - Interface of storage backends serving files of GET requests and receiving files of PUT
+ *                     requests.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+public interface YTFTPStorage {
+    /**
+     * Open a file for reading.
+     *
+     * @param fileName file name requested by the client
+     * @return reader
+     * @throws java.io.FileNotFoundException if the file does not exist
+     * @throws IOException                   if an I/O error occurs
+     */
+    YTFTPReadableFile openRead(@NonNull String fileName) throws IOException;
+
+    /**
+     * Open a file for reading in NETASCII mode, with content already encoded (e.g. kept in a cache).
+     *
+     * @param fileName file name requested by the client
+     * @return reader of encoded content, or null to let the server encode the file read with openRead while it is sent
+     * @throws java.io.FileNotFoundException if the file does not exist
+     * @throws IOException                   if an I/O error occurs
+     */
+    default YTFTPReadableFile openNetAsciiRead(@NonNull String fileName) throws IOException {
+        return null;
+    }
+
+    /**
+     * Open a file for reading without blocking the caller (e.g. an event loop).
+     * By default openRead runs on a storage thread (see YTFTPStorageThreads).
+     *
+     * @param fileName file name requested by the client
+     * @return future completed with the reader, or exceptionally with the exceptions of openRead
+     */
+    default CompletableFuture<YTFTPReadableFile> openReadAsync(@NonNull String fileName) {
+        return YTFTPStorageThreads.submit(() -> openRead(fileName));
+    }
+
+    /**
+     * Open a file for reading in NETASCII mode without blocking the caller (e.g. an event loop).
+     * By default openNetAsciiRead runs on a storage thread (see YTFTPStorageThreads).
+     *
+     * @param fileName file name requested by the client
+     * @return future completed with the reader (or null, see openNetAsciiRead), or exceptionally with the exceptions
+     * of openNetAsciiRead
+     */
+    default CompletableFuture<YTFTPReadableFile> openNetAsciiReadAsync(@NonNull String fileName) {
+        return YTFTPStorageThreads.submit(() -> openNetAsciiRead(fileName));
+    }
+
+    /**
+     * Open a file for writing.
+     * The file must not be visible to readers until it is committed, and must be discarded if the writer is closed
+     * before.
+     *
+     * @param fileName file name requested by the client
+     * @param size     size announced by the client (null if unknown)
+     * @return writer
+     * @throws java.nio.file.FileAlreadyExistsException if the file already exists
+     * @throws java.nio.file.AccessDeniedException      if the storage is read-only
+     * @throws IOException                              if an I/O error occurs
+     */
+    YTFTPWritableFile openWrite(@NonNull String fileName, Long size) throws IOException;
+
+    /**
+     * Open a file for writing without blocking the caller (e.g. an event loop).
+     * By default openWrite runs on a storage thread (see YTFTPStorageThreads).
+     *
+     * @param fileName file name requested by the client
+     * @param size     size announced by the client (null if unknown)
+     * @return future completed with the writer, or exceptionally with the exceptions of openWrite
+     */
+    default CompletableFuture<YTFTPWritableFile> openWriteAsync(@NonNull String fileName, Long size) {
+        return YTFTPStorageThreads.submit(() -> openWrite(fileName, size));
+    }
+
+    /**
+     * Get the space available for new files.
+     *
+     * @return size in bytes
+     * @throws IOException if an I/O error occurs
+     */
+    default long getUsableSpace() throws IOException {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Normalize a requested file name into a relative name with "/" separators, resolving "." and ".." segments.
+     * Useful for storages not backed by a file system.
+     *
+     * @param fileName file name requested by the client
+     * @return normalized name, or null if the name refers outside the storage root
+     */
+    static String normalizeName(@NonNull String fileName) {
+        final Deque<String> segments = new ArrayDeque<>();
+
+        for (String segment : fileName.replace('\\', '/').split("/")) {
+            if (segment.isEmpty() || segment.equals(".")) {
+                continue;
+            }
+
+            if (segment.equals("..")) {
+                if (segments.pollLast() == null) {
+                    return null;
+                }
+
+                continue;
+            }
+
+            segments.addLast(segment);
+        }
+
+        return String.join("/", segments);
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.ansa89.ytftp.core.storage;
+
+/*
+ * YTFTPStorageThreads.java - Threads shared by all storages to open and read files, so that the threads handling
+ *                            packets (e.g. event loops) never wait for the disk.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import lombok.NonNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class YTFTPStorageThreads {
+    private static final ThreadPoolExecutor threads = createThreads();
+
+    private YTFTPStorageThreads() {
+    }
+
+    /**
+     * Run a task on a storage thread.
+     *
+     * @param task task, which may block
+     * @param <T>  type of the result
+     * @return future completed with the result of the task, or exceptionally with the exception it threw
+     */
+    public static <T> CompletableFuture<T> submit(@NonNull Callable<T> task) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        threads.execute(() -> {
+            try {
+                result.complete(task.call());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+
+        return result;
+    }
+
+    private static ThreadPoolExecutor createThreads() {
+        final int threads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+        final AtomicInteger threadNum = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "YTFTP-Storage" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
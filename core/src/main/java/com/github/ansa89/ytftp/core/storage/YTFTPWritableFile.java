@@ -0,0 +1,87 @@
+package com.github.ansa89.ytftp.core.storage;
+
+/*
+ * YTFTPWritableFile.java - Streaming write contract of files received by storage backends.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+public interface YTFTPWritableFile extends Closeable {
+    /**
+     * Get the buffer where the next data must be put (data is appended to the file).
+     *
+     * @param length amount of data that will be put
+     * @return buffer with at least length bytes remaining, valid until the next call
+     * @throws IOException if an I/O error occurs (including errors of previous writes)
+     */
+    ByteBuffer buffer(int length) throws IOException;
+
+    /**
+     * Get the buffer where the next data must be put, without waiting for previous data to be written.
+     * By default the buffer is returned by buffer, for storages that never wait.
+     *
+     * @param length  amount of data that will be put
+     * @param onReady callback invoked (by another thread) once a buffer is available, only if null has been returned
+     * @return buffer with at least length bytes remaining, valid until the next call, or null if too much data is
+     * waiting to be written
+     * @throws IOException if an I/O error occurs (including errors of previous writes)
+     */
+    default ByteBuffer tryBuffer(int length, Runnable onReady) throws IOException {
+        return buffer(length);
+    }
+
+    /**
+     * Complete the file, making it visible to readers.
+     *
+     * @throws java.nio.file.FileAlreadyExistsException if the file has been created in the meantime
+     * @throws IOException                              if an I/O error occurs
+     */
+    void commit() throws IOException;
+
+    /**
+     * Complete the file without waiting for data to be written.
+     * By default the file is completed by commit, before returning.
+     *
+     * @param onDone callback invoked (by this or another thread) once the file is complete, with null or the error
+     *               commit would have thrown
+     */
+    default void commit(Consumer<IOException> onDone) {
+        IOException error = null;
+
+        try {
+            commit();
+        } catch (IOException e) {
+            error = e;
+        }
+
+        onDone.accept(error);
+    }
+
+    /**
+     * Close the writer, discarding data if the file has not been committed.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,59 @@
+package com.github.ansa89.ytftp.core.timer;
+
+/*
+ * YTFTPTimeout.java - Task scheduled on a timer wheel, reusable for following deadlines of the same session.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import lombok.Getter;
+import lombok.NonNull;
+
+public final class YTFTPTimeout {
+    @Getter
+    private final Runnable task;
+    // Long.MAX_VALUE when not scheduled
+    @Getter
+    long deadline = Long.MAX_VALUE;
+    // tick of the wheel when the task runs
+    long tick;
+    // bucket of the wheel containing the timeout (-1 when not scheduled), linked to the other timeouts of the bucket
+    int bucket = -1;
+    YTFTPTimeout prev;
+    YTFTPTimeout next;
+
+    /**
+     * Create a timeout, not scheduled.
+     *
+     * @param task task run by the wheel thread when the deadline expires
+     */
+    public YTFTPTimeout(@NonNull Runnable task) {
+        this.task = task;
+    }
+
+    /**
+     * Check if the timeout is waiting for its deadline.
+     *
+     * @return true if scheduled
+     */
+    public boolean isScheduled() {
+        return bucket >= 0;
+    }
+}
@@ -0,0 +1,231 @@
+package com.github.ansa89.ytftp.core.timer;
+
+/*
+ * YTFTPTimerWheel.java - Hashed timer wheel managing the deadlines of many sessions (retransmissions, dally period,
+ *                        idle sessions) with constant cost to schedule and cancel them.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Timeouts are hashed by tick into the buckets of the wheel; a bucket holds the timeouts of all ticks that are equal
+ * modulo the wheel size, so a timeout waits for as many revolutions as needed.
+ * The wheel is not thread safe: it must be used by a single thread (e.g. an event loop), which runs expired tasks
+ * while advancing it.
+ */
+public final class YTFTPTimerWheel {
+    public static final int DEFAULT_TICK_MS = 10;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    @Getter
+    private final long tickMs;
+    private final long startMs;
+    private final int mask;
+    // heads of the buckets, plus the list of timeouts being expired
+    private final YTFTPTimeout[] buckets;
+    private final int expiring;
+    // last tick whose timeouts have been expired
+    private long currentTick = 0;
+    // no timeout is scheduled before this tick (a lower bound, raised to the first scheduled tick by getDelay)
+    private long nextTick = 1;
+    @Getter
+    private int size = 0;
+
+    /**
+     * Create a wheel.
+     *
+     * @param tickMs    resolution of deadlines in milliseconds (tasks run up to one tick late), must be greater than 0
+     * @param wheelSize number of buckets, must be a power of 2
+     * @param nowMs     current time (in the same time base of the deadlines)
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public YTFTPTimerWheel(long tickMs, int wheelSize, long nowMs) {
+        if (tickMs <= 0) {
+            throw new YTFTPError("Specify a tick greater than 0");
+        }
+
+        if (wheelSize <= 0 || Integer.bitCount(wheelSize) != 1) {
+            throw new YTFTPError("Specify a wheel size power of 2");
+        }
+
+        this.tickMs = tickMs;
+        this.startMs = nowMs;
+        this.mask = wheelSize - 1;
+        this.buckets = new YTFTPTimeout[wheelSize + 1];
+        this.expiring = wheelSize;
+    }
+
+    /**
+     * Schedule a timeout, replacing its previous deadline if already scheduled.
+     *
+     * @param timeout    timeout to schedule
+     * @param deadlineMs time when the task must run (Long.MAX_VALUE to only cancel the timeout)
+     */
+    public void schedule(@NonNull YTFTPTimeout timeout, long deadlineMs) {
+        cancel(timeout);
+
+        if (deadlineMs == Long.MAX_VALUE) {
+            return;
+        }
+
+        // first tick ending at or after the deadline, never one already expired
+        timeout.deadline = deadlineMs;
+        timeout.tick = Math.max(Math.floorDiv(deadlineMs - startMs + tickMs - 1, tickMs), currentTick + 1);
+        link(timeout, (int) (timeout.tick & mask));
+        nextTick = size == 0 ? timeout.tick : Math.min(nextTick, timeout.tick);
+        size++;
+    }
+
+    /**
+     * Cancel a timeout.
+     *
+     * @param timeout timeout to cancel
+     * @return true if the timeout was scheduled
+     */
+    public boolean cancel(@NonNull YTFTPTimeout timeout) {
+        if (!timeout.isScheduled()) {
+            return false;
+        }
+
+        unlink(timeout);
+        timeout.deadline = Long.MAX_VALUE;
+        size--;
+        return true;
+    }
+
+    /**
+     * Run the tasks of the timeouts expired until now.
+     * Tasks can schedule and cancel any timeout, timeouts scheduled by them run at the next call at the earliest.
+     *
+     * @param nowMs current time
+     * @return number of tasks run
+     */
+    public int advance(long nowMs) {
+        final long targetTick = Math.floorDiv(nowMs - startMs, tickMs);
+
+        if (targetTick <= currentTick) {
+            return 0;
+        }
+
+        // every bucket is visited at most once, even if the wheel has not been advanced for several revolutions
+        final long ticks = Math.min(targetTick - currentTick, buckets.length - 1);
+
+        for (long tick = currentTick + 1; tick <= currentTick + ticks; tick++) {
+            YTFTPTimeout timeout = buckets[(int) (tick & mask)];
+
+            while (timeout != null) {
+                YTFTPTimeout next = timeout.next;
+
+                if (timeout.tick <= targetTick) {
+                    unlink(timeout);
+                    link(timeout, expiring);
+                }
+
+                timeout = next;
+            }
+        }
+
+        currentTick = targetTick;
+        // timeouts not expired are all after the current tick
+        nextTick = Math.max(nextTick, currentTick + 1);
+
+        int run = 0;
+        YTFTPTimeout timeout;
+
+        // tasks may cancel timeouts not yet run, which are removed from the list
+        while ((timeout = buckets[expiring]) != null) {
+            cancel(timeout);
+            timeout.getTask().run();
+            run++;
+        }
+
+        return run;
+    }
+
+    /**
+     * Get the time until the first tick that expires a timeout, e.g. to wait for events until then.
+     * The tick is searched from the first one that may hold a timeout, at most one revolution ahead: when all
+     * timeouts are further, the caller is woken up once per revolution.
+     *
+     * @param nowMs current time
+     * @return milliseconds to wait (0 if timeouts are already expired), or -1 if no timeout is scheduled
+     */
+    public long getDelay(long nowMs) {
+        if (size == 0) {
+            return -1;
+        }
+
+        if (buckets[expiring] != null) {
+            // only timeouts being expired
+            return 0;
+        }
+
+        findNextTick();
+        return Math.max(0, startMs + nextTick * tickMs - nowMs);
+    }
+
+    // raise the bound left behind by cancelled and rescheduled timeouts: ticks before it have no timeout, so each
+    // bucket is searched again only after a timeout is scheduled before the bound
+    private void findNextTick() {
+        final long lastTick = currentTick + buckets.length - 1;
+
+        for (; nextTick < lastTick; nextTick++) {
+            for (YTFTPTimeout timeout = buckets[(int) (nextTick & mask)]; timeout != null; timeout = timeout.next) {
+                if (timeout.tick == nextTick) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void link(YTFTPTimeout timeout, int bucket) {
+        final YTFTPTimeout head = buckets[bucket];
+
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = head;
+
+        if (head != null) {
+            head.prev = timeout;
+        }
+
+        buckets[bucket] = timeout;
+    }
+
+    private void unlink(YTFTPTimeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+
+        timeout.bucket = -1;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+}
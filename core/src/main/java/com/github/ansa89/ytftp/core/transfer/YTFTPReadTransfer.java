@@ -0,0 +1,570 @@
+package com.github.ansa89.ytftp.core.transfer;
+
+/*
+ * YTFTPReadTransfer.java - State machine sending a file to a client (GET request).
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.YTFTPWorkerInfo;
+import com.github.ansa89.ytftp.core.enums.YTFTPServerType;
+import com.github.ansa89.ytftp.core.io.YTFTPNetASCIIInputStream;
+import com.github.ansa89.ytftp.core.log.YTFTPLogger;
+import com.github.ansa89.ytftp.core.protocol.YTFTPBufferPool;
+import com.github.ansa89.ytftp.core.protocol.YTFTPPackets;
+import com.github.ansa89.ytftp.core.protocol.YTFTPTransport;
+import com.github.ansa89.ytftp.core.ratelimit.YTFTPTokenBucket;
+import com.github.ansa89.ytftp.core.storage.YTFTPReadableFile;
+import com.github.ansa89.ytftp.core.storage.YTFTPStorage;
+import com.github.ansa89.ytftp.core.storage.YTFTPStorageThreads;
+import org.apache.commons.net.tftp.TFTP;
+import org.apache.commons.net.tftp.TFTPErrorPacket;
+import org.apache.commons.net.tftp.TFTPPacket;
+
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+public class YTFTPReadTransfer extends YTFTPTransfer {
+    // blocks are addressed by offset in the file (e.g. in its shared mapping or in the cached content)
+    private YTFTPReadableFile file;
+    // netascii files too big to be cached, and files whose reads may block (e.g. decompressed while read): blocks are
+    // read sequentially by storage threads and kept in the window for retransmissions
+    private InputStream in;
+    // last block of the stream being read by a storage thread (null if no read is in progress)
+    private CompletableFuture<Long> reading;
+    private YTFTPSendWindow window;
+    // step of the opening of the file waited for (null once opened)
+    private CompletableFuture<YTFTPReadableFile> opening;
+    private YTFTPOpenStep openStep;
+    private boolean waitingOptionAck = false;
+    // bandwidth limits (null if not limited)
+    private final YTFTPTokenBucket sessionBandwidth;
+    private final YTFTPTokenBucket serverBandwidth;
+
+    protected YTFTPReadTransfer(YTFTPWorkerInfo info, YTFTPTransport transport) {
+        super(info, transport);
+        this.sessionBandwidth = info.getSessionBandwidthLimit() != null ? info.getSessionBandwidthLimit().newBucket() : null;
+        this.serverBandwidth = info.getServerBandwidth();
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (info.getMode() == YTFTPServerType.PUT_ONLY) {
+            sendError(TFTPErrorPacket.ILLEGAL_OPERATION, "Read not allowed by server");
+            return;
+        }
+
+        // storages and content providers may read the disk or run user code: the file is opened by other threads,
+        // wakeUp continues the transfer
+        if (info.getDynamicContent() != null) {
+            open(YTFTPOpenStep.GENERATE, info.getDynamicContent().openAsync(request.getFilename(), address));
+        } else {
+            openStorage();
+        }
+    }
+
+    @Override
+    protected void onPacket(ByteBuffer packet) throws IOException {
+        if (window == null) {
+            // file not yet opened, the client can only abort
+            if (YTFTPPackets.getOpcode(packet) == TFTPPacket.ERROR) {
+                handleUnexpected(packet);
+            }
+
+            return;
+        }
+
+        if (!isAck(packet)) {
+            return;
+        }
+
+        int ackBlock = YTFTPPackets.getBlockNumber(packet);
+
+        if (waitingOptionAck) {
+            if (ackBlock == 0) {
+                waitingOptionAck = false;
+                endRttSample(0);
+                resetRetries();
+                sendWindow();
+            }
+
+            return;
+        }
+
+        // compute distance of the ack from last acknowledged block, taking care of block number wrap
+        int distance = (ackBlock - (int) (window.acked & 0xffff)) & 0xffff;
+
+        if (distance > 0 && distance <= window.sent - window.acked) {
+            window.acked += distance;
+            window.rewound = false;
+            endRttSample(window.acked);
+            resetRetries();
+
+            if (window.isComplete()) {
+                finish();
+                return;
+            }
+
+            if (window.acked < window.sent) {
+                // client lost part of the window
+                window.rewind();
+                cancelRttSample();
+            }
+
+            armTimer();
+        } else if (distance == 0 && window.size > 1 && window.rewind()) {
+            // client is still waiting for the first block of the window
+            cancelRttSample();
+        }
+
+        // duplicates of the ack that rewound the window, and older acks, only fill the window: resending it for each
+        // of them would multiply the packets (sorcerer's apprentice syndrome), further losses are left to the timeout
+        sendWindow();
+    }
+
+    @Override
+    protected void retransmit() throws IOException {
+        if (waitingOptionAck) {
+            metrics.retransmit();
+            transport.sendOptionAck(address, port, options.getAcknowledged());
+            armTimer();
+        } else {
+            // restart from last acknowledged block
+            window.sent = window.acked;
+            window.rewound = true;
+            sendWindow();
+        }
+    }
+
+    @Override
+    protected void wakeUp() throws IOException {
+        if (opening != null) {
+            if (opening.isDone()) {
+                final CompletableFuture<YTFTPReadableFile> open = opening;
+                opening = null;
+                onOpened(open);
+            }
+
+            return;
+        }
+
+        if (isWaiting() && reading != null && reading.isDone()) {
+            // next blocks read, continue sending the window
+            resume();
+        }
+    }
+
+    @Override
+    protected void resume() throws IOException {
+        if (!sendWindow() && !isPaused() && !isWaiting()) {
+            // window is full, wait for acks
+            armTimer();
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+
+        if (opening != null) {
+            // opened after the end of the transfer
+            opening.thenAccept(opened -> {
+                if (opened != null) {
+                    opened.close();
+                }
+            });
+            opening = null;
+        }
+
+        if (file != null) {
+            file.close();
+        }
+
+        if (reading != null) {
+            // the stream and the window are released once the storage thread is done with them
+            final InputStream stream = in;
+            final YTFTPSendWindow buffered = window;
+            reading.whenComplete((last, e) -> {
+                buffered.release();
+                closeStream(stream);
+            });
+            reading = null;
+            return;
+        }
+
+        if (window != null) {
+            window.release();
+        }
+
+        if (in != null) {
+            closeStream(in);
+        }
+    }
+
+    // open the requested file from the read storage: encoded content in netascii mode (if the storage has it), raw
+    // content otherwise
+    private void openStorage() {
+        final YTFTPStorage storage = info.getReadStorage();
+
+        if (request.getMode() != TFTP.NETASCII_MODE) {
+            open(YTFTPOpenStep.OPEN, storage.openReadAsync(request.getFilename()));
+        } else {
+            open(YTFTPOpenStep.NETASCII, storage.openNetAsciiReadAsync(request.getFilename()));
+        }
+    }
+
+    // wait for a step of the opening of the file
+    private void open(YTFTPOpenStep step, CompletableFuture<YTFTPReadableFile> open) {
+        final Runnable wakeup = getWakeup();
+
+        openStep = step;
+        opening = open;
+        await();
+        open.whenComplete((opened, e) -> wakeup.run());
+    }
+
+    // continue with the next step of the opening, or start sending the opened file
+    private void onOpened(CompletableFuture<YTFTPReadableFile> open) throws IOException {
+        final YTFTPReadableFile opened;
+
+        try {
+            opened = getResult(open);
+        } catch (IOException e) {
+            if (openStep == YTFTPOpenStep.GENERATE) {
+                YTFTPLogger.warn("Cannot generate {}", request.getFilename(), e);
+                sendError(TFTPErrorPacket.UNDEFINED, "Error generating file");
+                return;
+            }
+
+            if (e instanceof FileNotFoundException) {
+                sendError(TFTPErrorPacket.FILE_NOT_FOUND, e.getMessage());
+                return;
+            }
+
+            throw e;
+        }
+
+        boolean convert = false;
+
+        switch (openStep) {
+            case GENERATE:
+                if (opened == null) {
+                    // not generated by the provider
+                    openStorage();
+                    return;
+                }
+
+                // generated content is converted while sent
+                convert = request.getMode() == TFTP.NETASCII_MODE;
+                break;
+            case NETASCII:
+                if (opened == null) {
+                    open(YTFTPOpenStep.CONVERT, info.getReadStorage().openReadAsync(request.getFilename()));
+                    return;
+                }
+
+                break;
+            case CONVERT:
+                convert = true;
+                break;
+            default:
+                break;
+        }
+
+        if (convert) {
+            in = new YTFTPNetASCIIInputStream(new BufferedInputStream(opened.openStream()));
+        } else if (opened.getSize() < 0 || !opened.isInMemory()) {
+            // size known only at the end, or reads waiting for the disk (e.g. decompressed while sent): blocks are
+            // read sequentially
+            in = opened.openStream();
+        } else {
+            file = opened;
+        }
+
+        final int blockSize = options.negotiateBlockSize(info.getMaxBlockSize());
+        window = new YTFTPSendWindow(options.negotiateWindowSize(info.getMaxWindowSize()), blockSize, file == null);
+
+        if (file != null) {
+            // last block is the first one shorter than block size (eventually empty)
+            window.last = file.getSize() / blockSize + 1;
+            options.negotiateTransferSize(file.getSize());
+        } else if (!convert && opened.getSize() >= 0) {
+            options.negotiateTransferSize(opened.getSize());
+        }
+
+        negotiateTimeout();
+        transport.setBlockSize(blockSize);
+
+        if (options.hasAcknowledged()) {
+            // wait for the ACK of block 0 before sending the file
+            waitingOptionAck = true;
+            transport.sendOptionAck(address, port, options.getAcknowledged());
+            startRttSample(0);
+            armTimer();
+        } else {
+            sendWindow();
+        }
+    }
+
+    // send blocks until the window is full (or bandwidth is exhausted), reading new blocks when needed; return true if
+    // something has been sent
+    private boolean sendWindow() throws IOException {
+        boolean sent = false;
+
+        while (window.sent < window.acked + window.size && (window.last < 0 || window.sent < window.last)) {
+            if (in != null && window.sent >= window.read) {
+                // next block not read yet, the blocks read meanwhile are sent when the storage wakes the transfer up
+                if (reading == null) {
+                    startRead();
+                }
+
+                if (!reading.isDone()) {
+                    await();
+                    return sent;
+                }
+
+                if (!onRead()) {
+                    return true;
+                }
+
+                continue;
+            }
+
+            long wait = acquireBandwidth(getBlockLength(window.sent + 1));
+
+            if (wait > 0) {
+                pause(wait);
+                return sent;
+            }
+
+            long block = ++window.sent;
+
+            if (block > window.highest) {
+                // measure only blocks sent once
+                window.highest = block;
+                startRttSample(block);
+            } else {
+                metrics.retransmit();
+            }
+
+            // block number wraps to 0 after 65535
+            if (file != null) {
+                ByteBuffer data = file.read((block - 1) * window.blockSize, window.blockSize);
+                checkLastBlock(block);
+                metrics.bytesSent(data.remaining());
+                transport.sendData(address, port, (int) (block & 0xffff), data);
+            } else {
+                int index = (int) (block % window.size);
+                checkLastBlock(block);
+                metrics.bytesSent(window.lengths[index]);
+                transport.sendData(address, port, (int) (block & 0xffff), window.blocks[index].array(), window.blocks[index].arrayOffset(), window.lengths[index]);
+            }
+
+            sent = true;
+        }
+
+        if (sent) {
+            armTimer();
+        }
+
+        return sent;
+    }
+
+    // read the next blocks of the stream on a storage thread, in the slots of the window not holding blocks waiting to
+    // be acknowledged (the transfer keeps retransmitting those meanwhile)
+    private void startRead() {
+        final YTFTPSendWindow buffered = window;
+        final InputStream stream = in;
+        final long first = buffered.read + 1;
+        final long last = buffered.acked + buffered.size;
+        final Runnable wakeup = getWakeup();
+
+        for (long block = first; block <= last; block++) {
+            final int index = (int) (block % buffered.size);
+
+            if (buffered.blocks[index] == null) {
+                buffered.blocks[index] = YTFTPBufferPool.heap().acquire(buffered.blockSize);
+            }
+        }
+
+        reading = YTFTPStorageThreads.submit(() -> {
+            for (long block = first; block <= last; block++) {
+                final int index = (int) (block % buffered.size);
+                buffered.lengths[index] = readBlock(stream, buffered.blocks[index].array(), buffered.blocks[index].arrayOffset(), buffered.blockSize);
+
+                if (buffered.lengths[index] < buffered.blockSize) {
+                    // end of stream
+                    return block;
+                }
+            }
+
+            return last;
+        });
+        reading.whenComplete((block, e) -> wakeup.run());
+    }
+
+    // take the blocks read by the storage thread; return false (after notifying the client) if the stream failed
+    private boolean onRead() throws IOException {
+        final CompletableFuture<Long> read = reading;
+        reading = null;
+
+        try {
+            window.read = getResult(read);
+        } catch (IOException e) {
+            // e.g. corrupted compressed file
+            YTFTPLogger.warn("Cannot read {}", request.getFilename(), e);
+            sendError(TFTPErrorPacket.UNDEFINED, "Error reading file");
+            return false;
+        }
+
+        if (window.lengths[(int) (window.read % window.size)] < window.blockSize) {
+            window.last = window.read;
+        }
+
+        return true;
+    }
+
+    // establish the session before sending the last block: the client may send a new request as soon as it receives
+    // it, before its ACK is processed
+    private void checkLastBlock(long block) {
+        if (block == window.last) {
+            info.getSession().markEstablished();
+        }
+    }
+
+    // length of a block (estimated when the file is converted while sent)
+    private int getBlockLength(long block) {
+        if (file == null) {
+            return window.blockSize;
+        }
+
+        return (int) Math.max(0, Math.min(window.blockSize, file.getSize() - (block - 1) * window.blockSize));
+    }
+
+    // return 0 if the block can be sent now, otherwise the milliseconds to wait
+    private long acquireBandwidth(int length) {
+        if (sessionBandwidth != null) {
+            long wait = sessionBandwidth.tryAcquire(length);
+
+            if (wait > 0) {
+                return wait;
+            }
+        }
+
+        if (serverBandwidth != null) {
+            long wait = serverBandwidth.tryAcquire(length);
+
+            if (wait > 0) {
+                if (sessionBandwidth != null) {
+                    sessionBandwidth.release(length);
+                }
+
+                return wait;
+            }
+        }
+
+        return 0;
+    }
+
+    // read a full block, unless end of stream is reached
+    private static int readBlock(InputStream in, byte[] block, int offset, int length) throws IOException {
+        int total = 0;
+
+        while (total < length) {
+            int read = in.read(block, offset + total, length - total);
+
+            if (read == -1) {
+                break;
+            }
+
+            total += read;
+        }
+
+        return total;
+    }
+
+    private static void closeStream(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    // content provider, then encoded content of the storage, then raw content (converted while sent in netascii mode)
+    private enum YTFTPOpenStep {
+        GENERATE,
+        OPEN,
+        NETASCII,
+        CONVERT
+    }
+
+    // blocks sent but not yet acknowledged (block numbers don't wrap)
+    private static final class YTFTPSendWindow {
+        private final int size;
+        private final int blockSize;
+        // pooled buffers, taken when first filled
+        private final ByteBuffer[] blocks;
+        private final int[] lengths;
+        private long acked = 0;
+        private long sent = 0;
+        private long read = 0;
+        private long highest = 0;
+        private long last = -1;
+        // the window has been sent again from its first block since acked last changed
+        private boolean rewound = false;
+
+        // buffered windows keep a copy of the blocks sent, for data that cannot be read again
+        private YTFTPSendWindow(int size, int blockSize, boolean buffered) {
+            this.size = size;
+            this.blockSize = blockSize;
+            this.blocks = buffered ? new ByteBuffer[size] : null;
+            this.lengths = buffered ? new int[size] : null;
+        }
+
+        private boolean isComplete() {
+            return last >= 0 && acked >= last;
+        }
+
+        // send again from the first block not acknowledged, once for each value of acked
+        private boolean rewind() {
+            if (rewound) {
+                return false;
+            }
+
+            sent = acked;
+            rewound = true;
+            return true;
+        }
+
+        private void release() {
+            if (blocks != null) {
+                for (int i = 0; i < blocks.length; i++) {
+                    YTFTPBufferPool.heap().release(blocks[i]);
+                    blocks[i] = null;
+                }
+            }
+        }
+    }
+}
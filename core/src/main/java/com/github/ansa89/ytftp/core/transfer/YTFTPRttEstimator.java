@@ -0,0 +1,95 @@
+package com.github.ansa89.ytftp.core.transfer;
+
+/*
+ * YTFTPRttEstimator.java - Round-trip time estimator computing the retransmission timeout of a transfer
+ *                          (RFC 6298).
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import lombok.Getter;
+
+public class YTFTPRttEstimator {
+    // gains of smoothed RTT and RTT variation (RFC 6298)
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final int K = 4;
+
+    private final int minTimeoutMs;
+    private final int maxTimeoutMs;
+    // values in milliseconds, with sub-millisecond precision for LANs
+    private double smoothedRtt = -1;
+    private double rttVariation = 0;
+    @Getter
+    private int timeoutMs;
+
+    /**
+     * Create an estimator.
+     *
+     * @param initialTimeoutMs timeout used before the first measure
+     * @param minTimeoutMs     lower bound of the timeout
+     * @param maxTimeoutMs     upper bound of the timeout (also for exponential backoff)
+     */
+    public YTFTPRttEstimator(int initialTimeoutMs, int minTimeoutMs, int maxTimeoutMs) {
+        this.minTimeoutMs = minTimeoutMs;
+        this.maxTimeoutMs = maxTimeoutMs;
+        this.timeoutMs = clamp(initialTimeoutMs);
+    }
+
+    /**
+     * Update the estimate with a new measure.
+     * Only packets transmitted once must be measured (Karn's algorithm).
+     *
+     * @param rttNanos measured round-trip time in nanoseconds
+     */
+    public void addSample(long rttNanos) {
+        final double rtt = rttNanos / 1e6;
+
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariation = rtt / 2;
+        } else {
+            rttVariation = (1 - BETA) * rttVariation + BETA * Math.abs(smoothedRtt - rtt);
+            smoothedRtt = (1 - ALPHA) * smoothedRtt + ALPHA * rtt;
+        }
+
+        timeoutMs = clamp((long) Math.ceil(smoothedRtt + K * rttVariation));
+    }
+
+    /**
+     * Double the timeout after a retransmission (kept until next measure).
+     */
+    public void backoff() {
+        timeoutMs = clamp(2L * timeoutMs);
+    }
+
+    /**
+     * Get the smoothed round-trip time.
+     *
+     * @return smoothed RTT in milliseconds, or -1 if no measure has been done
+     */
+    public double getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    private int clamp(long timeout) {
+        return (int) Math.max(minTimeoutMs, Math.min(maxTimeoutMs, timeout));
+    }
+}
@@ -0,0 +1,433 @@
+package com.github.ansa89.ytftp.core.transfer;
+
+/*
+ * YTFTPTransfer.java - Base class of TFTP transfers, implemented as state machines driven by received packets and
+ *                      timeouts, so that they can be run by blocking workers or by non-blocking event loops.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.YTFTPWorkerInfo;
+import com.github.ansa89.ytftp.core.enums.YTFTPRetransmitMode;
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import com.github.ansa89.ytftp.core.log.YTFTPLogger;
+import com.github.ansa89.ytftp.core.metrics.YTFTPMetrics;
+import com.github.ansa89.ytftp.core.protocol.YTFTPOptions;
+import com.github.ansa89.ytftp.core.protocol.YTFTPPackets;
+import com.github.ansa89.ytftp.core.protocol.YTFTPTransport;
+import lombok.Getter;
+import lombok.NonNull;
+import org.apache.commons.net.tftp.TFTPErrorPacket;
+import org.apache.commons.net.tftp.TFTPPacket;
+import org.apache.commons.net.tftp.TFTPReadRequestPacket;
+import org.apache.commons.net.tftp.TFTPRequestPacket;
+import org.apache.commons.net.tftp.TFTPWriteRequestPacket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+public abstract class YTFTPTransfer implements AutoCloseable {
+    @NonNull
+    protected final YTFTPWorkerInfo info;
+    @NonNull
+    protected final YTFTPTransport transport;
+    @NonNull
+    protected final TFTPRequestPacket request;
+    @NonNull
+    protected final YTFTPOptions options;
+    @NonNull
+    protected final InetAddress address;
+    protected final int port;
+    @NonNull
+    protected final YTFTPMetrics metrics;
+    private final long startNanos = System.nanoTime();
+    private int timeoutMs;
+    // null when the retransmission timeout is fixed
+    private YTFTPRttEstimator rttEstimator;
+    // packet whose round-trip time is being measured (-1 if none)
+    private long rttSampleId = -1;
+    private long rttSampleStart;
+    @Getter
+    private long deadline = Long.MAX_VALUE;
+    @Getter
+    private boolean done = false;
+    private boolean closed = false;
+    private int retries = 0;
+    private boolean paused = false;
+    private boolean waiting = false;
+    private boolean failed = false;
+    // set by the engine, invoked by other threads to continue a transfer waiting for the storage
+    private Runnable wakeup;
+
+    protected YTFTPTransfer(YTFTPWorkerInfo info, YTFTPTransport transport) {
+        this.info = info;
+        this.transport = transport;
+        this.request = (TFTPRequestPacket) info.getTftpPacket();
+        this.options = info.getOptions();
+        this.address = request.getAddress();
+        this.port = request.getPort();
+        this.metrics = info.getMetrics();
+        this.timeoutMs = info.getSocketTimeoutMs();
+
+        if (info.getRetransmitMode() == YTFTPRetransmitMode.ADAPTIVE) {
+            this.rttEstimator = new YTFTPRttEstimator(timeoutMs, info.getMinRetransmitTimeoutMs(), info.getMaxRetransmitTimeoutMs());
+        }
+
+        metrics.transferStarted();
+    }
+
+    /**
+     * Create the transfer handling the request of the given worker.
+     *
+     * @param info      worker parameters
+     * @param transport transport used to send packets to the client
+     * @return transfer, or null if the packet is not a RRQ/WRQ
+     */
+    public static YTFTPTransfer create(@NonNull YTFTPWorkerInfo info, @NonNull YTFTPTransport transport) {
+        if (info.getTftpPacket() instanceof TFTPReadRequestPacket) {
+            return new YTFTPReadTransfer(info, transport);
+        } else if (info.getTftpPacket() instanceof TFTPWriteRequestPacket) {
+            return new YTFTPWriteTransfer(info, transport);
+        }
+
+        return null;
+    }
+
+    /**
+     * Get a monotonic clock in milliseconds, used for deadlines.
+     *
+     * @return current time in milliseconds
+     */
+    public static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Start the transfer, sending the first packet to the client.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public abstract void start() throws IOException;
+
+    /**
+     * Handle a packet received on the transfer socket.
+     * Packets not coming from the client are answered with an UNKNOWN_TID error.
+     *
+     * @param packet  received packet (between position and limit)
+     * @param from    sender address
+     * @param fromPort sender port
+     * @throws IOException if an I/O error occurs
+     * @throws YTFTPError  if the transfer fails
+     */
+    public final void onDatagram(@NonNull ByteBuffer packet, @NonNull InetAddress from, int fromPort) throws IOException {
+        if (done) {
+            return;
+        }
+
+        if (!from.equals(address) || fromPort != port) {
+            // answer came from unexpected client
+            YTFTPLogger.warn(() -> "Ignoring TFTP message from unexpected client (" + from.getHostAddress() + ":" + fromPort + ")");
+            transport.sendError(from, fromPort, TFTPErrorPacket.UNKNOWN_TID, "Unexpected host or port");
+            metrics.unknownTid();
+            return;
+        }
+
+        info.getSession().markEstablished();
+        onPacket(packet);
+    }
+
+    /**
+     * Handle the expiration of the deadline: resend last packet(s) or give up.
+     *
+     * @throws IOException if an I/O error occurs
+     * @throws YTFTPError  if too many retries have been done
+     */
+    public final void onTimeout() throws IOException {
+        if (done) {
+            return;
+        }
+
+        if (paused) {
+            paused = false;
+            resume();
+            return;
+        }
+
+        metrics.timeout();
+
+        if (retries >= info.getMaxRetries()) {
+            onRetriesExhausted();
+            return;
+        }
+
+        retries++;
+
+        if (rttEstimator != null) {
+            rttEstimator.backoff();
+        }
+
+        cancelRttSample();
+        retransmit();
+    }
+
+    /**
+     * Set the callback waking the transfer up when it waits for the storage (e.g. for data to be written): it is
+     * invoked by other threads, the engine must then call onWakeup from the thread handling the transfer.
+     * Must be set before start.
+     *
+     * @param wakeup thread safe callback
+     */
+    public void setWakeup(@NonNull Runnable wakeup) {
+        this.wakeup = wakeup;
+    }
+
+    /**
+     * Continue the transfer after its wakeup callback has been invoked.
+     *
+     * @throws IOException if an I/O error occurs
+     * @throws YTFTPError  if the transfer fails
+     */
+    public final void onWakeup() throws IOException {
+        if (done) {
+            return;
+        }
+
+        wakeUp();
+    }
+
+    /**
+     * Check if the transfer waits for the storage: it has no deadline, only its wakeup callback continues it.
+     *
+     * @return true if waiting
+     */
+    public boolean isWaiting() {
+        return waiting && !done;
+    }
+
+    /**
+     * Get the current retransmission timeout.
+     *
+     * @return timeout in milliseconds
+     */
+    public int getTimeoutMs() {
+        return rttEstimator != null ? rttEstimator.getTimeoutMs() : timeoutMs;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        // transfers closed before their end (e.g. server shutdown) are failed
+        metrics.transferFinished(System.nanoTime() - startNanos, done && !failed);
+        closed = true;
+        done = true;
+    }
+
+    @Override
+    public String toString() {
+        return (request instanceof TFTPReadRequestPacket ? "GET" : "PUT") + " request: " + address + ":" + port + " - " + request.getFilename();
+    }
+
+    protected abstract void onPacket(ByteBuffer packet) throws IOException;
+
+    // resend last packet(s) after a timeout
+    protected abstract void retransmit() throws IOException;
+
+    // continue the transfer after a pause
+    protected void resume() throws IOException {
+        // nothing to do by default
+    }
+
+    // continue the transfer after waiting for the storage
+    protected void wakeUp() throws IOException {
+        // nothing to do by default
+    }
+
+    protected void onRetriesExhausted() {
+        failed = true;
+        finish();
+        throw new YTFTPError("Too many retries waiting " + (request instanceof TFTPReadRequestPacket ? "answer" : "data") + " from TFTP client");
+    }
+
+    // restart retransmission timer, to be called after each (re)transmission
+    protected void armTimer() {
+        deadline = now() + getTimeoutMs();
+        paused = false;
+        waiting = false;
+    }
+
+    // suspend the transfer (e.g. to respect a bandwidth limit), resume will be called after the delay
+    protected void pause(long delayMs) {
+        deadline = now() + delayMs;
+        paused = true;
+        waiting = false;
+    }
+
+    protected boolean isPaused() {
+        return paused;
+    }
+
+    // wait for the storage without deadline (the client retransmits meanwhile), wakeUp will be called
+    protected void await() {
+        deadline = Long.MAX_VALUE;
+        paused = false;
+        waiting = true;
+    }
+
+    // callback the storage invokes to wake the transfer up
+    protected Runnable getWakeup() {
+        return wakeup;
+    }
+
+    // result of a completed operation of the storage, throwing its exception
+    protected static <T> T getResult(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    // start measuring the round-trip time of a packet sent for the first time (if no other packet is being measured)
+    protected void startRttSample(long id) {
+        if (rttSampleId < 0) {
+            rttSampleId = id;
+            rttSampleStart = System.nanoTime();
+        }
+    }
+
+    // complete the measure when the answer to packet id (or to a later one) is received
+    protected void endRttSample(long id) {
+        if (rttSampleId >= 0 && id >= rttSampleId) {
+            long rtt = System.nanoTime() - rttSampleStart;
+
+            if (rttEstimator != null) {
+                rttEstimator.addSample(rtt);
+            }
+
+            metrics.roundTrip(rtt);
+            rttSampleId = -1;
+        }
+    }
+
+    // the packet being measured will be retransmitted, its answer would be ambiguous (Karn's algorithm)
+    protected void cancelRttSample() {
+        rttSampleId = -1;
+    }
+
+    // the client made progress, reset retries count
+    protected void resetRetries() {
+        retries = 0;
+    }
+
+    protected void finish() {
+        done = true;
+        deadline = Long.MAX_VALUE;
+    }
+
+    // apply the timeout requested by the client (RFC 2349) to this transfer only
+    protected void negotiateTimeout() {
+        Integer timeout = options.negotiateTimeout();
+
+        if (timeout != null) {
+            // the timeout requested by the client replaces the adaptive one
+            timeoutMs = timeout * 1000;
+            rttEstimator = null;
+        }
+    }
+
+    // send an error to the client and terminate the transfer
+    protected void sendError(int code, String msg) throws IOException {
+        transport.sendError(address, port, code, msg);
+        failed = true;
+        finish();
+    }
+
+    // return true if packet is an ACK, otherwise manage the unexpected packet and return false
+    protected boolean isAck(ByteBuffer packet) {
+        if (YTFTPPackets.getOpcode(packet) != TFTPPacket.ACKNOWLEDGEMENT || packet.remaining() < YTFTPPackets.HEADER_SIZE) {
+            handleUnexpected(packet);
+            return false;
+        }
+
+        return true;
+    }
+
+    protected void handleUnexpected(ByteBuffer packet) {
+        failed = true;
+        finish();
+
+        if (YTFTPPackets.getOpcode(packet) == TFTPPacket.ERROR) {
+            // client aborted the transfer (e.g. refusing an OACK)
+            YTFTPLogger.info(() -> "Transfer aborted by TFTP client (" + YTFTPPackets.describe(packet) + ")");
+            return;
+        }
+
+        throw new YTFTPError("Unexpected response from TFTP client during transfer (" + YTFTPPackets.describe(packet) + ")");
+    }
+
+    /**
+     * Resolve a requested file name inside a server directory.
+     *
+     * @param serverDirectory read or write directory
+     * @param fileName        requested file name
+     * @param createSubDirs   true to create missing parent directories
+     * @return normalized path
+     * @throws YTFTPError if the path is outside the server directory, or directories cannot be created
+     */
+    public static Path buildSafePath(Path serverDirectory, String fileName, boolean createSubDirs) {
+        Path temp = serverDirectory.resolve(Paths.get(fileName));
+
+        if (!isSubdirectory(serverDirectory, temp)) {
+            throw new YTFTPError("Destination path is outside server directory");
+        }
+
+        if (createSubDirs) {
+            try {
+                Files.createDirectories(temp.getParent());
+            } catch (IOException e) {
+                throw new YTFTPError("Error creating destination directory " + temp.getParent().toString(), e);
+            }
+        }
+
+        return temp.normalize();
+    }
+
+    // check if child is inside parent
+    protected static boolean isSubdirectory(Path parent, Path child) {
+        return child.toAbsolutePath().normalize().startsWith(parent.toAbsolutePath().normalize());
+    }
+}
@@ -0,0 +1,393 @@
+package com.github.ansa89.ytftp.core.transfer;
+
+/*
+ * YTFTPWriteTransfer.java - State machine receiving a file from a client (PUT request).
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.YTFTPWorkerInfo;
+import com.github.ansa89.ytftp.core.enums.YTFTPServerType;
+import com.github.ansa89.ytftp.core.io.YTFTPNetASCIIDecoder;
+import com.github.ansa89.ytftp.core.log.YTFTPLogger;
+import com.github.ansa89.ytftp.core.protocol.YTFTPPackets;
+import com.github.ansa89.ytftp.core.protocol.YTFTPTransport;
+import com.github.ansa89.ytftp.core.storage.YTFTPWritableFile;
+import org.apache.commons.net.tftp.TFTP;
+import org.apache.commons.net.tftp.TFTPErrorPacket;
+import org.apache.commons.net.tftp.TFTPPacket;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.util.concurrent.CompletableFuture;
+
+public class YTFTPWriteTransfer extends YTFTPTransfer {
+    // blocks are acknowledged once buffered, the storage decides when they are written (when too much data is waiting
+    // to be written, the transfer waits for the storage to wake it up before acknowledging more blocks)
+    private YTFTPWritableFile writer;
+    // writer being opened by a storage thread (null once opened)
+    private CompletableFuture<YTFTPWritableFile> opening;
+    // netascii mode only
+    private YTFTPNetASCIIDecoder decoder;
+    private int blockSize;
+    private int windowSize;
+    private Long announcedSize;
+    private long received = 0;
+    private int lastBlock = 0;
+    // number of blocks received (block numbers wrap)
+    private long blocks = 0;
+    private int receivedInWindow = 0;
+    // set when a block out of order has been answered with the ack of the last block, until the window restarts
+    private boolean lossReported = false;
+    private boolean dallying = false;
+    private int dallyCount = 0;
+    // waiting for the file to be committed, whose result is set by the storage before waking the transfer up
+    private boolean committing = false;
+    private volatile boolean committed = false;
+    private volatile IOException commitError;
+
+    protected YTFTPWriteTransfer(YTFTPWorkerInfo info, YTFTPTransport transport) {
+        super(info, transport);
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (info.getMode() == YTFTPServerType.GET_ONLY) {
+            sendError(TFTPErrorPacket.ILLEGAL_OPERATION, "Write not allowed by server.");
+            return;
+        }
+
+        blockSize = options.negotiateBlockSize(info.getMaxBlockSize());
+        windowSize = options.negotiateWindowSize(info.getMaxWindowSize());
+        announcedSize = options.getRequestedTransferSize();
+
+        if (announcedSize != null) {
+            // reject oversize uploads before any data is transferred
+            if (!acceptUploadSize(announcedSize)) {
+                return;
+            }
+
+            options.negotiateTransferSize(announcedSize);
+        }
+
+        negotiateTimeout();
+        transport.setBlockSize(blockSize);
+
+        // creating the file may wait for the disk: it is created by another thread, wakeUp continues the transfer
+        final Runnable wakeup = getWakeup();
+        opening = info.getWriteStorage().openWriteAsync(request.getFilename(), announcedSize);
+        await();
+        opening.whenComplete((opened, e) -> wakeup.run());
+    }
+
+    @Override
+    protected void onPacket(ByteBuffer packet) throws IOException {
+        if (isWaiting()) {
+            // blocks are not acknowledged until the storage can take them, the client retransmits meanwhile
+            if (YTFTPPackets.getOpcode(packet) == TFTPPacket.ERROR) {
+                handleUnexpected(packet);
+            }
+
+            return;
+        }
+
+        if (dallying) {
+            // client missed last ack, resend it
+            metrics.retransmit();
+            sendLastAck();
+
+            if (++dallyCount >= info.getMaxRetries()) {
+                finish();
+            }
+
+            return;
+        }
+
+        int opcode = YTFTPPackets.getOpcode(packet);
+
+        // client missed initial ack? try to send new one
+        if (opcode == TFTPPacket.WRITE_REQUEST && lastBlock == 0) {
+            cancelRttSample();
+            metrics.retransmit();
+            sendLastAck();
+            return;
+        }
+
+        if (opcode != TFTPPacket.DATA || packet.remaining() < YTFTPPackets.HEADER_SIZE) {
+            handleUnexpected(packet);
+            return;
+        }
+
+        final int block = YTFTPPackets.getBlockNumber(packet);
+        final int dataLength = packet.remaining() - YTFTPPackets.HEADER_SIZE;
+        final boolean last = dataLength < blockSize;
+        metrics.bytesReceived(dataLength);
+
+        // write only if the next block is received (block number wraps to 0 after 65535)
+        if (block == ((lastBlock + 1) & 0xffff)) {
+            if (exceedsUploadSize(received + dataLength, announcedSize)) {
+                sendError(TFTPErrorPacket.OUT_OF_SPACE, "File too large");
+                return;
+            }
+
+            try {
+                if (!writeData(packet, dataLength, last)) {
+                    // the block is dropped, and asked again by the ack sent when the storage wakes the transfer up
+                    cancelRttSample();
+                    await();
+                    return;
+                }
+            } catch (IOException e) {
+                onWriteError(e);
+                return;
+            }
+
+            received += dataLength;
+            lastBlock = block;
+            receivedInWindow++;
+            lossReported = false;
+            endRttSample(++blocks);
+            resetRetries();
+
+            // with a sliding window, ack only the last block of each window
+            if (receivedInWindow < windowSize && !last) {
+                return;
+            }
+        } else if (block != lastBlock && windowSize > 1) {
+            if (lossReported) {
+                // lost blocks already reported to client, wait for the window to restart
+                return;
+            }
+
+            // report the first block out of order at once (even if the whole window is lost so far), instead of
+            // letting the client time out
+            lossReported = true;
+        }
+
+        if (receivedInWindow > 0) {
+            // measure the time until the client sends the next block
+            startRttSample(blocks + 1);
+        } else {
+            // duplicate or out of order block, the ack is a retransmission
+            cancelRttSample();
+            metrics.retransmit();
+        }
+
+        receivedInWindow = 0;
+
+        if (last && block == lastBlock) {
+            // data must be written (and the file visible) before the client sees the upload completed: the last ack
+            // is sent when the storage wakes the transfer up
+            committing = true;
+            await();
+            writer.commit(this::onCommitted);
+            return;
+        }
+
+        sendLastAck();
+    }
+
+    @Override
+    protected void wakeUp() throws IOException {
+        if (!isWaiting()) {
+            return;
+        }
+
+        if (opening != null) {
+            if (opening.isDone()) {
+                onOpened();
+            }
+
+            return;
+        }
+
+        if (!committing) {
+            // buffers available, the client resends the blocks after the last one acknowledged
+            receivedInWindow = 0;
+            lossReported = false;
+            sendLastAck();
+            return;
+        }
+
+        if (!committed) {
+            // woken up by a previous wait
+            return;
+        }
+
+        committing = false;
+
+        if (commitError instanceof FileAlreadyExistsException) {
+            sendError(TFTPErrorPacket.FILE_EXISTS, "File already exists");
+            return;
+        }
+
+        if (commitError != null) {
+            onWriteError(commitError);
+            return;
+        }
+
+        // wait a bit in case client missed last ack
+        dallying = true;
+        sendLastAck();
+    }
+
+    @Override
+    protected void retransmit() throws IOException {
+        if (dallying) {
+            // client received last ack
+            finish();
+            return;
+        }
+
+        metrics.retransmit();
+        sendLastAck();
+    }
+
+    @Override
+    protected void onRetriesExhausted() {
+        if (dallying) {
+            finish();
+            return;
+        }
+
+        super.onRetriesExhausted();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+
+        // uploads not completed are discarded
+        if (writer != null) {
+            writer.close();
+        }
+
+        if (opening != null) {
+            // created after the end of the transfer
+            opening.thenAccept(YTFTPWritableFile::close);
+            opening = null;
+        }
+    }
+
+    // an OACK replaces the ACK of block 0 when options are accepted
+    private void sendLastAck() throws IOException {
+        if (lastBlock == 0 && received == 0 && options.hasAcknowledged()) {
+            transport.sendOptionAck(address, port, options.getAcknowledged());
+        } else {
+            transport.sendAck(address, port, lastBlock);
+        }
+
+        armTimer();
+    }
+
+    // the file has been created (or not), start receiving it
+    private void onOpened() throws IOException {
+        final CompletableFuture<YTFTPWritableFile> open = opening;
+        opening = null;
+
+        try {
+            writer = getResult(open);
+        } catch (FileNotFoundException e) {
+            sendError(TFTPErrorPacket.FILE_NOT_FOUND, e.getMessage());
+            return;
+        } catch (FileAlreadyExistsException e) {
+            sendError(TFTPErrorPacket.FILE_EXISTS, "File already exists");
+            return;
+        } catch (FileSystemException e) {
+            YTFTPLogger.warn("Cannot create {}", request.getFilename(), e);
+            sendError(TFTPErrorPacket.ACCESS_VIOLATION, "Cannot create file");
+            return;
+        }
+
+        if (request.getMode() == TFTP.NETASCII_MODE) {
+            decoder = new YTFTPNetASCIIDecoder();
+        }
+
+        startRttSample(1);
+        sendLastAck();
+    }
+
+    // return false if the storage cannot take the data now
+    private boolean writeData(ByteBuffer packet, int dataLength, boolean last) throws IOException {
+        final int position = packet.position();
+        // the decoded length has room for the data held back by the decoder, flushed after the last block
+        final int maxLength = decoder != null ? YTFTPNetASCIIDecoder.getMaxDecodedLength(dataLength) : dataLength;
+        final ByteBuffer buffer = writer.tryBuffer(maxLength, getWakeup());
+
+        if (buffer == null) {
+            return false;
+        }
+
+        // move the packet position to the data, instead of creating a new buffer
+        packet.position(position + YTFTPPackets.HEADER_SIZE);
+
+        if (decoder != null) {
+            decoder.decode(packet, buffer);
+
+            if (last) {
+                decoder.finish(buffer);
+            }
+        } else {
+            buffer.put(packet);
+        }
+
+        packet.position(position);
+        return true;
+    }
+
+    // storage thread: the file is complete (or failed)
+    private void onCommitted(IOException error) {
+        commitError = error;
+        committed = true;
+        getWakeup().run();
+    }
+
+    // disk full or failing, the upload is discarded
+    private void onWriteError(IOException e) throws IOException {
+        YTFTPLogger.warn("Error writing {}", request.getFilename(), e);
+        sendError(TFTPErrorPacket.UNDEFINED, "Error writing file");
+    }
+
+    // return false (after notifying client) if an upload of the given size cannot be accepted
+    private boolean acceptUploadSize(long size) throws IOException {
+        String error = null;
+
+        if (exceedsUploadSize(size, null)) {
+            error = "File too large (max " + info.getMaxUploadSize() + " bytes)";
+        } else if (size > info.getWriteStorage().getUsableSpace()) {
+            error = "Not enough free space";
+        }
+
+        if (error != null) {
+            sendError(TFTPErrorPacket.OUT_OF_SPACE, error);
+            return false;
+        }
+
+        return true;
+    }
+
+    private boolean exceedsUploadSize(long size, Long announcedSize) {
+        Long maxUploadSize = info.getMaxUploadSize();
+        return (maxUploadSize != null && size > maxUploadSize) || (announcedSize != null && size > announcedSize);
+    }
+}
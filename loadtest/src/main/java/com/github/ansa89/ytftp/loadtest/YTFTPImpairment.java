@@ -0,0 +1,73 @@
+package com.github.ansa89.ytftp.loadtest;
+
+/*
+ * YTFTPImpairment.java - Network conditions simulated by the impairment proxy.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import lombok.Value;
+
+@Value
+public class YTFTPImpairment {
+    // probability of dropping a packet
+    double lossRate;
+    // probability of sending a packet twice
+    double duplicateRate;
+    // probability of delaying a packet by reorderDelayMs more, so that following packets overtake it
+    double reorderRate;
+    long reorderDelayMs;
+    // delay of each packet (delayMs plus a random time up to jitterMs)
+    long delayMs;
+    long jitterMs;
+
+    /**
+     * Create network conditions.
+     *
+     * @param lossRate       probability of dropping a packet, between 0 and 1
+     * @param duplicateRate  probability of sending a packet twice, between 0 and 1
+     * @param reorderRate    probability of reordering a packet, between 0 and 1
+     * @param reorderDelayMs additional delay of reordered packets, must be greater or equal than 0
+     * @param delayMs        one way delay, must be greater or equal than 0
+     * @param jitterMs       maximum additional random delay, must be greater or equal than 0
+     * @throws YTFTPError if an invalid values is specified
+     */
+    public YTFTPImpairment(double lossRate, double duplicateRate, double reorderRate, long reorderDelayMs, long delayMs, long jitterMs) {
+        if (!isProbability(lossRate) || !isProbability(duplicateRate) || !isProbability(reorderRate)) {
+            throw new YTFTPError("Specify rates between 0 and 1");
+        }
+
+        if (reorderDelayMs < 0 || delayMs < 0 || jitterMs < 0) {
+            throw new YTFTPError("Specify delays greater or equal than 0");
+        }
+
+        this.lossRate = lossRate;
+        this.duplicateRate = duplicateRate;
+        this.reorderRate = reorderRate;
+        this.reorderDelayMs = reorderDelayMs;
+        this.delayMs = delayMs;
+        this.jitterMs = jitterMs;
+    }
+
+    private static boolean isProbability(double value) {
+        return value >= 0 && value <= 1;
+    }
+}
@@ -0,0 +1,403 @@
+package com.github.ansa89.ytftp.loadtest;
+
+/*
+ * YTFTPImpairmentProxy.java - UDP proxy placed between TFTP clients and server, dropping, duplicating,
+ *                             reordering and delaying packets.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import com.github.ansa89.ytftp.core.log.YTFTPLogger;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Each client gets its own socket towards the server, and each transfer port (TID) of the server gets its own socket
+ * towards the client, so that clients and server see the same ports they would see without the proxy.
+ */
+public class YTFTPImpairmentProxy implements Runnable, AutoCloseable {
+    // mappings not used for this time are closed
+    private static final long IDLE_TIMEOUT_MS = 30000;
+    // a new transfer of a client closes the sockets of its previous transfers not used for this time
+    private static final long TRANSFER_IDLE_TIMEOUT_MS = 5000;
+    private static final long MAX_SELECT_TIMEOUT_MS = 100;
+
+    private final InetSocketAddress server;
+    private final YTFTPImpairment impairment;
+    private final DatagramChannel listenChannel;
+    private final Selector selector;
+    private final Map<InetSocketAddress, Client> clients = new HashMap<>();
+    private final PriorityQueue<Pending> pending = new PriorityQueue<>();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(65536 + 4);
+    private final Random random = new Random();
+    private Thread thread;
+    private volatile boolean running = false;
+    private long sequence = 0;
+    private long nextIdleCheck = 0;
+    @Getter
+    private final LongAdder forwarded = new LongAdder();
+    @Getter
+    private final LongAdder dropped = new LongAdder();
+    @Getter
+    private final LongAdder duplicated = new LongAdder();
+    @Getter
+    private final LongAdder reordered = new LongAdder();
+
+    /**
+     * Create a proxy.
+     *
+     * @param listen     address receiving client requests (port 0 to choose a free port)
+     * @param server     address of the TFTP server
+     * @param impairment simulated network conditions (applied in both directions)
+     * @throws YTFTPError if the proxy socket cannot be opened
+     */
+    public YTFTPImpairmentProxy(@NonNull InetSocketAddress listen, @NonNull InetSocketAddress server, @NonNull YTFTPImpairment impairment) {
+        this.server = server;
+        this.impairment = impairment;
+
+        try {
+            this.selector = Selector.open();
+            this.listenChannel = openChannel(listen);
+            this.listenChannel.register(selector, SelectionKey.OP_READ, null);
+        } catch (IOException e) {
+            throw new YTFTPError("Cannot start impairment proxy", e);
+        }
+    }
+
+    /**
+     * Get the address clients must send requests to.
+     *
+     * @return proxy address
+     * @throws YTFTPError if the address cannot be read
+     */
+    public InetSocketAddress getLocalAddress() {
+        try {
+            return (InetSocketAddress) listenChannel.getLocalAddress();
+        } catch (IOException e) {
+            throw new YTFTPError("Cannot get proxy address", e);
+        }
+    }
+
+    /**
+     * Start forwarding packets in a new thread.
+     */
+    public void start() {
+        running = true;
+        thread = new Thread(this, "YTFTP-Proxy");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(this::receive, getSelectTimeout());
+                sendPending();
+                closeIdleClients();
+            }
+        } catch (IOException e) {
+            if (running) {
+                YTFTPLogger.error("Error in impairment proxy", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+
+        if (thread != null) {
+            try {
+                thread.join(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (Client client : clients.values()) {
+            client.close();
+        }
+
+        clients.clear();
+        closeQuietly(listenChannel);
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "YTFTPImpairmentProxy(forwarded=" + forwarded.sum() + ", dropped=" + dropped.sum() + ", duplicated=" + duplicated.sum() + ", reordered=" + reordered.sum() + ")";
+    }
+
+    private void receive(SelectionKey key) {
+        DatagramChannel channel = (DatagramChannel) key.channel();
+
+        try {
+            while (true) {
+                receiveBuffer.clear();
+                InetSocketAddress from = (InetSocketAddress) channel.receive(receiveBuffer);
+
+                if (from == null) {
+                    break;
+                }
+
+                receiveBuffer.flip();
+                route(key.attachment(), from);
+            }
+        } catch (IOException e) {
+            YTFTPLogger.debug("Error receiving packet in impairment proxy", e);
+        }
+    }
+
+    private void route(Object attachment, InetSocketAddress from) throws IOException {
+        if (attachment == null) {
+            // request of a client, sent to the server port
+            Client client = clients.get(from);
+
+            if (client == null) {
+                client = new Client(from);
+                clients.put(from, client);
+            }
+
+            client.lastUsed = now();
+            forward(client.upstream, server);
+        } else if (attachment instanceof Client) {
+            // answer of the server, sent back from the proxy socket mapping the server transfer port
+            Client client = (Client) attachment;
+            client.lastUsed = now();
+            forward(client.getDownstream(from, client.lastUsed), client.address);
+        } else {
+            // packet of a client for a server transfer port
+            Downstream downstream = (Downstream) attachment;
+
+            if (from.equals(downstream.client.address)) {
+                downstream.client.lastUsed = downstream.lastUsed = now();
+                forward(downstream.client.upstream, downstream.serverTid);
+            }
+        }
+    }
+
+    // apply network conditions to the packet in the receive buffer
+    private void forward(DatagramChannel channel, InetSocketAddress target) throws IOException {
+        if (random.nextDouble() < impairment.getLossRate()) {
+            dropped.increment();
+            return;
+        }
+
+        long delay = impairment.getDelayMs() + (impairment.getJitterMs() > 0 ? (long) (random.nextDouble() * impairment.getJitterMs()) : 0);
+
+        if (random.nextDouble() < impairment.getReorderRate()) {
+            reordered.increment();
+            delay += impairment.getReorderDelayMs();
+        }
+
+        boolean duplicate = random.nextDouble() < impairment.getDuplicateRate();
+
+        if (delay == 0) {
+            channel.send(receiveBuffer.duplicate(), target);
+        } else {
+            schedule(channel, target, now() + delay);
+        }
+
+        if (duplicate) {
+            duplicated.increment();
+            schedule(channel, target, now() + delay + 1);
+        }
+
+        forwarded.increment();
+    }
+
+    private void schedule(DatagramChannel channel, InetSocketAddress target, long time) {
+        ByteBuffer data = ByteBuffer.allocate(receiveBuffer.remaining());
+        data.put(receiveBuffer.duplicate()).flip();
+        pending.add(new Pending(time, sequence++, channel, target, data));
+    }
+
+    private void sendPending() {
+        final long now = now();
+
+        while (!pending.isEmpty() && pending.peek().time <= now) {
+            Pending packet = pending.poll();
+
+            try {
+                packet.channel.send(packet.data, packet.target);
+            } catch (IOException e) {
+                // channel closed meanwhile (idle client)
+                YTFTPLogger.debug("Error sending packet in impairment proxy", e);
+            }
+        }
+    }
+
+    private void closeIdleClients() {
+        final long now = now();
+
+        if (now < nextIdleCheck) {
+            return;
+        }
+
+        nextIdleCheck = now + 1000;
+        Iterator<Client> iterator = clients.values().iterator();
+
+        while (iterator.hasNext()) {
+            Client client = iterator.next();
+
+            if (now - client.lastUsed > IDLE_TIMEOUT_MS) {
+                client.close();
+                iterator.remove();
+            }
+        }
+    }
+
+    private long getSelectTimeout() {
+        if (pending.isEmpty()) {
+            return MAX_SELECT_TIMEOUT_MS;
+        }
+
+        return Math.max(1, Math.min(MAX_SELECT_TIMEOUT_MS, pending.peek().time - now()));
+    }
+
+    private DatagramChannel openChannel(InetSocketAddress address) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+
+        try {
+            channel.configureBlocking(false);
+            channel.bind(address);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+
+        return channel;
+    }
+
+    private static void closeQuietly(DatagramChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    // sockets used for a client
+    private final class Client {
+        private final InetSocketAddress address;
+        private final DatagramChannel upstream;
+        private final Map<InetSocketAddress, Downstream> downstreams = new HashMap<>();
+        private long lastUsed;
+
+        private Client(InetSocketAddress address) throws IOException {
+            this.address = address;
+            this.upstream = openChannel(new InetSocketAddress(getLocalAddress().getAddress(), 0));
+            this.upstream.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        private DatagramChannel getDownstream(InetSocketAddress serverTid, long now) throws IOException {
+            Downstream downstream = downstreams.get(serverTid);
+
+            if (downstream == null) {
+                Iterator<Downstream> iterator = downstreams.values().iterator();
+
+                while (iterator.hasNext()) {
+                    Downstream old = iterator.next();
+
+                    if (now - old.lastUsed > TRANSFER_IDLE_TIMEOUT_MS) {
+                        closeQuietly(old.channel);
+                        iterator.remove();
+                    }
+                }
+
+                downstream = new Downstream(this, serverTid);
+                downstreams.put(serverTid, downstream);
+            }
+
+            downstream.lastUsed = now;
+            return downstream.channel;
+        }
+
+        private void close() {
+            closeQuietly(upstream);
+
+            for (Downstream downstream : downstreams.values()) {
+                closeQuietly(downstream.channel);
+            }
+        }
+    }
+
+    // socket presenting a server transfer port to a client
+    private final class Downstream {
+        private final Client client;
+        private final InetSocketAddress serverTid;
+        private final DatagramChannel channel;
+        private long lastUsed;
+
+        private Downstream(Client client, InetSocketAddress serverTid) throws IOException {
+            this.client = client;
+            this.serverTid = serverTid;
+            this.channel = openChannel(new InetSocketAddress(getLocalAddress().getAddress(), 0));
+            this.channel.register(selector, SelectionKey.OP_READ, this);
+        }
+    }
+
+    private static final class Pending implements Comparable<Pending> {
+        private final long time;
+        // packets scheduled at the same time keep their order
+        private final long sequence;
+        private final DatagramChannel channel;
+        private final InetSocketAddress target;
+        private final ByteBuffer data;
+
+        private Pending(long time, long sequence, DatagramChannel channel, InetSocketAddress target, ByteBuffer data) {
+            this.time = time;
+            this.sequence = sequence;
+            this.channel = channel;
+            this.target = target;
+            this.data = data;
+        }
+
+        @Override
+        public int compareTo(Pending other) {
+            return time != other.time ? Long.compare(time, other.time) : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.github.ansa89.ytftp.loadtest;
+
+/*
+ * YTFTPLoadClient.java - Simulated TFTP client, implemented as a state machine driven by an event loop
+ *                        (think, send a request, transfer the file, repeat).
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.function.Consumer;
+
+final class YTFTPLoadClient {
+    private static final int READ_REQUEST = 1;
+    private static final int WRITE_REQUEST = 2;
+    private static final int DATA = 3;
+    private static final int ACKNOWLEDGEMENT = 4;
+    private static final int ERROR = 5;
+    private static final int OPTION_ACKNOWLEDGEMENT = 6;
+
+    private final int id;
+    private final YTFTPLoadConfig config;
+    private final YTFTPLoadStats stats;
+    // content of uploaded files
+    private final byte[] content;
+    private final Consumer<String> onUploaded;
+    @Getter
+    private final DatagramChannel channel;
+    private final Random random;
+    private final ByteBuffer sendBuffer;
+    @Getter
+    private long deadline;
+    private boolean transferring = false;
+    private int uploads = 0;
+    private YTFTPLoadRequestType type;
+    private String fileName;
+    private int fileSize;
+    private long startNanos;
+    private int retries;
+    // transfer port of the server, null until its first answer
+    private InetSocketAddress server;
+    // GET
+    private long received;
+    private int lastBlock;
+    private int inWindow;
+    private boolean gapReported;
+    // PUT (block numbers don't wrap)
+    private long acked;
+    private long lastPutBlock;
+
+    YTFTPLoadClient(int id, YTFTPLoadConfig config, YTFTPLoadStats stats, byte[] content, Consumer<String> onUploaded, DatagramChannel channel) {
+        this.id = id;
+        this.config = config;
+        this.stats = stats;
+        this.content = content;
+        this.onUploaded = onUploaded;
+        this.channel = channel;
+        this.random = new Random(id);
+        this.sendBuffer = ByteBuffer.allocate(Math.max(config.getBlockSize(), 512) + 4);
+    }
+
+    // send the first request at the given time
+    void start(long startTime) {
+        deadline = startTime;
+    }
+
+    void onTimeout(long now) throws IOException {
+        if (!transferring) {
+            startTransfer(now);
+            return;
+        }
+
+        if (++retries > config.getMaxRetries()) {
+            stats.failed(type, true);
+            think(now);
+            return;
+        }
+
+        stats.retransmit(type);
+
+        if (server == null || (type == YTFTPLoadRequestType.PUT && acked < 0)) {
+            sendRequest();
+        } else if (type == YTFTPLoadRequestType.PUT) {
+            sendWindow();
+        } else {
+            sendAck(lastBlock);
+        }
+
+        deadline = now + config.getTimeoutMs();
+    }
+
+    void onPacket(ByteBuffer packet, InetSocketAddress from, long now) throws IOException {
+        if (!transferring || packet.remaining() < 4) {
+            return;
+        }
+
+        if (server == null) {
+            server = from;
+        } else if (!server.equals(from)) {
+            // late answer of a previous transfer
+            return;
+        }
+
+        int opcode = packet.getShort(0);
+
+        if (opcode == ERROR) {
+            stats.failed(type, false);
+            think(now);
+            return;
+        }
+
+        boolean progress = type == YTFTPLoadRequestType.PUT ? onPutPacket(opcode, packet, now) : onGetPacket(opcode, packet, now);
+
+        if (progress && transferring) {
+            retries = 0;
+            deadline = now + config.getTimeoutMs();
+        }
+    }
+
+    private boolean onGetPacket(int opcode, ByteBuffer packet, long now) throws IOException {
+        if (opcode == OPTION_ACKNOWLEDGEMENT) {
+            sendAck(0);
+            return true;
+        }
+
+        if (opcode != DATA) {
+            return false;
+        }
+
+        int block = packet.getShort(2) & 0xffff;
+        int length = packet.remaining() - 4;
+
+        if (block != ((lastBlock + 1) & 0xffff)) {
+            // lost block, make the server restart from the last one received (once, following blocks of the window
+            // are lost too)
+            if (!gapReported) {
+                gapReported = true;
+                inWindow = 0;
+                sendAck(lastBlock);
+            }
+
+            return false;
+        }
+
+        gapReported = false;
+        received += length;
+        lastBlock = block;
+
+        if (length < config.getBlockSize()) {
+            sendAck(lastBlock);
+            complete(received, now);
+        } else if (++inWindow >= config.getWindowSize()) {
+            inWindow = 0;
+            sendAck(lastBlock);
+        }
+
+        return true;
+    }
+
+    private boolean onPutPacket(int opcode, ByteBuffer packet, long now) throws IOException {
+        if (opcode == OPTION_ACKNOWLEDGEMENT || (opcode == ACKNOWLEDGEMENT && acked < 0)) {
+            if (acked < 0) {
+                acked = 0;
+                sendWindow();
+            }
+
+            return true;
+        }
+
+        if (opcode != ACKNOWLEDGEMENT) {
+            return false;
+        }
+
+        // distance from the last acknowledged block, taking care of block number wrap
+        int distance = ((packet.getShort(2) & 0xffff) - (int) (acked & 0xffff)) & 0xffff;
+
+        if (distance == 0 || distance > config.getWindowSize()) {
+            return false;
+        }
+
+        acked += distance;
+
+        if (acked >= lastPutBlock) {
+            onUploaded.accept(fileName);
+            complete(fileSize, now);
+        } else {
+            sendWindow();
+        }
+
+        return true;
+    }
+
+    private void startTransfer(long now) throws IOException {
+        type = config.nextRequestType(random);
+        fileSize = config.nextFileSize(random);
+        fileName = type == YTFTPLoadRequestType.PUT ? "load-put-" + id + "-" + (uploads++) + ".bin" : YTFTPLoadConfig.getFileName(fileSize);
+        transferring = true;
+        server = null;
+        retries = 0;
+        received = 0;
+        lastBlock = 0;
+        inWindow = 0;
+        gapReported = false;
+        acked = -1;
+        lastPutBlock = fileSize / config.getBlockSize() + 1;
+        startNanos = System.nanoTime();
+
+        sendRequest();
+        deadline = now + config.getTimeoutMs();
+    }
+
+    private void complete(long bytes, long now) {
+        stats.completed(type, bytes, System.nanoTime() - startNanos);
+        think(now);
+    }
+
+    private void think(long now) {
+        transferring = false;
+        deadline = now + config.nextThinkTimeMs(random);
+    }
+
+    private void sendRequest() throws IOException {
+        sendBuffer.clear();
+        sendBuffer.putShort((short) (type == YTFTPLoadRequestType.PUT ? WRITE_REQUEST : READ_REQUEST));
+        putString(fileName);
+        putString(type == YTFTPLoadRequestType.GET_NETASCII ? "netascii" : "octet");
+
+        if (config.getBlockSize() != 512) {
+            putString("blksize");
+            putString(Integer.toString(config.getBlockSize()));
+        }
+
+        if (config.getWindowSize() != 1) {
+            putString("windowsize");
+            putString(Integer.toString(config.getWindowSize()));
+        }
+
+        send(config.getTarget());
+    }
+
+    private void sendAck(int block) throws IOException {
+        sendBuffer.clear();
+        sendBuffer.putShort((short) ACKNOWLEDGEMENT);
+        sendBuffer.putShort((short) block);
+        send(server);
+    }
+
+    // send the blocks following the last acknowledged one
+    private void sendWindow() throws IOException {
+        for (long block = acked + 1; block <= Math.min(acked + config.getWindowSize(), lastPutBlock); block++) {
+            int offset = (int) ((block - 1) * config.getBlockSize());
+
+            sendBuffer.clear();
+            sendBuffer.putShort((short) DATA);
+            sendBuffer.putShort((short) block);
+            sendBuffer.put(content, offset, Math.min(config.getBlockSize(), fileSize - offset));
+            send(server);
+        }
+    }
+
+    private void putString(String value) {
+        sendBuffer.put(value.getBytes(StandardCharsets.US_ASCII));
+        sendBuffer.put((byte) 0);
+    }
+
+    // when the socket buffer is full the packet is lost, retransmissions will recover
+    private void send(InetSocketAddress target) throws IOException {
+        sendBuffer.flip();
+        channel.send(sendBuffer, target);
+    }
+}
@@ -0,0 +1,166 @@
+package com.github.ansa89.ytftp.loadtest;
+
+/*
+ * YTFTPLoadConfig.java - Parameters of a load test.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import lombok.Data;
+import lombok.NonNull;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+@Data
+public class YTFTPLoadConfig {
+    // server (or impairment proxy) receiving requests
+    private InetSocketAddress target;
+    private int clients = 100;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int durationSeconds = 60;
+    // clients start evenly spread over this time (0 to start all of them together, like after a power outage)
+    private int rampUpSeconds = 0;
+    // mean time between the end of a transfer and the next request of the same client (exponentially distributed)
+    private long thinkTimeMs = 1000;
+    @NonNull
+    private Map<YTFTPLoadRequestType, Integer> mix = new EnumMap<>(Collections.singletonMap(YTFTPLoadRequestType.GET, 1));
+    @NonNull
+    private List<Integer> fileSizes = Collections.singletonList(1024 * 1024);
+    private int blockSize = 512;
+    private int windowSize = 1;
+    private int timeoutMs = 1000;
+    private int maxRetries = 5;
+
+    /**
+     * Get the name of the file downloaded by GET requests of the given size.
+     *
+     * @param size file size
+     * @return file name
+     */
+    public static String getFileName(int size) {
+        return "load-" + size + ".bin";
+    }
+
+    /**
+     * Parse a request mix, as a comma separated list of TYPE=WEIGHT (e.g. "GET=90,PUT=10").
+     *
+     * @param mix request mix
+     * @return weights of request types
+     * @throws YTFTPError if the mix is not valid
+     */
+    public static Map<YTFTPLoadRequestType, Integer> parseMix(@NonNull String mix) {
+        Map<YTFTPLoadRequestType, Integer> weights = new EnumMap<>(YTFTPLoadRequestType.class);
+
+        try {
+            for (String item : mix.split(",")) {
+                String[] pair = item.trim().split("=");
+                int weight = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+
+                if (weight < 0) {
+                    throw new YTFTPError("Specify weights greater or equal than 0");
+                }
+
+                weights.put(YTFTPLoadRequestType.valueOf(pair[0].trim().toUpperCase(Locale.ENGLISH)), weight);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new YTFTPError("Invalid request mix " + mix, e);
+        }
+
+        if (weights.values().stream().mapToInt(Integer::intValue).sum() == 0) {
+            throw new YTFTPError("Specify at least a request type with weight greater than 0");
+        }
+
+        return weights;
+    }
+
+    /**
+     * Parse a comma separated list of file sizes.
+     *
+     * @param sizes file sizes in bytes
+     * @return list of sizes
+     * @throws YTFTPError if a size is not valid
+     */
+    public static List<Integer> parseFileSizes(@NonNull String sizes) {
+        List<Integer> list = new ArrayList<>();
+
+        try {
+            for (String size : sizes.split(",")) {
+                list.add(Integer.parseInt(size.trim()));
+            }
+        } catch (NumberFormatException e) {
+            throw new YTFTPError("Invalid file sizes " + sizes, e);
+        }
+
+        if (list.stream().anyMatch(size -> size < 0)) {
+            throw new YTFTPError("Specify file sizes greater or equal than 0");
+        }
+
+        return list;
+    }
+
+    /**
+     * Choose the type of a request, according to the mix.
+     *
+     * @param random random generator
+     * @return request type
+     */
+    public YTFTPLoadRequestType nextRequestType(Random random) {
+        int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+        int choice = random.nextInt(total);
+
+        for (Map.Entry<YTFTPLoadRequestType, Integer> entry : mix.entrySet()) {
+            choice -= entry.getValue();
+
+            if (choice < 0) {
+                return entry.getKey();
+            }
+        }
+
+        return YTFTPLoadRequestType.GET;
+    }
+
+    /**
+     * Choose the size of the file of a request.
+     *
+     * @param random random generator
+     * @return file size
+     */
+    public int nextFileSize(Random random) {
+        return fileSizes.get(random.nextInt(fileSizes.size()));
+    }
+
+    /**
+     * Choose the time to wait before the next request.
+     *
+     * @param random random generator
+     * @return think time in milliseconds
+     */
+    public long nextThinkTimeMs(Random random) {
+        return (long) (-thinkTimeMs * Math.log(1 - random.nextDouble()));
+    }
+}
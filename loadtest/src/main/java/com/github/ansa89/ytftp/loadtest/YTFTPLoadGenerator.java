@@ -0,0 +1,201 @@
+package com.github.ansa89.ytftp.loadtest;
+
+/*
+ * YTFTPLoadGenerator.java - Event loops running simulated clients, each with its own UDP socket, so that
+ *                           thousands of clients need only a few threads.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import com.github.ansa89.ytftp.core.log.YTFTPLogger;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+public class YTFTPLoadGenerator implements AutoCloseable {
+    // deadlines of clients are checked at most every TIMEOUT_CHECK_MS
+    private static final long TIMEOUT_CHECK_MS = 5;
+
+    private final List<Loop> loops = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running = true;
+
+    /**
+     * Create clients and start sending requests.
+     *
+     * @param config     load parameters
+     * @param stats      results, updated by clients
+     * @param onUploaded called (by event loops) with the name of each file uploaded
+     * @throws YTFTPError if client sockets cannot be opened
+     */
+    public YTFTPLoadGenerator(@NonNull YTFTPLoadConfig config, @NonNull YTFTPLoadStats stats, @NonNull Consumer<String> onUploaded) {
+        final int maxFileSize = config.getFileSizes().stream().mapToInt(Integer::intValue).max().orElse(0);
+        final byte[] content = new byte[maxFileSize];
+        new Random(0).nextBytes(content);
+
+        final int threadCount = Math.max(1, Math.min(config.getThreads(), config.getClients()));
+        final long now = now();
+
+        try {
+            for (int i = 0; i < threadCount; i++) {
+                loops.add(new Loop());
+            }
+
+            for (int id = 0; id < config.getClients(); id++) {
+                DatagramChannel channel = DatagramChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, 256 * 1024);
+                channel.bind(new InetSocketAddress(config.getTarget().getAddress(), 0));
+
+                YTFTPLoadClient client = new YTFTPLoadClient(id, config, stats, content, onUploaded, channel);
+                client.start(now + (long) config.getRampUpSeconds() * 1000 * id / config.getClients());
+                loops.get(id % threadCount).add(client);
+            }
+        } catch (IOException e) {
+            close();
+            throw new YTFTPError("Cannot create clients (check the limit of open files)", e);
+        }
+
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(loops.get(i), "YTFTP-Load" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    /**
+     * Stop clients (transfers in progress are abandoned).
+     */
+    @Override
+    public void close() {
+        running = false;
+
+        for (Loop loop : loops) {
+            loop.selector.wakeup();
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (Loop loop : loops) {
+            loop.close();
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private final class Loop implements Runnable {
+        private final Selector selector;
+        private final List<YTFTPLoadClient> clients = new ArrayList<>();
+        private final ByteBuffer receiveBuffer = ByteBuffer.allocate(65536 + 4);
+        private long now;
+
+        private Loop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        private void add(YTFTPLoadClient client) throws IOException {
+            client.getChannel().register(selector, SelectionKey.OP_READ, client);
+            clients.add(client);
+        }
+
+        @Override
+        public void run() {
+            long nextTimeoutCheck = 0;
+
+            try {
+                while (running) {
+                    selector.select(this::receive, TIMEOUT_CHECK_MS);
+                    now = now();
+
+                    if (now >= nextTimeoutCheck) {
+                        nextTimeoutCheck = now + TIMEOUT_CHECK_MS;
+
+                        for (YTFTPLoadClient client : clients) {
+                            if (client.getDeadline() <= now) {
+                                client.onTimeout(now);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    YTFTPLogger.error("Error in load generator", e);
+                }
+            }
+        }
+
+        private void receive(SelectionKey key) {
+            YTFTPLoadClient client = (YTFTPLoadClient) key.attachment();
+            now = now();
+
+            try {
+                while (true) {
+                    receiveBuffer.clear();
+                    InetSocketAddress from = (InetSocketAddress) client.getChannel().receive(receiveBuffer);
+
+                    if (from == null) {
+                        break;
+                    }
+
+                    receiveBuffer.flip();
+                    client.onPacket(receiveBuffer, from, now);
+                }
+            } catch (IOException e) {
+                YTFTPLogger.warn("Error receiving packets of a simulated client", e);
+            }
+        }
+
+        private void close() {
+            for (YTFTPLoadClient client : clients) {
+                try {
+                    client.getChannel().close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
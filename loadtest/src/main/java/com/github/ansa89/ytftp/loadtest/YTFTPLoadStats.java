@@ -0,0 +1,114 @@
+package com.github.ansa89.ytftp.loadtest;
+
+/*
+ * YTFTPLoadStats.java - Results of a load test, updated concurrently by simulated clients.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.metrics.YTFTPHistogram;
+import com.github.ansa89.ytftp.core.metrics.YTFTPHistogramSnapshot;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class YTFTPLoadStats {
+    private final Map<YTFTPLoadRequestType, TypeStats> types = new EnumMap<>(YTFTPLoadRequestType.class);
+    private final long startNanos = System.nanoTime();
+
+    public YTFTPLoadStats() {
+        for (YTFTPLoadRequestType type : YTFTPLoadRequestType.values()) {
+            types.put(type, new TypeStats());
+        }
+    }
+
+    /**
+     * Record a completed transfer.
+     *
+     * @param type          request type
+     * @param bytes         bytes transferred
+     * @param latencyNanos  time from the request to the end of the transfer
+     */
+    public void completed(YTFTPLoadRequestType type, long bytes, long latencyNanos) {
+        TypeStats stats = types.get(type);
+        stats.completed.increment();
+        stats.bytes.add(bytes);
+        stats.latencies.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+    }
+
+    /**
+     * Record a failed transfer.
+     *
+     * @param type    request type
+     * @param timeout true if the server stopped answering, false if it sent an error
+     */
+    public void failed(YTFTPLoadRequestType type, boolean timeout) {
+        (timeout ? types.get(type).timeouts : types.get(type).errors).increment();
+    }
+
+    /**
+     * Record a retransmission of a client packet.
+     *
+     * @param type request type
+     */
+    public void retransmit(YTFTPLoadRequestType type) {
+        types.get(type).retransmits.increment();
+    }
+
+    /**
+     * Describe the results.
+     *
+     * @return one line per request type with throughput, latency and failures
+     */
+    public String report() {
+        final double seconds = (System.nanoTime() - startNanos) / 1e9;
+        StringBuilder report = new StringBuilder();
+
+        for (Map.Entry<YTFTPLoadRequestType, TypeStats> entry : types.entrySet()) {
+            TypeStats stats = entry.getValue();
+            long completed = stats.completed.sum();
+            long failed = stats.timeouts.sum() + stats.errors.sum();
+
+            if (completed + failed == 0) {
+                continue;
+            }
+
+            YTFTPHistogramSnapshot latency = stats.latencies.getSnapshot();
+            report.append(String.format("%-12s %8d ok %6d failed (%5.2f%%, %d timeouts, %d errors) %8.1f req/s %8.2f MiB/s latency ms p50 %.1f p90 %.1f p99 %.1f max %.1f retransmits %d%n",
+                    entry.getKey(), completed, failed, 100.0 * failed / (completed + failed), stats.timeouts.sum(), stats.errors.sum(),
+                    completed / seconds, stats.bytes.sum() / seconds / (1024 * 1024), latency.getP50() / 1000.0,
+                    latency.getP90() / 1000.0, latency.getP99() / 1000.0, latency.getMax() / 1000.0, stats.retransmits.sum()));
+        }
+
+        return report.length() > 0 ? report.toString() : String.format("no transfer completed%n");
+    }
+
+    private static final class TypeStats {
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder retransmits = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        // microseconds
+        private final YTFTPHistogram latencies = new YTFTPHistogram();
+    }
+}
@@ -0,0 +1,322 @@
+package com.github.ansa89.ytftp.loadtest;
+
+/*
+ * YTFTPLoadTest.java - Command line tool running simulated clients against an embedded (or external) TFTP server,
+ *                      optionally through an impairment proxy, and reporting throughput, latency and failures.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.YTFTPServer;
+import com.github.ansa89.ytftp.core.enums.YTFTPEngineType;
+import com.github.ansa89.ytftp.core.enums.YTFTPLogLevel;
+import com.github.ansa89.ytftp.core.enums.YTFTPRetransmitMode;
+import com.github.ansa89.ytftp.core.enums.YTFTPServerType;
+import com.github.ansa89.ytftp.core.error.YTFTPError;
+import com.github.ansa89.ytftp.core.log.YTFTPLogger;
+import org.apache.commons.cli.*;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class YTFTPLoadTest {
+    private static final String OPT_HELP = "help";
+    private static final String OPT_SERVER = "server";
+    private static final String OPT_READ_DIR = "read-dir";
+    private static final String OPT_ENGINE = "engine";
+    private static final String OPT_RETRANSMIT = "retransmit-mode";
+    private static final String OPT_SERVER_TIMEOUT = "server-timeout";
+    private static final String OPT_LISTEN_THREADS = "listen-threads";
+    private static final String OPT_CLIENTS = "clients";
+    private static final String OPT_THREADS = "threads";
+    private static final String OPT_DURATION = "duration";
+    private static final String OPT_RAMP_UP = "ramp-up";
+    private static final String OPT_THINK_TIME = "think-time";
+    private static final String OPT_MIX = "mix";
+    private static final String OPT_FILE_SIZES = "file-sizes";
+    private static final String OPT_BLOCK_SIZE = "block-size";
+    private static final String OPT_WINDOW_SIZE = "window-size";
+    private static final String OPT_TIMEOUT = "timeout";
+    private static final String OPT_RETRIES = "retries";
+    private static final String OPT_LOSS = "loss";
+    private static final String OPT_DUPLICATE = "duplicate";
+    private static final String OPT_REORDER = "reorder";
+    private static final String OPT_REORDER_DELAY = "reorder-delay";
+    private static final String OPT_DELAY = "delay";
+    private static final String OPT_JITTER = "jitter";
+    private static final String OPT_REPORT = "report-interval";
+    private static final String OPT_LOG = "log-level";
+    private static final Options CMD_OPTIONS = new Options();
+
+    public static void main(String[] args) {
+        HelpFormatter formatter = new HelpFormatter();
+        CommandLine line = null;
+
+        createCmdOptions();
+
+        try {
+            CommandLineParser parser = new DefaultParser();
+            line = parser.parse(CMD_OPTIONS, args);
+
+            if (line.hasOption(OPT_HELP)) {
+                formatter.printHelp("YTFTP Load Test", CMD_OPTIONS);
+                System.exit(0);
+            }
+
+            YTFTPLogger.setLevel(line.hasOption(OPT_LOG) ? YTFTPLogLevel.valueOf(line.getOptionValue(OPT_LOG)) : YTFTPLogLevel.ERROR);
+            runTest(line);
+        } catch (ParseException e) {
+            formatter.printHelp("YTFTP Load Test", CMD_OPTIONS);
+
+            if (line == null || !line.hasOption(OPT_HELP)) {
+                throw new RuntimeException("Error parsing options", e);
+            }
+        } catch (UnknownHostException e) {
+            throw new RuntimeException("Unknown server address", e);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Invalid number", e);
+        } catch (IOException e) {
+            throw new RuntimeException("Error preparing test files", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void runTest(CommandLine line) throws IOException, InterruptedException {
+        YTFTPLoadConfig config = new YTFTPLoadConfig();
+        config.setClients(getInt(line, OPT_CLIENTS, config.getClients()));
+        config.setThreads(getInt(line, OPT_THREADS, config.getThreads()));
+        config.setDurationSeconds(getInt(line, OPT_DURATION, config.getDurationSeconds()));
+        config.setRampUpSeconds(getInt(line, OPT_RAMP_UP, config.getRampUpSeconds()));
+        config.setThinkTimeMs(getInt(line, OPT_THINK_TIME, (int) config.getThinkTimeMs()));
+        config.setBlockSize(getInt(line, OPT_BLOCK_SIZE, config.getBlockSize()));
+        config.setWindowSize(getInt(line, OPT_WINDOW_SIZE, config.getWindowSize()));
+        config.setTimeoutMs(getInt(line, OPT_TIMEOUT, config.getTimeoutMs()));
+        config.setMaxRetries(getInt(line, OPT_RETRIES, config.getMaxRetries()));
+
+        if (line.hasOption(OPT_MIX)) {
+            config.setMix(YTFTPLoadConfig.parseMix(line.getOptionValue(OPT_MIX)));
+        }
+
+        if (line.hasOption(OPT_FILE_SIZES)) {
+            config.setFileSizes(YTFTPLoadConfig.parseFileSizes(line.getOptionValue(OPT_FILE_SIZES)));
+        }
+
+        YTFTPImpairment impairment = new YTFTPImpairment(getDouble(line, OPT_LOSS), getDouble(line, OPT_DUPLICATE), getDouble(line, OPT_REORDER),
+                getInt(line, OPT_REORDER_DELAY, 0), getInt(line, OPT_DELAY, 0), getInt(line, OPT_JITTER, 0));
+        boolean impaired = impairment.getLossRate() > 0 || impairment.getDuplicateRate() > 0 || impairment.getReorderRate() > 0 ||
+                impairment.getDelayMs() > 0 || impairment.getJitterMs() > 0;
+        int reportInterval = getInt(line, OPT_REPORT, 10);
+
+        Path readDir = null;
+        Path writeDir = null;
+        YTFTPServer server = null;
+        YTFTPImpairmentProxy proxy = null;
+        InetSocketAddress serverAddress;
+        Consumer<String> onUploaded = fileName -> {
+            // nothing to do, uploaded files are on the external server
+        };
+
+        try {
+            if (line.hasOption(OPT_SERVER)) {
+                serverAddress = parseAddress(line.getOptionValue(OPT_SERVER));
+
+                if (line.hasOption(OPT_READ_DIR)) {
+                    createFiles(Paths.get(line.getOptionValue(OPT_READ_DIR)), config);
+                }
+            } else {
+                InetAddress loopback = InetAddress.getLoopbackAddress();
+                serverAddress = new InetSocketAddress(loopback, getFreePort(loopback));
+                readDir = Files.createTempDirectory("ytftp-load-read");
+                writeDir = Files.createTempDirectory("ytftp-load-write");
+                createFiles(readDir, config);
+
+                server = new YTFTPServer(readDir, writeDir, YTFTPServerType.GET_AND_PUT, serverAddress.getPort(), loopback);
+                server.setEngineType(line.hasOption(OPT_ENGINE) ? YTFTPEngineType.valueOf(line.getOptionValue(OPT_ENGINE)) : YTFTPServer.DEFAULT_ENGINE_TYPE);
+                server.setRetransmitMode(line.hasOption(OPT_RETRANSMIT) ? YTFTPRetransmitMode.valueOf(line.getOptionValue(OPT_RETRANSMIT)) : YTFTPServer.DEFAULT_RETRANSMIT_MODE);
+                server.setSocketTimeoutMs(getInt(line, OPT_SERVER_TIMEOUT, server.getSocketTimeoutMs()));
+                server.setListenThreads(getInt(line, OPT_LISTEN_THREADS, server.getListenThreads()));
+                server.setMaxConcurrentTransfers(Math.max(YTFTPServer.DEFAULT_MAX_CONCURRENT_TRANSFERS, config.getClients()));
+                server.start();
+
+                // keep the write directory small during long runs
+                final Path uploads = writeDir;
+                onUploaded = fileName -> {
+                    try {
+                        Files.deleteIfExists(uploads.resolve(fileName));
+                    } catch (IOException e) {
+                        YTFTPLogger.debug("Cannot delete uploaded file {}", fileName, e);
+                    }
+                };
+            }
+
+            if (impaired) {
+                proxy = new YTFTPImpairmentProxy(new InetSocketAddress(serverAddress.getAddress(), 0), serverAddress, impairment);
+                proxy.start();
+                config.setTarget(proxy.getLocalAddress());
+            } else {
+                config.setTarget(serverAddress);
+            }
+
+            System.out.println("Starting load test: " + config.getClients() + " clients on " + config.getThreads() + " threads for " +
+                    config.getDurationSeconds() + "s against " + serverAddress + (impaired ? " through " + impairment : ""));
+
+            YTFTPLoadStats stats = new YTFTPLoadStats();
+
+            try (YTFTPLoadGenerator ignored = new YTFTPLoadGenerator(config, stats, onUploaded)) {
+                long end = System.nanoTime() + config.getDurationSeconds() * 1000000000L;
+
+                while (System.nanoTime() < end) {
+                    Thread.sleep(Math.max(1, Math.min(reportInterval * 1000L, (end - System.nanoTime()) / 1000000)));
+
+                    if (System.nanoTime() < end) {
+                        System.out.print(stats.report());
+                    }
+                }
+            }
+
+            System.out.println("Results:");
+            System.out.print(stats.report());
+
+            if (proxy != null) {
+                System.out.println(proxy);
+            }
+
+            if (server != null) {
+                System.out.println(server.getMetrics());
+            }
+        } finally {
+            if (proxy != null) {
+                proxy.close();
+            }
+
+            if (server != null) {
+                server.close();
+            }
+
+            delete(readDir);
+            delete(writeDir);
+        }
+    }
+
+    // files downloaded by GET requests, one for each size
+    private static void createFiles(Path directory, YTFTPLoadConfig config) throws IOException {
+        for (int size : config.getFileSizes()) {
+            byte[] content = new byte[size];
+            new Random(size).nextBytes(content);
+            Files.write(directory.resolve(YTFTPLoadConfig.getFileName(size)), content);
+        }
+    }
+
+    private static InetSocketAddress parseAddress(String address) throws UnknownHostException {
+        int separator = address.lastIndexOf(':');
+
+        if (separator < 0 || address.indexOf(':') != separator && !address.startsWith("[")) {
+            // no port (or IPv6 address without brackets)
+            return new InetSocketAddress(InetAddress.getByName(address), YTFTPServer.DEFAULT_PORT);
+        }
+
+        String host = address.substring(0, separator).replace("[", "").replace("]", "");
+        return new InetSocketAddress(InetAddress.getByName(host), Integer.parseInt(address.substring(separator + 1)));
+    }
+
+    private static int getFreePort(InetAddress address) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0, address)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        if (directory == null) {
+            return;
+        }
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static int getInt(CommandLine line, String option, int defaultValue) {
+        return line.hasOption(option) ? Integer.parseInt(line.getOptionValue(option)) : defaultValue;
+    }
+
+    private static double getDouble(CommandLine line, String option) {
+        if (!line.hasOption(option)) {
+            return 0;
+        }
+
+        // rates are given in percent
+        return Double.parseDouble(line.getOptionValue(option)) / 100;
+    }
+
+    private static void addOption(String shortName, String longName, String argName, String desc) {
+        CMD_OPTIONS.addOption(Option.builder(shortName)
+                .longOpt(longName)
+                .argName(argName)
+                .hasArg(argName != null)
+                .desc(desc)
+                .required(false)
+                .build()
+        );
+    }
+
+    private static void createCmdOptions() {
+        addOption("h", OPT_HELP, null, "Show this help");
+        addOption("s", OPT_SERVER, "HOST:PORT", "External server to test (default an embedded server on loopback)");
+        addOption("r", OPT_READ_DIR, "READ_DIR", "Read directory of the external server, where test files are created");
+        addOption("e", OPT_ENGINE, "ENGINE", "Engine of the embedded server (" + Arrays.stream(YTFTPEngineType.values()).map(YTFTPEngineType::name).collect(Collectors.joining(", ")) + ")");
+        addOption(null, OPT_RETRANSMIT, "MODE", "Retransmission mode of the embedded server (" + Arrays.stream(YTFTPRetransmitMode.values()).map(YTFTPRetransmitMode::name).collect(Collectors.joining(", ")) + ")");
+        addOption(null, OPT_SERVER_TIMEOUT, "MS", "Socket timeout of the embedded server");
+        addOption(null, OPT_LISTEN_THREADS, "THREADS", "Threads receiving requests in the embedded server");
+        addOption("c", OPT_CLIENTS, "N", "Number of simulated clients (default 100)");
+        addOption("n", OPT_THREADS, "N", "Number of client threads (default number of processors)");
+        addOption("d", OPT_DURATION, "SECONDS", "Test duration (default 60)");
+        addOption("u", OPT_RAMP_UP, "SECONDS", "Time to start all clients (default 0, all together)");
+        addOption("k", OPT_THINK_TIME, "MS", "Mean time between transfers of a client (default 1000)");
+        addOption("m", OPT_MIX, "MIX", "Request mix, e.g. GET=90,GET_NETASCII=5,PUT=5 (default GET)");
+        addOption("f", OPT_FILE_SIZES, "SIZES", "Comma separated file sizes in bytes (default 1048576)");
+        addOption("b", OPT_BLOCK_SIZE, "BYTES", "Block size requested by clients (default 512)");
+        addOption("w", OPT_WINDOW_SIZE, "BLOCKS", "Window size requested by clients (default 1)");
+        addOption("t", OPT_TIMEOUT, "MS", "Client retransmission timeout (default 1000)");
+        addOption(null, OPT_RETRIES, "N", "Client retries before giving up (default 5)");
+        addOption(null, OPT_LOSS, "PERCENT", "Packets dropped by the proxy");
+        addOption(null, OPT_DUPLICATE, "PERCENT", "Packets duplicated by the proxy");
+        addOption(null, OPT_REORDER, "PERCENT", "Packets reordered by the proxy");
+        addOption(null, OPT_REORDER_DELAY, "MS", "Additional delay of reordered packets");
+        addOption(null, OPT_DELAY, "MS", "One way delay added by the proxy");
+        addOption(null, OPT_JITTER, "MS", "Maximum random delay added by the proxy");
+        addOption(null, OPT_REPORT, "SECONDS", "Interval between partial reports (default 10)");
+        addOption("x", OPT_LOG, "LOG_LEVEL", "Log level (" + Arrays.stream(YTFTPLogLevel.values()).map(YTFTPLogLevel::name).collect(Collectors.joining(", ")) + ", default ERROR)");
+    }
+}
@@ -0,0 +1,305 @@
+package com.github.ansa89.ytftp.loadtest;
+
+/*
+ * YTFTPMulticastClient.java - Minimal RFC 2090 client downloading a file from a multicast session.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+final class YTFTPMulticastClient implements AutoCloseable {
+    private static final int READ_REQUEST = 1;
+    private static final int DATA = 3;
+    private static final int ACKNOWLEDGEMENT = 4;
+    private static final int ERROR = 5;
+    private static final int OPTION_ACKNOWLEDGEMENT = 6;
+
+    private final InetSocketAddress target;
+    private final NetworkInterface multicastInterface;
+    private final int blockSize;
+    private final int timeoutMs;
+    private final int maxRetries;
+    // fraction of group packets dropped, to exercise the catch up of clients joining late or losing blocks
+    private final double lossRate;
+    private final Random random;
+    private final Selector selector;
+    private final DatagramChannel unicast;
+    private final ByteBuffer buffer;
+    private DatagramChannel multicast;
+    // transfer port of the server, null until its first answer
+    private InetSocketAddress server;
+    private byte[] content;
+    private int lastBlock;
+    private final BitSet received = new BitSet();
+    // last block received in sequence
+    private int contiguous;
+    private boolean master;
+    @Getter
+    private boolean multicastUsed;
+    @Getter
+    private int promotions;
+    @Getter
+    private int blocksFromGroup;
+
+    YTFTPMulticastClient(int id, InetSocketAddress target, NetworkInterface multicastInterface, int blockSize, int timeoutMs, int maxRetries, double lossRate) throws IOException {
+        this.target = target;
+        this.multicastInterface = multicastInterface;
+        this.blockSize = blockSize;
+        this.timeoutMs = timeoutMs;
+        this.maxRetries = maxRetries;
+        this.lossRate = lossRate;
+        this.random = new Random(id);
+        this.buffer = ByteBuffer.allocate(blockSize + 4);
+        this.selector = Selector.open();
+        this.unicast = DatagramChannel.open(StandardProtocolFamily.INET);
+        this.unicast.bind(new InetSocketAddress(target.getAddress(), 0));
+        this.unicast.configureBlocking(false);
+        this.unicast.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Download a file joining its multicast session.
+     *
+     * @param fileName name of the file
+     * @return content of the file
+     * @throws IOException if the transfer fails
+     */
+    byte[] get(String fileName) throws IOException {
+        sendRequest(fileName);
+        int retries = 0;
+
+        while (true) {
+            if (selector.select(timeoutMs) == 0) {
+                if (++retries > maxRetries) {
+                    throw new IOException("Timeout downloading " + fileName);
+                }
+
+                if (server == null) {
+                    sendRequest(fileName);
+                } else if (master) {
+                    sendAck(contiguous);
+                }
+
+                continue;
+            }
+
+            selector.selectedKeys().clear();
+
+            if (receive(unicast) || (multicast != null && receive(multicast))) {
+                retries = 0;
+            }
+
+            if (content != null && contiguous == lastBlock) {
+                // leave the session, even without being master
+                sendAck(lastBlock);
+                return content;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        unicast.close();
+
+        if (multicast != null) {
+            multicast.close();
+        }
+    }
+
+    // read all pending packets of a channel, return true if the transfer progressed
+    private boolean receive(DatagramChannel channel) throws IOException {
+        boolean progress = false;
+
+        while (true) {
+            buffer.clear();
+            InetSocketAddress from = (InetSocketAddress) channel.receive(buffer);
+
+            if (from == null) {
+                return progress;
+            }
+
+            buffer.flip();
+
+            if (buffer.remaining() < 4) {
+                continue;
+            }
+
+            int opcode = buffer.getShort(0);
+
+            if (opcode == ERROR) {
+                buffer.position(4);
+                throw new IOException("Error " + buffer.getShort(2) + " from server: " + readString());
+            }
+
+            if (opcode == OPTION_ACKNOWLEDGEMENT && channel == unicast) {
+                server = from;
+                onOptionAck();
+                progress = true;
+            } else if (opcode == DATA && content != null) {
+                if (channel == multicast && random.nextDouble() < lossRate) {
+                    continue;
+                }
+
+                progress |= onData(buffer.getShort(2) & 0xffff, channel == multicast);
+            }
+        }
+    }
+
+    private void onOptionAck() throws IOException {
+        Map<String, String> options = new HashMap<>();
+        buffer.position(2);
+
+        while (buffer.hasRemaining()) {
+            String name = readString().toLowerCase();
+            options.put(name, readString());
+        }
+
+        if (content == null) {
+            String size = options.get("tsize");
+
+            if (size == null || Integer.parseInt(options.getOrDefault("blksize", "512")) != blockSize) {
+                throw new IOException("Server did not accept the transfer size or block size options");
+            }
+
+            content = new byte[Integer.parseInt(size)];
+            lastBlock = content.length / blockSize + 1;
+        }
+
+        String multicastOption = options.get("multicast");
+
+        if (multicastOption == null) {
+            // unicast fallback, e.g. no free group
+            master = true;
+        } else {
+            String[] fields = multicastOption.split(",", -1);
+
+            if (multicast == null && !fields[0].isEmpty()) {
+                // several clients on the same host share the group port, binding the group address filters the packets
+                // of other groups on the same port
+                InetAddress group = InetAddress.getByName(fields[0]);
+                multicast = DatagramChannel.open(StandardProtocolFamily.INET);
+                multicast.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                multicast.bind(new InetSocketAddress(group, Integer.parseInt(fields[1])));
+                multicast.join(group, multicastInterface);
+                multicast.configureBlocking(false);
+                multicast.register(selector, SelectionKey.OP_READ);
+                multicastUsed = true;
+            }
+
+            boolean wasMaster = master;
+            master = "1".equals(fields[2]);
+
+            if (master && !wasMaster && multicastUsed) {
+                promotions++;
+            }
+        }
+
+        if (master) {
+            // the master asks for the block after the last one received in sequence
+            sendAck(contiguous);
+        }
+    }
+
+    private boolean onData(int block, boolean fromGroup) throws IOException {
+        if (block < 1 || block > lastBlock) {
+            return false;
+        }
+
+        if (!received.get(block)) {
+            int length = buffer.remaining() - 4;
+            buffer.position(4);
+            buffer.get(content, (block - 1) * blockSize, Math.min(length, content.length - (block - 1) * blockSize));
+            received.set(block);
+            contiguous = received.nextClearBit(1) - 1;
+
+            if (fromGroup) {
+                blocksFromGroup++;
+            }
+        }
+
+        if (master) {
+            sendAck(contiguous);
+        }
+
+        return true;
+    }
+
+    private void sendRequest(String fileName) throws IOException {
+        buffer.clear();
+        buffer.putShort((short) READ_REQUEST);
+        putString(fileName);
+        putString("octet");
+        putString("blksize");
+        putString(Integer.toString(blockSize));
+        putString("tsize");
+        putString("0");
+        putString("multicast");
+        putString("");
+        buffer.flip();
+        unicast.send(buffer, target);
+    }
+
+    private void sendAck(int block) throws IOException {
+        buffer.clear();
+        buffer.putShort((short) ACKNOWLEDGEMENT);
+        buffer.putShort((short) block);
+        buffer.flip();
+        unicast.send(buffer, server);
+    }
+
+    private void putString(String value) {
+        buffer.put(value.getBytes(StandardCharsets.US_ASCII));
+        buffer.put((byte) 0);
+    }
+
+    private String readString() {
+        StringBuilder value = new StringBuilder();
+
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+
+            if (b == 0) {
+                break;
+            }
+
+            value.append((char) b);
+        }
+
+        return value.toString();
+    }
+}
@@ -0,0 +1,252 @@
+package com.github.ansa89.ytftp.loadtest;
+
+/*
+ * YTFTPMulticastTest.java - Command line tool downloading a file with several multicast clients from an embedded
+ *                           server on loopback, and checking what every client received.
+ *
+ * Copyright 2020 Stefano Ansaloni.
+ *
+ *
+ * This file is part of YTFTP.
+ *
+ * YTFTP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * YTFTP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with YTFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import com.github.ansa89.ytftp.core.YTFTPServer;
+import com.github.ansa89.ytftp.core.enums.YTFTPEngineType;
+import com.github.ansa89.ytftp.core.enums.YTFTPLogLevel;
+import com.github.ansa89.ytftp.core.enums.YTFTPServerType;
+import com.github.ansa89.ytftp.core.log.YTFTPLogger;
+import org.apache.commons.cli.*;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Clients start one after the other (STAGGER milliseconds apart), so that most of them join a running session and
+ * complete the file as masters after the first one left. Group packets can be dropped by the clients to exercise the
+ * recovery of missing blocks.
+ * <p>
+ * On Linux the loopback interface may need multicast enabled ({@code ip link set lo multicast on}).
+ */
+public class YTFTPMulticastTest {
+    private static final String OPT_HELP = "help";
+    private static final String OPT_ENGINE = "engine";
+    private static final String OPT_GROUP = "group";
+    private static final String OPT_GROUP_PORT = "group-port";
+    private static final String OPT_CLIENTS = "clients";
+    private static final String OPT_STAGGER = "stagger";
+    private static final String OPT_FILE_SIZE = "file-size";
+    private static final String OPT_BLOCK_SIZE = "block-size";
+    private static final String OPT_TIMEOUT = "timeout";
+    private static final String OPT_RETRIES = "retries";
+    private static final String OPT_LOSS = "loss";
+    private static final String OPT_LOG = "log-level";
+    private static final String FILE_NAME = "multicast.bin";
+    private static final Options CMD_OPTIONS = new Options();
+
+    public static void main(String[] args) {
+        HelpFormatter formatter = new HelpFormatter();
+        CommandLine line = null;
+        boolean passed = false;
+
+        createCmdOptions();
+
+        try {
+            CommandLineParser parser = new DefaultParser();
+            line = parser.parse(CMD_OPTIONS, args);
+
+            if (line.hasOption(OPT_HELP)) {
+                formatter.printHelp("YTFTP Multicast Test", CMD_OPTIONS);
+                System.exit(0);
+            }
+
+            YTFTPLogger.setLevel(line.hasOption(OPT_LOG) ? YTFTPLogLevel.valueOf(line.getOptionValue(OPT_LOG)) : YTFTPLogLevel.ERROR);
+            passed = runTest(line);
+        } catch (ParseException e) {
+            formatter.printHelp("YTFTP Multicast Test", CMD_OPTIONS);
+
+            if (line == null || !line.hasOption(OPT_HELP)) {
+                throw new RuntimeException("Error parsing options", e);
+            }
+        } catch (UnknownHostException e) {
+            throw new RuntimeException("Unknown group address", e);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Invalid number", e);
+        } catch (IOException e) {
+            throw new RuntimeException("Error preparing test file", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean runTest(CommandLine line) throws IOException, InterruptedException {
+        int clients = getInt(line, OPT_CLIENTS, 10);
+        int stagger = getInt(line, OPT_STAGGER, 20);
+        int fileSize = getInt(line, OPT_FILE_SIZE, 1048576);
+        int blockSize = getInt(line, OPT_BLOCK_SIZE, 1024);
+        int timeout = getInt(line, OPT_TIMEOUT, 1000);
+        int retries = getInt(line, OPT_RETRIES, 5);
+        double loss = line.hasOption(OPT_LOSS) ? Double.parseDouble(line.getOptionValue(OPT_LOSS)) / 100 : 0;
+        InetAddress group = InetAddress.getByName(line.hasOption(OPT_GROUP) ? line.getOptionValue(OPT_GROUP) : "239.255.84.70");
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        NetworkInterface multicastInterface = NetworkInterface.getByInetAddress(loopback);
+        InetSocketAddress serverAddress = new InetSocketAddress(loopback, getFreePort(loopback));
+        Path readDir = Files.createTempDirectory("ytftp-multicast-read");
+        Path writeDir = Files.createTempDirectory("ytftp-multicast-write");
+        YTFTPServer server = null;
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+
+        try {
+            byte[] content = new byte[fileSize];
+            new Random(fileSize).nextBytes(content);
+            Files.write(readDir.resolve(FILE_NAME), content);
+
+            server = new YTFTPServer(readDir, writeDir, YTFTPServerType.GET_ONLY, serverAddress.getPort(), loopback);
+            server.setEngineType(line.hasOption(OPT_ENGINE) ? YTFTPEngineType.valueOf(line.getOptionValue(OPT_ENGINE)) : YTFTPServer.DEFAULT_ENGINE_TYPE);
+            server.setMaxConcurrentTransfers(Math.max(YTFTPServer.DEFAULT_MAX_CONCURRENT_TRANSFERS, clients));
+            server.setMulticastAddress(group);
+            server.setMulticastPort(getInt(line, OPT_GROUP_PORT, YTFTPServer.DEFAULT_MULTICAST_PORT));
+            server.start();
+
+            System.out.println("Starting multicast test: " + clients + " clients downloading " + fileSize + " bytes from " + serverAddress +
+                    " through group " + group.getHostAddress() + " on " + multicastInterface.getName());
+
+            AtomicInteger promotions = new AtomicInteger();
+            AtomicInteger blocksFromGroup = new AtomicInteger();
+            AtomicInteger unicast = new AtomicInteger();
+            List<Future<Boolean>> results = new ArrayList<>();
+            long start = System.nanoTime();
+
+            for (int i = 0; i < clients; i++) {
+                final int id = i;
+
+                results.add(executor.submit(() -> {
+                    Thread.sleep((long) id * stagger);
+
+                    try (YTFTPMulticastClient client = new YTFTPMulticastClient(id, serverAddress, multicastInterface, blockSize, timeout, retries, loss)) {
+                        byte[] received = client.get(FILE_NAME);
+                        promotions.addAndGet(client.getPromotions());
+                        blocksFromGroup.addAndGet(client.getBlocksFromGroup());
+
+                        if (!client.isMulticastUsed()) {
+                            unicast.incrementAndGet();
+                        }
+
+                        if (!Arrays.equals(received, content)) {
+                            System.err.println("Client " + id + " received a different file");
+                            return false;
+                        }
+
+                        return true;
+                    } catch (IOException e) {
+                        System.err.println("Client " + id + " failed: " + e.getMessage());
+                        return false;
+                    }
+                }));
+            }
+
+            int succeeded = 0;
+
+            for (Future<Boolean> result : results) {
+                try {
+                    succeeded += result.get() ? 1 : 0;
+                } catch (ExecutionException e) {
+                    System.err.println("Client failed: " + e.getCause());
+                }
+            }
+
+            System.out.println("Results:");
+            System.out.printf("clients %d, succeeded %d, unicast %d, promotions %d, blocks from group %d, elapsed %d ms%n", clients, succeeded, unicast.get(),
+                    promotions.get(), blocksFromGroup.get(), (System.nanoTime() - start) / 1000000);
+            System.out.println(server.getMetrics());
+            return succeeded == clients;
+        } finally {
+            executor.shutdownNow();
+
+            if (server != null) {
+                server.close();
+            }
+
+            delete(readDir);
+            delete(writeDir);
+        }
+    }
+
+    private static int getFreePort(InetAddress address) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0, address)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static int getInt(CommandLine line, String option, int defaultValue) {
+        return line.hasOption(option) ? Integer.parseInt(line.getOptionValue(option)) : defaultValue;
+    }
+
+    private static void addOption(String shortName, String longName, String argName, String desc) {
+        CMD_OPTIONS.addOption(Option.builder(shortName)
+                .longOpt(longName)
+                .argName(argName)
+                .hasArg(argName != null)
+                .desc(desc)
+                .required(false)
+                .build()
+        );
+    }
+
+    private static void createCmdOptions() {
+        addOption("h", OPT_HELP, null, "Show this help");
+        addOption("e", OPT_ENGINE, "ENGINE", "Engine of the embedded server (" + Arrays.stream(YTFTPEngineType.values()).map(YTFTPEngineType::name).collect(Collectors.joining(", ")) + ")");
+        addOption("g", OPT_GROUP, "ADDRESS", "First multicast group of the server (default 239.255.84.70)");
+        addOption(null, OPT_GROUP_PORT, "PORT", "Destination port of multicast packets (default " + YTFTPServer.DEFAULT_MULTICAST_PORT + ")");
+        addOption("c", OPT_CLIENTS, "N", "Number of clients (default 10)");
+        addOption(null, OPT_STAGGER, "MS", "Delay between the start of two clients (default 20)");
+        addOption("f", OPT_FILE_SIZE, "BYTES", "Size of the downloaded file (default 1048576)");
+        addOption("b", OPT_BLOCK_SIZE, "BYTES", "Block size requested by clients (default 1024)");
+        addOption("t", OPT_TIMEOUT, "MS", "Client retransmission timeout (default 1000)");
+        addOption(null, OPT_RETRIES, "N", "Client retries before giving up (default 5)");
+        addOption(null, OPT_LOSS, "PERCENT", "Group packets dropped by each client");
+        addOption("x", OPT_LOG, "LOG_LEVEL", "Log level (" + Arrays.stream(YTFTPLogLevel.values()).map(YTFTPLogLevel::name).collect(Collectors.joining(", ")) + ", default ERROR)");
+    }
+}